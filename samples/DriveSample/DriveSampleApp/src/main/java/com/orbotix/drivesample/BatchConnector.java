@@ -0,0 +1,385 @@
+package com.orbotix.drivesample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.orbotix.common.DiscoveryAgent;
+import com.orbotix.common.Robot;
+import com.orbotix.common.RobotChangedStateListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Brings a list of discovered robots online several at a time, where a ConnectStrategy hands the discovery agent
+ * one robot per decision.
+ *
+ * Up to the concurrency limit, robots are connected in parallel; the others wait in line and take a slot as soon
+ * as one frees up. An attempt that has not reached Online within the timeout is abandoned and disconnected. Failed
+ * attempts are retried after a backoff that doubles with every attempt, with some jitter so robots that failed
+ * together do not retry together, and a robot waiting for its retry does not hold a slot. For every robot that
+ * comes online, the time from {@link #connect(Collection)} to Online is reported.
+ *
+ * Set the agent's ConnectStrategy to a NoConnectStrategy so it does not start connections of its own, and raise
+ * its maximum connected robots to cover the batch. Results are reported on the thread that delivered the robot's
+ * state change, or on the handler's thread after a timeout.
+ */
+public class BatchConnector implements RobotChangedStateListener {
+
+    /**
+     * Receives the outcome for each robot of a batch
+     */
+    public interface Listener {
+        /**
+         * @param attempts How many attempts it took, 1 if the first one succeeded
+         * @param timeToOnlineMillis Time from the robot being submitted until it was online
+         */
+        void handleRobotOnline(Robot robot, int attempts, long timeToOnlineMillis);
+
+        /**
+         * Called when a robot has failed its last attempt.
+         */
+        void handleRobotFailed(Robot robot, int attempts);
+
+        /**
+         * Called when every submitted robot is either online or has failed.
+         */
+        void handleBatchComplete(BatchConnector connector);
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Wait before the first retry, doubled for each further one
+     */
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 8000;
+
+    /**
+     * The agent connections are started through
+     */
+    private final DiscoveryAgent _agent;
+
+    /**
+     * The handler timeouts and retries run on
+     */
+    private final Handler _handler;
+
+    private final int _maxConcurrent;
+    private final long _timeoutMillis;
+    private final int _maxAttempts;
+    private final Random _random = new Random();
+
+    /**
+     * Every robot submitted since the last reset, by robot. Guarded by this.
+     */
+    private final Map<Robot, Entry> _entries = new HashMap<Robot, Entry>();
+
+    /**
+     * Robots waiting for a slot, in submission order. Guarded by this.
+     */
+    private final ArrayDeque<Entry> _waiting = new ArrayDeque<Entry>();
+
+    /**
+     * How many attempts are in progress. Guarded by this.
+     */
+    private int _active;
+
+    /**
+     * How many robots are neither online nor failed. Guarded by this.
+     */
+    private int _pending;
+
+    private Listener _listener;
+
+    public BatchConnector(DiscoveryAgent agent) {
+        this(agent, DEFAULT_MAX_CONCURRENT, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param agent The agent to connect through. The connector registers itself for robot state changes.
+     * @param maxConcurrent How many robots may be connecting at the same time
+     * @param timeoutMillis How long one attempt may take to reach Online
+     * @param maxAttempts How many times a robot is tried before it is given up
+     */
+    public BatchConnector(DiscoveryAgent agent, int maxConcurrent, long timeoutMillis, int maxAttempts) {
+        this(agent, maxConcurrent, timeoutMillis, maxAttempts, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler The handler timeouts and retries run on, and results are reported from
+     */
+    public BatchConnector(DiscoveryAgent agent, int maxConcurrent, long timeoutMillis, int maxAttempts,
+                          Handler handler) {
+        if (agent == null || handler == null) {
+            throw new IllegalArgumentException("agent and handler must not be null");
+        }
+        if (maxConcurrent <= 0 || timeoutMillis <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxConcurrent, timeoutMillis and maxAttempts must be positive: "
+                    + maxConcurrent + ", " + timeoutMillis + ", " + maxAttempts);
+        }
+        _agent = agent;
+        _handler = handler;
+        _maxConcurrent = maxConcurrent;
+        _timeoutMillis = timeoutMillis;
+        _maxAttempts = maxAttempts;
+        agent.addRobotStateListener(this);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Submits robots to be connected. Robots already submitted and not failed are skipped.
+     * @return How many robots were added
+     */
+    public int connect(Collection<Robot> robots) {
+        int added = 0;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            for (Robot robot : robots) {
+                Entry entry = _entries.get(robot);
+                if (entry != null && entry.state != State.FAILED) {
+                    continue;
+                }
+                if (robot.isOnline()) {
+                    continue;
+                }
+                boolean ownDisconnectPending = entry != null && entry.ownDisconnectPending;
+                entry = new Entry(robot, now);
+                entry.ownDisconnectPending = ownDisconnectPending;
+                _entries.put(robot, entry);
+                _waiting.addLast(entry);
+                _pending++;
+                added++;
+            }
+        }
+        startWaiting();
+        return added;
+    }
+
+    /**
+     * Abandons every robot that is not online yet and forgets all results. Attempts in progress are disconnected.
+     */
+    public void cancel() {
+        List<Robot> connecting = new ArrayList<Robot>();
+        synchronized (this) {
+            for (Entry entry : _entries.values()) {
+                _handler.removeCallbacks(entry.timeout);
+                _handler.removeCallbacks(entry.retry);
+                if (entry.state == State.CONNECTING) {
+                    connecting.add(entry.robot);
+                }
+            }
+            _entries.clear();
+            _waiting.clear();
+            _active = 0;
+            _pending = 0;
+        }
+        for (Robot robot : connecting) {
+            robot.disconnect();
+        }
+    }
+
+    /**
+     * @return How many robots are neither online nor failed
+     */
+    public synchronized int getPendingCount() {
+        return _pending;
+    }
+
+    /**
+     * @return How many robots are connecting right now
+     */
+    public synchronized int getActiveCount() {
+        return _active;
+    }
+
+    /**
+     * @return Milliseconds from submission until the robot was online, or -1 if it is not online
+     */
+    public synchronized long getTimeToOnline(Robot robot) {
+        Entry entry = _entries.get(robot);
+        return entry == null || entry.state != State.ONLINE ? -1 : entry.onlineTime - entry.submitTime;
+    }
+
+    /**
+     * @return How many attempts the robot has used so far
+     */
+    public synchronized int getAttempts(Robot robot) {
+        Entry entry = _entries.get(robot);
+        return entry == null ? 0 : entry.attempts;
+    }
+
+    @Override
+    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
+        switch (type) {
+            case Online:
+                onOnline(robot);
+                break;
+            case FailedConnect:
+            case Disconnected:
+                onAttemptFailed(robot, null);
+                break;
+        }
+    }
+
+    private void onOnline(Robot robot) {
+        Listener listener;
+        int attempts;
+        long timeToOnline;
+        boolean complete;
+        synchronized (this) {
+            Entry entry = _entries.get(robot);
+            if (entry == null || entry.state != State.CONNECTING) {
+                return;
+            }
+            _handler.removeCallbacks(entry.timeout);
+            entry.state = State.ONLINE;
+            entry.onlineTime = SystemClock.elapsedRealtime();
+            _active--;
+            attempts = entry.attempts;
+            timeToOnline = entry.onlineTime - entry.submitTime;
+            complete = --_pending == 0;
+            listener = _listener;
+        }
+        if (listener != null) {
+            listener.handleRobotOnline(robot, attempts, timeToOnline);
+        }
+        startWaiting();
+        if (complete && listener != null) {
+            listener.handleBatchComplete(this);
+        }
+    }
+
+    /**
+     * Ends the robot's current attempt and schedules a retry or gives it up.
+     * @param attempt The attempt that timed out, or null if the robot reported the failure itself
+     */
+    private void onAttemptFailed(Robot robot, Runnable attempt) {
+        Listener listener = null;
+        boolean timedOut = attempt != null;
+        boolean complete = false;
+        int attempts;
+        synchronized (this) {
+            Entry entry = _entries.get(robot);
+            if (entry != null && !timedOut && entry.ownDisconnectPending) {
+                // The failure caused by our own disconnect of a timed out attempt. It may arrive after the retry
+                // has started, and must not be charged to it.
+                entry.ownDisconnectPending = false;
+                return;
+            }
+            if (entry == null || entry.state != State.CONNECTING || (timedOut && attempt != entry.timeout)) {
+                return;
+            }
+            _handler.removeCallbacks(entry.timeout);
+            _active--;
+            attempts = entry.attempts;
+            entry.ownDisconnectPending = timedOut;
+            if (attempts >= _maxAttempts) {
+                entry.state = State.FAILED;
+                complete = --_pending == 0;
+                listener = _listener;
+            } else {
+                entry.state = State.BACKING_OFF;
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempts - 1));
+                backoff += (long) (_random.nextFloat() * backoff / 2);
+                _handler.postDelayed(entry.retry, backoff);
+            }
+        }
+        if (timedOut) {
+            // Marked above, so the Disconnected this causes is ignored whenever it is delivered
+            robot.disconnect();
+        }
+        if (listener != null) {
+            listener.handleRobotFailed(robot, attempts);
+        }
+        startWaiting();
+        if (complete && listener != null) {
+            listener.handleBatchComplete(this);
+        }
+    }
+
+    private void onRetryDue(Entry entry) {
+        synchronized (this) {
+            if (_entries.get(entry.robot) != entry || entry.state != State.BACKING_OFF) {
+                return;
+            }
+            entry.state = State.WAITING;
+            // Retries go ahead of robots that have not been tried yet
+            _waiting.addFirst(entry);
+        }
+        startWaiting();
+    }
+
+    /**
+     * Starts attempts for waiting robots while slots are free.
+     */
+    private void startWaiting() {
+        List<Robot> toConnect = new ArrayList<Robot>();
+        synchronized (this) {
+            while (_active < _maxConcurrent && !_waiting.isEmpty()) {
+                Entry entry = _waiting.pollFirst();
+                entry.state = State.CONNECTING;
+                entry.attempts++;
+                _active++;
+                _handler.postDelayed(entry.timeout, _timeoutMillis);
+                toConnect.add(entry.robot);
+            }
+        }
+        for (Robot robot : toConnect) {
+            _agent.connect(robot);
+        }
+    }
+
+    private enum State {
+        WAITING,
+        CONNECTING,
+        BACKING_OFF,
+        ONLINE,
+        FAILED
+    }
+
+    /**
+     * One submitted robot
+     */
+    private final class Entry {
+        final Robot robot;
+        final long submitTime;
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                onAttemptFailed(robot, this);
+            }
+        };
+        final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                onRetryDue(Entry.this);
+            }
+        };
+        State state = State.WAITING;
+        int attempts;
+
+        /**
+         * True from disconnecting a timed out attempt until the failure that causes has been delivered. If it never
+         * is, the next attempt's own failure is missed and that attempt ends by its timeout instead.
+         */
+        boolean ownDisconnectPending;
+        long onlineTime;
+
+        Entry(Robot robot, long submitTime) {
+            this.robot = robot;
+            this.submitTime = submitTime;
+        }
+    }
+}
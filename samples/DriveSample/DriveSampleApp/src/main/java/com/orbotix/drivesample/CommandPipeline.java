@@ -0,0 +1,334 @@
+package com.orbotix.drivesample;
+
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.internal.MainProcessorSession;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps several response-requesting commands in flight at once instead of waiting for each answer in turn.
+ *
+ * Reading a handful of values on connect (power state, odometer, versions, Bluetooth info) one request at a time
+ * costs a full round trip per command. The pipeline sends up to a window's worth of commands back to back and
+ * queues the rest, sending the next one as each answer or timeout frees a place. Every submitted command gets a
+ * {@link PendingResponse} that can be waited on like any {@link Future} or given a callback.
+ *
+ * Responses are matched and timed out by a {@link ResponseTracker}.
+ *
+ * The window is kept well below the 256 sequence numbers: other commands sent to the robot use sequence numbers
+ * too, and a command that timed out frees its place in the window while the SDK still maps its sequence number.
+ * Its response turning up late must not find a newer command that was given the same sequence number. Call
+ * {@link #useFullSequenceRange()} once at startup if the SDK's range may have been narrowed elsewhere.
+ */
+public class CommandPipeline {
+
+    /**
+     * The default number of commands in flight at once
+     */
+    public static final int DEFAULT_WINDOW = 4;
+
+    /**
+     * The default time to wait for each response, in milliseconds
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The largest window allowed, an eighth of the 8 bit sequence range, so a sequence number is only reused long
+     * after the command that last had it
+     */
+    public static final int MAX_WINDOW = 32;
+
+    /**
+     * Receives the outcome of a pipelined command
+     */
+    public interface Callback {
+        /**
+         * Invoked once with the response, or with null if the command timed out or was cancelled.
+         */
+        void onComplete(PendingResponse pending, DeviceResponse response);
+    }
+
+    /**
+     * Matches responses and times out commands that get none
+     */
+    private final ResponseTracker _tracker;
+
+    /**
+     * The number of commands allowed in flight
+     */
+    private final int _window;
+
+    /**
+     * How long each command waits for its response
+     */
+    private final long _timeoutMillis;
+
+    /**
+     * Commands waiting for a place in the window. Guarded by this.
+     */
+    private final ArrayDeque<PendingResponse> _waiting = new ArrayDeque<PendingResponse>();
+    private int _inFlight;
+
+    public CommandPipeline(ResponseTracker tracker) {
+        this(tracker, DEFAULT_WINDOW, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param tracker The tracker commands are sent through
+     * @param window How many commands may wait for a response at once, 1 - {@link #MAX_WINDOW}
+     * @param timeoutMillis How long each command waits for its response
+     */
+    public CommandPipeline(ResponseTracker tracker, int window, long timeoutMillis) {
+        if (tracker == null) {
+            throw new IllegalArgumentException("tracker must not be null");
+        }
+        if (window < 1 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("window must be in [1, " + MAX_WINDOW + "]: " + window);
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+        }
+        _tracker = tracker;
+        _window = window;
+        _timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Lets the SDK hand out all 256 sequence numbers before it wraps around. This changes a process-wide setting
+     * of MainProcessorSession for every robot, so call it once during startup, not per pipeline.
+     */
+    public static void useFullSequenceRange() {
+        MainProcessorSession.setMaxSequenceNumber((byte) 0xFF);
+    }
+
+    /**
+     * Sends a command as soon as the window has room.
+     * @return A handle for the command's response
+     */
+    public PendingResponse submit(DeviceCommand command) {
+        return submit(command, null);
+    }
+
+    /**
+     * Sends a command as soon as the window has room.
+     * @param callback Called with the outcome. May be null.
+     * @return A handle for the command's response
+     */
+    public PendingResponse submit(DeviceCommand command, Callback callback) {
+        if (command == null) {
+            throw new IllegalArgumentException("command must not be null");
+        }
+        PendingResponse pending = new PendingResponse(command, callback);
+        synchronized (this) {
+            _waiting.addLast(pending);
+        }
+        pump();
+        return pending;
+    }
+
+    /**
+     * Submits several commands at once, e.g. the reads an app makes right after connecting.
+     * @return The handles, in the order the commands were given
+     */
+    public List<PendingResponse> submitAll(DeviceCommand... commands) {
+        return submitAll(null, commands);
+    }
+
+    /**
+     * Submits several commands at once.
+     * @param callback Called with the outcome of each command. May be null.
+     * @return The handles, in the order the commands were given
+     */
+    public List<PendingResponse> submitAll(Callback callback, DeviceCommand... commands) {
+        List<PendingResponse> pending = new ArrayList<PendingResponse>(commands.length);
+        for (DeviceCommand command : commands) {
+            pending.add(submit(command, callback));
+        }
+        return pending;
+    }
+
+    /**
+     * Cancels every command that has not been sent yet. Commands already in flight still complete, with their
+     * response, a timeout, or the timeout {@link ResponseTracker#close()} reports for them.
+     */
+    public void cancelWaiting() {
+        List<PendingResponse> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<PendingResponse>(_waiting);
+            _waiting.clear();
+        }
+        for (PendingResponse pending : cancelled) {
+            pending.cancel(false);
+        }
+    }
+
+    public synchronized int getInFlightCount() {
+        return _inFlight;
+    }
+
+    public synchronized int getWaitingCount() {
+        return _waiting.size();
+    }
+
+    /**
+     * Sends waiting commands while the window has room.
+     */
+    private void pump() {
+        while (true) {
+            PendingResponse next;
+            synchronized (this) {
+                if (_inFlight >= _window || _waiting.isEmpty()) {
+                    return;
+                }
+                next = _waiting.pollFirst();
+                _inFlight++;
+            }
+            if (next.isDone() || !_tracker.send(next._command, _timeoutMillis, next)) {
+                // Cancelled while waiting, or the tracker is full or closed; either way it no longer holds a place
+                synchronized (this) {
+                    _inFlight--;
+                }
+                if (!next.isDone()) {
+                    next.complete(null, new IllegalStateException("Tracker full or closed"), false);
+                }
+            }
+        }
+    }
+
+    private void onFinished() {
+        synchronized (this) {
+            _inFlight--;
+        }
+        pump();
+    }
+
+    /**
+     * The eventual response to a pipelined command
+     */
+    public final class PendingResponse implements Future<DeviceResponse>, ResponseTracker.TimeoutListener {
+
+        private final DeviceCommand _command;
+        private final Callback _callback;
+
+        private boolean _done;
+        private boolean _cancelled;
+        private DeviceResponse _response;
+        private Exception _failure;
+
+        private PendingResponse(DeviceCommand command, Callback callback) {
+            _command = command;
+            _callback = callback;
+        }
+
+        public DeviceCommand getCommand() {
+            return _command;
+        }
+
+        /**
+         * Completes the handle without a response. A command that was not sent yet never will be; one already
+         * in flight keeps its place in the window until it is answered or times out.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return complete(null, null, true);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return _cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return _done;
+        }
+
+        /**
+         * Blocks until the response arrives. Must not be called on the thread responses are delivered on.
+         * @throws ExecutionException With a {@link TimeoutException} cause if the robot never answered
+         */
+        @Override
+        public synchronized DeviceResponse get() throws InterruptedException, ExecutionException {
+            while (!_done) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized DeviceResponse get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!_done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        @Override
+        public void handleResponse(DeviceResponse response, Robot robot) {
+            complete(response, null, false);
+            onFinished();
+        }
+
+        @Override
+        public void handleResponseTimeout(DeviceCommand command, Robot robot) {
+            complete(null, new TimeoutException("No response to " + command), false);
+            onFinished();
+        }
+
+        @Override
+        public void handleStringResponse(String stringResponse, Robot robot) {
+
+        }
+
+        @Override
+        public void handleAsyncMessage(AsyncMessage asyncMessage, Robot robot) {
+
+        }
+
+        private DeviceResponse result() throws ExecutionException {
+            if (_cancelled) {
+                throw new CancellationException();
+            }
+            if (_failure != null) {
+                throw new ExecutionException(_failure);
+            }
+            return _response;
+        }
+
+        /**
+         * @return True if this call completed the handle, false if it was already done
+         */
+        private boolean complete(DeviceResponse response, Exception failure, boolean cancelled) {
+            synchronized (this) {
+                if (_done) {
+                    return false;
+                }
+                _response = response;
+                _failure = failure;
+                _cancelled = cancelled;
+                _done = true;
+                notifyAll();
+            }
+            if (_callback != null) {
+                _callback.onComplete(this, response);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.orbotix.drivesample;
+
+import com.orbotix.command.BoostCommand;
+import com.orbotix.command.RawMotorCommand;
+import com.orbotix.command.RollCommand;
+import com.orbotix.command.RotationRateCommand;
+import com.orbotix.command.SetHeadingCommand;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.macro.SaveMacroCommand;
+import com.orbotix.macro.SaveTemporaryMacroChunkCommand;
+import com.orbotix.macro.SaveTemporaryMacroCommand;
+import com.orbotix.orbbasic.OrbBasicAppendFragmentCommand;
+import com.orbotix.ovalcompiler.command.AppendCompleteOvalCommand;
+import com.orbotix.ovalcompiler.command.AppendFragmentOvalCommand;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Sends commands to a robot in priority order instead of first in, first out.
+ *
+ * Commands are sorted into three classes. Realtime drive commands always go first, configuration commands next,
+ * and bulk uploads (macro chunks, orbBasic fragments, oval programs) last. Sending is paced to the link rate
+ * given at construction, so the SDK's own queue never fills up behind a burst and a new drive command waits for
+ * at most one packet already on its way. Bulk traffic additionally gets its own budget of a fixed share of the
+ * link rate, so a large upload cannot take over the link even when nothing else is waiting.
+ *
+ * Queue depth and time spent waiting are tracked per class. The link rate can be changed while running, e.g. by
+ * {@link RobotFleet} as robots join and leave a shared radio.
+ */
+public class CommandScheduler {
+
+    /**
+     * The priority classes, highest first
+     */
+    public enum Priority {
+        REALTIME,
+        CONFIGURATION,
+        BULK
+    }
+
+    /**
+     * A rough default for how many bytes per second the link drains
+     */
+    public static final int DEFAULT_LINK_BYTES_PER_SECOND = 2000;
+
+    /**
+     * The default share of the link rate bulk traffic may use
+     */
+    public static final float DEFAULT_BULK_SHARE = 0.5f;
+
+    /**
+     * SOP1, SOP2, DID, CID, SEQ, DLEN and CHK around the command data
+     */
+    private static final int PACKET_OVERHEAD = 7;
+
+    /**
+     * How far ahead either budget may build up while the link is idle, in milliseconds of link time
+     */
+    private static final long MAX_BURST_MILLIS = 100;
+
+    /**
+     * The robot commands are sent to
+     */
+    private final Robot _robot;
+
+    /**
+     * One queue per priority class
+     */
+    private final ArrayDeque<Pending>[] _queues;
+
+    /**
+     * Running statistics for each priority class
+     */
+    private final Stats[] _stats;
+
+    /**
+     * The fraction of the link rate bulk traffic may use
+     */
+    private final float _bulkShare;
+
+    /**
+     * Bytes per second the link is paced to. Guarded by this.
+     */
+    private int _linkBytesPerSecond;
+
+    /**
+     * Bytes per second bulk traffic may use. Guarded by this.
+     */
+    private float _bulkBytesPerSecond;
+
+    /**
+     * Link and bulk budgets in bytes, refilled by elapsed time. Guarded by this.
+     */
+    private double _linkBudget;
+    private double _bulkBudget;
+    private long _lastRefillNanos;
+
+    /**
+     * The thread doing the sending, null while stopped
+     */
+    private Thread _worker;
+
+    public CommandScheduler(Robot robot) {
+        this(robot, DEFAULT_LINK_BYTES_PER_SECOND, DEFAULT_BULK_SHARE);
+    }
+
+    /**
+     * @param robot The robot to send to
+     * @param linkBytesPerSecond The rate the link is known to sustain
+     * @param bulkShare The fraction of that rate (0 - 1] bulk uploads may use
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CommandScheduler(Robot robot, int linkBytesPerSecond, float bulkShare) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        if (linkBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("linkBytesPerSecond must be positive: " + linkBytesPerSecond);
+        }
+        if (bulkShare <= 0f || bulkShare > 1f) {
+            throw new IllegalArgumentException("bulkShare must be in (0, 1]: " + bulkShare);
+        }
+        _robot = robot;
+        _bulkShare = bulkShare;
+        _linkBytesPerSecond = linkBytesPerSecond;
+        _bulkBytesPerSecond = linkBytesPerSecond * bulkShare;
+
+        Priority[] priorities = Priority.values();
+        _queues = new ArrayDeque[priorities.length];
+        _stats = new Stats[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            _queues[i] = new ArrayDeque<Pending>();
+            _stats[i] = new Stats();
+        }
+    }
+
+    /**
+     * Picks the priority class for a command based on its type.
+     */
+    public static Priority priorityOf(DeviceCommand command) {
+        if (command instanceof RollCommand
+                || command instanceof RawMotorCommand
+                || command instanceof SetHeadingCommand
+                || command instanceof RotationRateCommand
+                || command instanceof BoostCommand) {
+            return Priority.REALTIME;
+        }
+        if (command instanceof SaveTemporaryMacroChunkCommand
+                || command instanceof SaveTemporaryMacroCommand
+                || command instanceof SaveMacroCommand
+                || command instanceof OrbBasicAppendFragmentCommand
+                || command instanceof AppendFragmentOvalCommand
+                || command instanceof AppendCompleteOvalCommand) {
+            return Priority.BULK;
+        }
+        return Priority.CONFIGURATION;
+    }
+
+    /**
+     * Starts the sending thread. Commands enqueued before this are kept.
+     */
+    public synchronized void start() {
+        if (_worker != null) {
+            return;
+        }
+        _lastRefillNanos = System.nanoTime();
+        _linkBudget = _linkBytesPerSecond * MAX_BURST_MILLIS / 1000.0;
+        _bulkBudget = _bulkBytesPerSecond * MAX_BURST_MILLIS / 1000.0;
+        _worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "CommandScheduler");
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    /**
+     * Stops the sending thread and drops every queued command.
+     */
+    public synchronized void stop() {
+        if (_worker != null) {
+            _worker.interrupt();
+            _worker = null;
+        }
+        for (ArrayDeque<Pending> queue : _queues) {
+            queue.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queues a command in the class picked by {@link #priorityOf(DeviceCommand)}.
+     */
+    public void enqueue(DeviceCommand command) {
+        enqueue(command, priorityOf(command));
+    }
+
+    /**
+     * Queues a command in the given class.
+     */
+    public synchronized void enqueue(DeviceCommand command, Priority priority) {
+        if (command == null || priority == null) {
+            return;
+        }
+        ArrayDeque<Pending> queue = _queues[priority.ordinal()];
+        queue.addLast(new Pending(command, System.nanoTime()));
+        Stats stats = _stats[priority.ordinal()];
+        stats.maxDepth = Math.max(stats.maxDepth, queue.size());
+        notifyAll();
+    }
+
+    /**
+     * Queues a command in the given class after dropping any command of the same type still waiting there, so
+     * only the newest of a stream of set points is sent.
+     * @return How many queued commands were dropped
+     */
+    public synchronized int enqueueLatest(DeviceCommand command, Priority priority) {
+        if (command == null || priority == null) {
+            return 0;
+        }
+        int dropped = 0;
+        Iterator<Pending> iterator = _queues[priority.ordinal()].iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().command.getClass() == command.getClass()) {
+                iterator.remove();
+                dropped++;
+            }
+        }
+        _stats[priority.ordinal()].dropped += dropped;
+        enqueue(command, priority);
+        return dropped;
+    }
+
+    /**
+     * Changes the rate sending is paced to, e.g. when the link is shared with more robots. Bulk traffic keeps
+     * the same share of it.
+     */
+    public synchronized void setLinkBytesPerSecond(int linkBytesPerSecond) {
+        if (linkBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("linkBytesPerSecond must be positive: " + linkBytesPerSecond);
+        }
+        refillBudgets();
+        _linkBytesPerSecond = linkBytesPerSecond;
+        _bulkBytesPerSecond = linkBytesPerSecond * _bulkShare;
+        _linkBudget = Math.min(_linkBudget, _linkBytesPerSecond * MAX_BURST_MILLIS / 1000.0);
+        _bulkBudget = Math.min(_bulkBudget, _bulkBytesPerSecond * MAX_BURST_MILLIS / 1000.0);
+        notifyAll();
+    }
+
+    /**
+     * @return The rate sending is paced to, in bytes per second
+     */
+    public synchronized int getLinkBytesPerSecond() {
+        return _linkBytesPerSecond;
+    }
+
+    /**
+     * @return How many commands are waiting in all classes together
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (ArrayDeque<Pending> queue : _queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return How many commands of the class are waiting
+     */
+    public synchronized int getQueueDepth(Priority priority) {
+        return _queues[priority.ordinal()].size();
+    }
+
+    /**
+     * @return The deepest the class's queue has been
+     */
+    public synchronized int getMaxQueueDepth(Priority priority) {
+        return _stats[priority.ordinal()].maxDepth;
+    }
+
+    /**
+     * @return How many commands of the class have been sent
+     */
+    public synchronized long getSentCount(Priority priority) {
+        return _stats[priority.ordinal()].sent;
+    }
+
+    /**
+     * @return How many commands of the class were dropped by {@link #enqueueLatest(DeviceCommand, Priority)}
+     */
+    public synchronized long getDroppedCount(Priority priority) {
+        return _stats[priority.ordinal()].dropped;
+    }
+
+    /**
+     * @return The mean time commands of the class spent queued, in milliseconds
+     */
+    public synchronized double getAverageWaitMillis(Priority priority) {
+        Stats stats = _stats[priority.ordinal()];
+        return stats.sent == 0 ? 0 : stats.totalWaitNanos / 1e6 / stats.sent;
+    }
+
+    /**
+     * @return The longest time a command of the class spent queued, in milliseconds
+     */
+    public synchronized double getMaxWaitMillis(Priority priority) {
+        return _stats[priority.ordinal()].maxWaitNanos / 1e6;
+    }
+
+    /**
+     * Resets the sent counts, wait times and maximum depths of every class.
+     */
+    public synchronized void resetStatistics() {
+        for (Stats stats : _stats) {
+            stats.sent = 0;
+            stats.dropped = 0;
+            stats.totalWaitNanos = 0;
+            stats.maxWaitNanos = 0;
+            stats.maxDepth = 0;
+        }
+    }
+
+    /**
+     * @return The number of bytes a command occupies on the link
+     */
+    static int packetLength(DeviceCommand command) {
+        byte[] data = command.getData();
+        return PACKET_OVERHEAD + (data == null ? 0 : data.length);
+    }
+
+    private void runWorker() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Pending next = takeNext();
+                _robot.sendCommand(next.command);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Blocks until a command may be sent and removes it from its queue, charging it to the budgets.
+     */
+    private synchronized Pending takeNext() throws InterruptedException {
+        while (true) {
+            refillBudgets();
+
+            ArrayDeque<Pending> chosen = null;
+            Priority chosenPriority = null;
+            long waitNanos = Long.MAX_VALUE;
+
+            for (Priority priority : Priority.values()) {
+                ArrayDeque<Pending> queue = _queues[priority.ordinal()];
+                if (queue.isEmpty()) {
+                    continue;
+                }
+                int length = packetLength(queue.peekFirst().command);
+                long linkWait = nanosUntil(_linkBudget, length, _linkBytesPerSecond);
+                long classWait = linkWait;
+                if (priority == Priority.BULK) {
+                    classWait = Math.max(linkWait, nanosUntil(_bulkBudget, length, _bulkBytesPerSecond));
+                }
+                if (classWait == 0) {
+                    chosen = queue;
+                    chosenPriority = priority;
+                    break;
+                }
+                waitNanos = Math.min(waitNanos, classWait);
+                if (priority != Priority.BULK) {
+                    // A higher class is waiting on the link; lower classes must not overtake it
+                    break;
+                }
+            }
+
+            if (chosen != null) {
+                Pending pending = chosen.pollFirst();
+                int length = packetLength(pending.command);
+                _linkBudget -= length;
+                if (chosenPriority == Priority.BULK) {
+                    _bulkBudget -= length;
+                }
+                Stats stats = _stats[chosenPriority.ordinal()];
+                long waited = System.nanoTime() - pending.enqueuedNanos;
+                stats.sent++;
+                stats.totalWaitNanos += waited;
+                stats.maxWaitNanos = Math.max(stats.maxWaitNanos, waited);
+                return pending;
+            }
+
+            if (waitNanos == Long.MAX_VALUE) {
+                wait();
+            } else {
+                long millis = waitNanos / 1000000L;
+                wait(millis, (int) (waitNanos % 1000000L));
+            }
+        }
+    }
+
+    private void refillBudgets() {
+        long now = System.nanoTime();
+        double seconds = (now - _lastRefillNanos) / 1e9;
+        _lastRefillNanos = now;
+        _linkBudget = Math.min(_linkBudget + seconds * _linkBytesPerSecond, _linkBytesPerSecond * MAX_BURST_MILLIS / 1000.0);
+        _bulkBudget = Math.min(_bulkBudget + seconds * _bulkBytesPerSecond, _bulkBytesPerSecond * MAX_BURST_MILLIS / 1000.0);
+    }
+
+    /**
+     * @return Nanoseconds until the budget covers a packet of the given length, 0 if it already does.
+     *         Packets larger than the burst allowance are let through once the budget is full.
+     */
+    private static long nanosUntil(double budget, int length, double bytesPerSecond) {
+        double needed = Math.min(length, bytesPerSecond * MAX_BURST_MILLIS / 1000.0);
+        if (budget >= needed) {
+            return 0;
+        }
+        return Math.max(1L, (long) ((needed - budget) / bytesPerSecond * 1e9));
+    }
+
+    /**
+     * A queued command and when it was queued
+     */
+    private static final class Pending {
+        final DeviceCommand command;
+        final long enqueuedNanos;
+
+        Pending(DeviceCommand command, long enqueuedNanos) {
+            this.command = command;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Counters for one priority class
+     */
+    private static final class Stats {
+        long sent;
+        long dropped;
+        long totalWaitNanos;
+        long maxWaitNanos;
+        int maxDepth;
+    }
+}
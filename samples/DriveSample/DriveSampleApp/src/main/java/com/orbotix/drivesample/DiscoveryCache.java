@@ -0,0 +1,295 @@
+package com.orbotix.drivesample;
+
+import android.os.SystemClock;
+
+import com.orbotix.common.DiscoveryAgentEventListener;
+import com.orbotix.common.Robot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the robots seen while scanning, indexed by address and ordered by smoothed signal strength, at little
+ * cost per scan result.
+ *
+ * The discovery agent re-sorts its whole robot set on every scan result and copies the list for every caller. In
+ * a room with dozens of advertising robots that is a lot of work on the main thread. This cache instead updates
+ * one entry per robot reported, found through its address, and only marks the order as stale. The order is
+ * brought up to date when someone asks for it, by an insertion sort over the previous order: signal strengths
+ * move a little between scans, so the list is nearly sorted already and this takes close to linear time. The
+ * sorted list is an immutable snapshot shared by all callers until the next change.
+ *
+ * Each robot's readings go through an {@link RssiFilter}, so the order and {@link #getSmoothedSignalQuality(String)}
+ * follow the filtered level instead of single noisy readings, and the trend is kept for strategies like
+ * {@link SmoothedProximityConnectStrategy}.
+ *
+ * Robots not reported for longer than the maximum age are evicted, checked at most once per second.
+ *
+ * Register it as a discovery listener on the agent, or feed it with {@link #update(Robot)}.
+ */
+public class DiscoveryCache implements DiscoveryAgentEventListener {
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10000;
+
+    /**
+     * Eviction runs at most this often
+     */
+    private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * How long a robot may go unreported before it is evicted
+     */
+    private final long _maxAgeMillis;
+
+    /**
+     * Entries by address. Guarded by this.
+     */
+    private final Map<String, Entry> _index = new HashMap<String, Entry>();
+
+    /**
+     * Entries strongest smoothed signal first, as of the last time the order was brought up to date. Guarded by this.
+     */
+    private final ArrayList<Entry> _order = new ArrayList<Entry>();
+
+    /**
+     * True if a signal changed since the order was last brought up to date. Guarded by this.
+     */
+    private boolean _orderStale;
+
+    /**
+     * The robots in order, handed out until something changes; null if it needs to be rebuilt. Guarded by this.
+     */
+    private List<Robot> _snapshot;
+
+    private long _lastEviction;
+
+    public DiscoveryCache() {
+        this(DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxAgeMillis How long a robot may go unreported before it is dropped
+     */
+    public DiscoveryCache(long maxAgeMillis) {
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("maxAgeMillis must be positive: " + maxAgeMillis);
+        }
+        _maxAgeMillis = maxAgeMillis;
+    }
+
+    @Override
+    public void handleRobotsAvailable(List<Robot> robots) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            for (Robot robot : robots) {
+                updateEntry(robot, now);
+            }
+            evictIfDue(now);
+        }
+    }
+
+    /**
+     * Records that a robot was just seen, with its current signal strength.
+     */
+    public void update(Robot robot) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            updateEntry(robot, now);
+            evictIfDue(now);
+        }
+    }
+
+    /**
+     * @return The robot with the address, or null if it has not been seen recently
+     */
+    public synchronized Robot get(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? null : entry.robot;
+    }
+
+    /**
+     * @return The robot's signal quality when it was last reported, or 0 if it has not been seen recently
+     */
+    public synchronized float getSignalQuality(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? 0f : entry.signalQuality;
+    }
+
+    /**
+     * @return The robot's filtered signal quality, or 0 if it has not been seen recently
+     */
+    public synchronized float getSmoothedSignalQuality(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? 0f : entry.filter.getLevel();
+    }
+
+    /**
+     * @return How fast the robot's filtered signal quality is changing per second, or 0 if it has not been seen
+     *         recently
+     */
+    public synchronized float getSignalTrend(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? 0f : entry.filter.getTrend();
+    }
+
+    /**
+     * @param aheadMillis How far from now to predict. The trend is followed from the robot's last reading, so the
+     *                    time since then counts too.
+     * @return The signal quality the robot's trend leads to, or 0 if it has not been seen recently
+     */
+    public synchronized float getPredictedSignalQuality(String address, long aheadMillis) {
+        Entry entry = _index.get(address);
+        return entry == null ? 0f : entry.filter.predict(SystemClock.elapsedRealtime() + aheadMillis);
+    }
+
+    /**
+     * @return How many readings of the robot have been filtered, or 0 if it has not been seen recently
+     */
+    public synchronized int getSampleCount(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? 0 : entry.filter.getSampleCount();
+    }
+
+    /**
+     * @return Milliseconds since the robot was last reported, or -1 if it has not been seen recently
+     */
+    public synchronized long getAge(String address) {
+        Entry entry = _index.get(address);
+        return entry == null ? -1 : SystemClock.elapsedRealtime() - entry.lastSeen;
+    }
+
+    /**
+     * @return The robots seen recently, strongest smoothed signal first. The list cannot be modified and does not
+     *         change.
+     */
+    public synchronized List<Robot> getRobots() {
+        if (_orderStale) {
+            sortOrder();
+            _orderStale = false;
+            _snapshot = null;
+        }
+        if (_snapshot == null) {
+            List<Robot> robots = new ArrayList<Robot>(_order.size());
+            for (Entry entry : _order) {
+                robots.add(entry.robot);
+            }
+            _snapshot = Collections.unmodifiableList(robots);
+        }
+        return _snapshot;
+    }
+
+    /**
+     * @return The robot with the strongest smoothed signal, or null if none has been seen recently
+     */
+    public synchronized Robot getStrongest() {
+        List<Robot> robots = getRobots();
+        return robots.isEmpty() ? null : robots.get(0);
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     * Drops every robot not reported within the maximum age.
+     * @return How many were dropped
+     */
+    public synchronized int evictStale() {
+        long now = SystemClock.elapsedRealtime();
+        _lastEviction = now;
+        int evicted = 0;
+        for (int i = _order.size() - 1; i >= 0; i--) {
+            Entry entry = _order.get(i);
+            if (now - entry.lastSeen > _maxAgeMillis) {
+                _order.remove(i);
+                _index.remove(entry.address);
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            _snapshot = null;
+        }
+        return evicted;
+    }
+
+    public synchronized void clear() {
+        _index.clear();
+        _order.clear();
+        _orderStale = false;
+        _snapshot = null;
+    }
+
+    /**
+     * @return The key a robot is indexed by
+     */
+    static String keyOf(Robot robot) {
+        String address = robot.getAddress();
+        return address != null ? address : robot.getIdentifier();
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void updateEntry(Robot robot, long now) {
+        String address = keyOf(robot);
+        if (address == null) {
+            return;
+        }
+        float signalQuality = robot.getSignalQuality();
+        Entry entry = _index.get(address);
+        if (entry == null) {
+            entry = new Entry(address, robot);
+            _index.put(address, entry);
+            _order.add(entry);
+            _orderStale = true;
+        } else if (entry.robot != robot) {
+            // The agent made a new object for the same robot
+            entry.robot = robot;
+            _snapshot = null;
+        }
+        entry.signalQuality = signalQuality;
+        entry.filter.update(signalQuality, now);
+        entry.lastSeen = now;
+        _orderStale = true;
+    }
+
+    private void evictIfDue(long now) {
+        if (now - _lastEviction >= EVICTION_INTERVAL_MILLIS) {
+            evictStale();
+        }
+    }
+
+    /**
+     * Insertion sort, strongest smoothed signal first. Stable, and close to linear on a nearly sorted list.
+     */
+    private void sortOrder() {
+        for (int i = 1; i < _order.size(); i++) {
+            Entry entry = _order.get(i);
+            int j = i - 1;
+            float level = entry.filter.getLevel();
+            while (j >= 0 && _order.get(j).filter.getLevel() < level) {
+                _order.set(j + 1, _order.get(j));
+                j--;
+            }
+            _order.set(j + 1, entry);
+        }
+    }
+
+    /**
+     * One robot that has been seen
+     */
+    private static final class Entry {
+        final String address;
+        final RssiFilter filter = new RssiFilter();
+        Robot robot;
+        float signalQuality;
+        long lastSeen;
+
+        Entry(String address, Robot robot) {
+            this.address = address;
+            this.robot = robot;
+        }
+    }
+}
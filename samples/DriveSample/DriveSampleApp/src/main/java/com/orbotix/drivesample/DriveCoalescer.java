@@ -0,0 +1,217 @@
+package com.orbotix.drivesample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.orbotix.ConvenienceRobot;
+import com.orbotix.le.RobotLE;
+
+/**
+ * Collapses a fast stream of drive and rotate requests into one roll command per tick.
+ *
+ * Touch input arrives far faster than the link can carry roll commands. Sending every event fills the command
+ * queue with stale headings that the robot then works through long after the finger has moved on. Instead, only
+ * the newest request is kept and sent once per tick; anything it replaced is dropped. The first request after an
+ * idle period goes out right away, so coalescing adds no delay to a single tap.
+ *
+ * The tick follows the link's measured acknowledgement latency on Bluetooth LE robots, clamped to a configurable
+ * range, so the send rate tracks what the link can actually drain. A stop is never coalesced: it discards
+ * anything pending and is sent immediately.
+ *
+ * All methods must be called from the main thread.
+ */
+public class DriveCoalescer {
+
+    /**
+     * The tick used when the link latency is unknown, in milliseconds
+     */
+    public static final long DEFAULT_TICK_MILLIS = 50;
+
+    /**
+     * The default bounds for a tick derived from the link latency, in milliseconds
+     */
+    public static final long DEFAULT_MIN_TICK_MILLIS = 20;
+    public static final long DEFAULT_MAX_TICK_MILLIS = 200;
+
+    /**
+     * The robot the coalesced commands are sent to
+     */
+    private final ConvenienceRobot _robot;
+
+    /**
+     * Runs the ticks on the main thread
+     */
+    private final Handler _handler;
+
+    /**
+     * Sends whatever is pending when the tick comes around
+     */
+    private final Runnable _tick = new Runnable() {
+        @Override
+        public void run() {
+            _tickScheduled = false;
+            sendPending();
+        }
+    };
+
+    private long _tickMillis = DEFAULT_TICK_MILLIS;
+    private long _minTickMillis = DEFAULT_MIN_TICK_MILLIS;
+    private long _maxTickMillis = DEFAULT_MAX_TICK_MILLIS;
+    private boolean _matchLinkLatency = true;
+
+    /**
+     * The newest request that has not been sent yet
+     */
+    private boolean _hasPending;
+    private boolean _pendingIsRotate;
+    private float _pendingHeading;
+    private float _pendingVelocity;
+
+    private boolean _tickScheduled;
+    private long _lastSendUptime = -1;
+
+    /**
+     * How many requests were replaced by a newer one before being sent
+     */
+    private long _droppedCount;
+
+    /**
+     * How many roll commands were actually sent
+     */
+    private long _sentCount;
+
+    public DriveCoalescer(ConvenienceRobot robot) {
+        this(robot, new Handler(Looper.getMainLooper()));
+    }
+
+    public DriveCoalescer(ConvenienceRobot robot, Handler handler) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        _robot = robot;
+        _handler = handler;
+    }
+
+    /**
+     * Requests driving at a heading and velocity. Replaces any request not yet sent.
+     * @param heading The heading in degrees, 0 - 360
+     * @param velocity The velocity, 0.0 - 1.0
+     */
+    public void drive(float heading, float velocity) {
+        setPending(false, heading, velocity);
+    }
+
+    /**
+     * Requests turning in place to a heading. Replaces any request not yet sent.
+     * @param heading The heading in degrees, 0 - 360
+     */
+    public void rotate(float heading) {
+        setPending(true, heading, 0f);
+    }
+
+    /**
+     * Drops anything pending and stops the robot right away.
+     */
+    public void stop() {
+        cancel();
+        _robot.stop();
+        _lastSendUptime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Drops anything pending without sending a command, e.g. after the robot disconnected.
+     */
+    public void cancel() {
+        _hasPending = false;
+        if (_tickScheduled) {
+            _handler.removeCallbacks(_tick);
+            _tickScheduled = false;
+        }
+    }
+
+    /**
+     * Sets the tick used when it is not derived from the link latency.
+     */
+    public void setTickMillis(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        _tickMillis = tickMillis;
+    }
+
+    /**
+     * Turns deriving the tick from the link's acknowledgement latency on or off. Only Bluetooth LE robots report
+     * a latency; others always use the fixed tick.
+     */
+    public void setMatchLinkLatency(boolean matchLinkLatency) {
+        _matchLinkLatency = matchLinkLatency;
+    }
+
+    /**
+     * Sets the range a tick derived from the link latency is kept in.
+     */
+    public void setTickRange(long minTickMillis, long maxTickMillis) {
+        if (minTickMillis <= 0 || maxTickMillis < minTickMillis) {
+            throw new IllegalArgumentException("invalid tick range: " + minTickMillis + " - " + maxTickMillis);
+        }
+        _minTickMillis = minTickMillis;
+        _maxTickMillis = maxTickMillis;
+    }
+
+    /**
+     * @return The tick currently in use, in milliseconds
+     */
+    public long getCurrentTickMillis() {
+        if (_matchLinkLatency && _robot.getRobot() instanceof RobotLE) {
+            long latency = ((RobotLE) _robot.getRobot()).getAckLatency();
+            if (latency > 0) {
+                return Math.max(_minTickMillis, Math.min(_maxTickMillis, latency));
+            }
+        }
+        return _tickMillis;
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount;
+    }
+
+    public long getSentCount() {
+        return _sentCount;
+    }
+
+    private void setPending(boolean isRotate, float heading, float velocity) {
+        if (_hasPending) {
+            _droppedCount++;
+        }
+        _hasPending = true;
+        _pendingIsRotate = isRotate;
+        _pendingHeading = heading;
+        _pendingVelocity = velocity;
+
+        if (_tickScheduled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long due = _lastSendUptime < 0 ? now : _lastSendUptime + getCurrentTickMillis();
+        if (due <= now) {
+            sendPending();
+        } else {
+            _tickScheduled = true;
+            _handler.postDelayed(_tick, due - now);
+        }
+    }
+
+    private void sendPending() {
+        if (!_hasPending) {
+            return;
+        }
+        _hasPending = false;
+        if (_pendingIsRotate) {
+            _robot.rotate(_pendingHeading);
+        } else {
+            _robot.drive(_pendingHeading, _pendingVelocity);
+        }
+        _sentCount++;
+        _lastSendUptime = SystemClock.uptimeMillis();
+    }
+}
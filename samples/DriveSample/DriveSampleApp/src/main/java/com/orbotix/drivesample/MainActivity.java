@@ -3,6 +3,7 @@ package com.orbotix.drivesample;
 import android.app.Activity;
 import android.app.FragmentTransaction;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -16,18 +17,26 @@ import com.orbotix.Sphero;
 import com.orbotix.calibration.api.CalibrationEventListener;
 import com.orbotix.calibration.api.CalibrationImageButtonView;
 import com.orbotix.calibration.api.CalibrationView;
+import com.orbotix.command.GetBluetoothInfoCommand;
+import com.orbotix.command.GetOdometerCommand;
+import com.orbotix.command.GetPowerStateCommand;
+import com.orbotix.command.VersioningCommand;
 import com.orbotix.classic.DiscoveryAgentClassic;
 import com.orbotix.classic.RobotClassic;
 import com.orbotix.colorpicker.api.ColorPickerEventListener;
 import com.orbotix.colorpicker.api.ColorPickerFragment;
 import com.orbotix.common.*;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.DeviceResponse;
 import com.orbotix.joystick.api.JoystickEventListener;
 import com.orbotix.joystick.api.JoystickView;
 import com.orbotix.le.DiscoveryAgentLE;
 import com.orbotix.le.RobotLE;
+import com.orbotix.le.connectstrategy.ConnectStrategy;
 import com.orbotix.robotpicker.RobotPickerDialog;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainActivity extends Activity implements RobotPickerDialog.RobotPickerListener,
                                                       DiscoveryAgentEventListener,
@@ -40,6 +49,16 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
      */
     private DiscoveryAgent _currentDiscoveryAgent;
 
+    /**
+     * Smoothed signal history of the Ollies seen while discovering, used to pick the one held closest
+     */
+    private DiscoveryCache _discoveryCache;
+
+    /**
+     * The connect strategy the LE discovery agent had before ours was installed, restored once discovery is over
+     */
+    private ConnectStrategy _previousConnectStrategy;
+
     /**
      * The dialog that will allow the user to chose which type of robot to connect to
      */
@@ -55,6 +74,21 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
      */
     private ConvenienceRobot _connectedRobot;
 
+    /**
+     * Keeps only the newest joystick and calibration input, so the robot is never behind the user's finger
+     */
+    private DriveCoalescer _driveCoalescer;
+
+    /**
+     * Matches the responses to the reads made right after connecting
+     */
+    private ResponseTracker _responseTracker;
+
+    /**
+     * Keeps the reads made right after connecting in flight together
+     */
+    private CommandPipeline _commandPipeline;
+
     /**
      * The calibration view, used for setting the default heading of the robot
      */
@@ -90,6 +124,10 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
+        // The command pipeline keeps several commands in flight, so let the SDK use every sequence number before
+        // it wraps around. This is a process wide setting, made once here.
+        CommandPipeline.useFullSequenceRange();
+
         setupJoystick();
         setupCalibration();
         setupColorPicker();
@@ -133,6 +171,9 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             // This is accomplished by using DiscoveryAgent#removeRobotStateListener().
             _currentDiscoveryAgent.removeRobotStateListener(this);
 
+            // The LE agent outlives this activity, so don't leave it with a strategy that uses our cache
+            restoreConnectStrategy();
+
             // Here we are only handling disconnecting robots if the user selected a type of robot to connect to. If you
             // didn't use the robot picker, you will need to check the appropriate discovery agent manually by using
             // DiscoveryAgent.getInstance().getConnectedRobots()
@@ -167,7 +208,17 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             // that Ollie talks over. This will allow you to find an Ollie and connect to it.
             case Ollie:
                 // To get to the LE discovery agent, you use DiscoveryAgentLE.getInstance()
-                _currentDiscoveryAgent = DiscoveryAgentLE.getInstance();
+                DiscoveryAgentLE agentLE = DiscoveryAgentLE.getInstance();
+                // Drop the cache of an earlier pick before making a new one
+                restoreConnectStrategy();
+                // Single signal readings are noisy, so instead of comparing each one to a threshold we keep a
+                // smoothed history per robot and only connect once one robot is clearly and steadily the closest
+                _discoveryCache = new DiscoveryCache();
+                agentLE.addDiscoveryListener(_discoveryCache);
+                // The agent is shared by the whole app, so remember its strategy to put it back once discovery is over
+                _previousConnectStrategy = agentLE.getConnectStrategy();
+                agentLE.setConnectStrategy(new SmoothedProximityConnectStrategy(_discoveryCache));
+                _currentDiscoveryAgent = agentLE;
                 break;
         }
 
@@ -214,6 +265,7 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
                 // It is also proper form to not allow yourself to re-register for the discovery listeners, so let's
                 // unregister for the available notifications here using DiscoveryAgent#removeDiscoveryListener().
                 _currentDiscoveryAgent.removeDiscoveryListener(this);
+                restoreConnectStrategy();
                 // Don't forget to turn on UI elements
                 _joystick.setEnabled(true);
                 _calibrationView.setEnabled(true);
@@ -235,11 +287,25 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
                     _connectedRobot = new Sphero(robot);
                 }
 
+                // The joystick reports touch events much faster than the link can carry roll commands. Send drive
+                // input through a DriveCoalescer, which only sends the newest input once per tick.
+                _driveCoalescer = new DriveCoalescer(_connectedRobot);
+
                 // Finally for visual feedback let's turn the robot green saying that it's been connected
                 _connectedRobot.setLed(0f, 1f, 0f);
 
+                // Read the robot's state that an app typically shows after connecting
+                readRobotState(robot);
+
+                break;
+            case FailedConnect:
+                // Don't leave our strategy on the shared agent after a failed attempt; picking Ollie again installs it
+                // with a fresh cache
+                restoreConnectStrategy();
                 break;
             case Disconnected:
+                restoreConnectStrategy();
+
                 // When a robot disconnects, it is a good idea to disable UI elements that send commands so that you
                 // do not have to handle the user continuing to use them while the robot is not connected
                 _joystick.setEnabled(false);
@@ -247,6 +313,22 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
                 _colorPickerButton.setEnabled(false);
                 _calibrationButtonView.setEnabled(false);
 
+                // Throw away any drive input that has not been sent yet
+                if (_driveCoalescer != null) {
+                    _driveCoalescer.cancel();
+                }
+
+                // Nothing waiting for the connect time reads will get a response now. Closing the tracker reports the
+                // reads already sent as timed out, so their callbacks still run.
+                if (_commandPipeline != null) {
+                    _commandPipeline.cancelWaiting();
+                    _commandPipeline = null;
+                }
+                if (_responseTracker != null) {
+                    _responseTracker.close();
+                    _responseTracker = null;
+                }
+
                 // Disable the developer mode button when the robot disconnects so that it can be set up if a LE robot
                 // connectes again
                 if (robot instanceof RobotLE && _developerModeLayout != null) {
@@ -266,6 +348,57 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
         }
     }
 
+    /**
+     * Unregisters the discovery cache and gives the shared LE discovery agent back the connect strategy it had before
+     * {@link SmoothedProximityConnectStrategy} was installed, which needs the cache. Does nothing if ours is not
+     * installed.
+     */
+    private void restoreConnectStrategy() {
+        if (_discoveryCache == null) {
+            return;
+        }
+        DiscoveryAgentLE agentLE = DiscoveryAgentLE.getInstance();
+        agentLE.removeDiscoveryListener(_discoveryCache);
+        _discoveryCache = null;
+        agentLE.setConnectStrategy(_previousConnectStrategy);
+        _previousConnectStrategy = null;
+    }
+
+    /**
+     * Reads the power state, odometer, versions and Bluetooth info of a robot that just connected. Sent one after
+     * the other, each read waits a full round trip for the previous one; the pipeline keeps them in flight
+     * together. The time until the last response arrived is logged, so the two can be compared by passing a window
+     * of 1 to the pipeline.
+     * @param robot The robot that just connected
+     */
+    private void readRobotState(Robot robot) {
+        _responseTracker = new ResponseTracker(robot);
+        _commandPipeline = new CommandPipeline(_responseTracker);
+
+        final DeviceCommand[] reads = {
+                new GetPowerStateCommand(),
+                new GetOdometerCommand(),
+                new VersioningCommand(),
+                new GetBluetoothInfoCommand()
+        };
+        final long start = SystemClock.elapsedRealtime();
+        final AtomicInteger answered = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        _commandPipeline.submitAll(new CommandPipeline.Callback() {
+            @Override
+            public void onComplete(CommandPipeline.PendingResponse pending, DeviceResponse response) {
+                if (response != null) {
+                    answered.incrementAndGet();
+                }
+                if (completed.incrementAndGet() == reads.length) {
+                    Log.i(TAG, "Connect time reads: " + answered.get() + " of " + reads.length + " answered in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms, window "
+                            + CommandPipeline.DEFAULT_WINDOW);
+                }
+            }
+        }, reads);
+    }
+
     /**
      * Sets up the joystick from scratch
      */
@@ -292,9 +425,10 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             @Override
             public void onJoystickMoved(double distanceFromCenter, double angle) {
                 // Here you can use the joystick input to drive the connected robot. You can easily do this with the
-                // ConvenienceRobot#drive() method
+                // ConvenienceRobot#drive() method, here wrapped by DriveCoalescer#drive() so that only the newest
+                // input is sent.
                 // Note that the arguments do flip here from the order of parameters
-                _connectedRobot.drive((float)angle, (float)distanceFromCenter);
+                _driveCoalescer.drive((float)angle, (float)distanceFromCenter);
             }
 
             /**
@@ -303,7 +437,8 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             @Override
             public void onJoystickEnded() {
                 // Here you can do something when the user stops touching the joystick. For example, we'll make it stop driving.
-                _connectedRobot.stop();
+                // The stop goes out immediately and drops any drive input still waiting to be sent.
+                _driveCoalescer.stop();
             }
         });
 
@@ -341,7 +476,7 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             public void onCalibrationChanged(float angle) {
                 // The usual thing to do when calibration happens is to send a roll command with this new angle, a speed of 0
                 // and the calibrate flag set.
-                _connectedRobot.rotate(angle);
+                _driveCoalescer.rotate(angle);
             }
 
             /**
@@ -351,7 +486,7 @@ public class MainActivity extends Activity implements RobotPickerDialog.RobotPic
             public void onCalibrationEnded() {
                 // This is where the calibration process is "committed". Here you want to tell the robot to stop as well as
                 // stop the calibration process.
-                _connectedRobot.stop();
+                _driveCoalescer.stop();
                 _connectedRobot.calibrating(false);
             }
         });
@@ -0,0 +1,401 @@
+package com.orbotix.drivesample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.DeviceResponse;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Tracks commands that expect a response and gives up on them after a deadline.
+ *
+ * The SDK matches responses to commands by their 8 bit sequence number and never forgets a command whose
+ * response was lost. Commands sent through {@link #send(DeviceCommand, long, ResponseListener)} are kept in a
+ * fixed-size pending table instead, with a deadline filed in a timer wheel. When the response arrives it goes
+ * to the listener given for that command. If the deadline passes first, the listener's
+ * {@link TimeoutListener#handleResponseTimeout(DeviceCommand, Robot)} is called (when it implements
+ * {@link TimeoutListener}) and the entry is freed.
+ *
+ * Responses that turn up anyway are counted rather than delivered: late when the command already timed out,
+ * duplicate when it was already answered, and orphaned when the SDK could not match the response to a command
+ * at all.
+ */
+public class ResponseTracker implements ResponseListener {
+
+    /**
+     * A response listener that also wants to hear about commands that were never answered
+     */
+    public interface TimeoutListener extends ResponseListener {
+        /**
+         * Invoked on the tracker's handler thread when a command's deadline passed without a response.
+         * @param command The command that went unanswered
+         * @param robot The robot it was sent to
+         */
+        void handleResponseTimeout(DeviceCommand command, Robot robot);
+    }
+
+    /**
+     * The default number of commands that can be pending at once; one per sequence number
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The resolution deadlines are checked at, in milliseconds
+     */
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * The number of buckets in the timer wheel. Deadlines further out than one turn simply stay in their bucket
+     * until the wheel comes around to them again.
+     */
+    private static final int WHEEL_SIZE = 256;
+
+    /**
+     * How many finished commands are remembered to classify responses that arrive after them
+     */
+    private static final int RECENT_SIZE = 64;
+
+    private static final int NONE = -1;
+
+    /**
+     * The robot commands are sent to
+     */
+    private final Robot _robot;
+
+    /**
+     * Runs the deadline checks
+     */
+    private final Handler _handler;
+
+    /**
+     * The pending table, one slot per entry, linked into free list and wheel buckets by index
+     */
+    private final DeviceCommand[] _commands;
+    private final ResponseListener[] _listeners;
+    private final long[] _deadlineTicks;
+    private final int[] _next;
+    private final int[] _previous;
+    private int _freeHead;
+    private int _pendingCount;
+
+    /**
+     * Finds the slot of a pending command
+     */
+    private final IdentityHashMap<DeviceCommand, Integer> _slotForCommand = new IdentityHashMap<DeviceCommand, Integer>();
+
+    /**
+     * The first slot of each wheel bucket
+     */
+    private final int[] _wheel = new int[WHEEL_SIZE];
+
+    /**
+     * The last tick the wheel has been advanced to
+     */
+    private long _currentTick;
+
+    /**
+     * Recently finished commands and whether each one timed out
+     */
+    private final DeviceCommand[] _recentCommands = new DeviceCommand[RECENT_SIZE];
+    private final boolean[] _recentTimedOut = new boolean[RECENT_SIZE];
+    private int _recentNext;
+
+    private long _timeoutCount;
+    private long _lateCount;
+    private long _duplicateCount;
+    private long _orphanedCount;
+
+    private boolean _tickScheduled;
+
+    /**
+     * Set once {@link #close()} gave up on the pending commands
+     */
+    private boolean _closed;
+
+    private final Runnable _tick = new Runnable() {
+        @Override
+        public void run() {
+            expireDue();
+        }
+    };
+
+    public ResponseTracker(Robot robot) {
+        this(robot, DEFAULT_CAPACITY, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param robot The robot to send to. The tracker registers itself as one of its response listeners.
+     * @param capacity How many commands may be pending at once
+     * @param handler The handler deadline checks and timeout callbacks run on
+     */
+    public ResponseTracker(Robot robot, int capacity, Handler handler) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        _robot = robot;
+        _handler = handler;
+        _commands = new DeviceCommand[capacity];
+        _listeners = new ResponseListener[capacity];
+        _deadlineTicks = new long[capacity];
+        _next = new int[capacity];
+        _previous = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            _next[i] = i + 1 < capacity ? i + 1 : NONE;
+        }
+        _freeHead = 0;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            _wheel[i] = NONE;
+        }
+        _currentTick = currentTick();
+        _robot.addResponseListener(this);
+    }
+
+    /**
+     * Sends a command with a response requested and tracks it until it is answered or times out.
+     * @param command The command to send
+     * @param timeoutMillis How long to wait for the response
+     * @param listener Receives the response, and the timeout if it is a {@link TimeoutListener}. May be null.
+     * @return False if the pending table is full or the tracker was closed; the command was not sent
+     */
+    public boolean send(DeviceCommand command, long timeoutMillis, ResponseListener listener) {
+        if (command == null) {
+            throw new IllegalArgumentException("command must not be null");
+        }
+        synchronized (this) {
+            if (_closed || _freeHead == NONE || _slotForCommand.containsKey(command)) {
+                return false;
+            }
+            int slot = _freeHead;
+            _freeHead = _next[slot];
+
+            _commands[slot] = command;
+            _listeners[slot] = listener;
+            _deadlineTicks[slot] = currentTick() + Math.max(1, (timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+            linkIntoWheel(slot);
+            _slotForCommand.put(command, slot);
+            _pendingCount++;
+            scheduleTick();
+        }
+        command.setResponseRequested(true);
+        _robot.sendCommand(command);
+        return true;
+    }
+
+    /**
+     * Stops listening to the robot and gives up on every pending command, e.g. when the robot disconnected. Each
+     * pending command is reported to its listener as timed out (when it implements {@link TimeoutListener}), so
+     * nothing waits for a response that can no longer arrive. Commands sent afterwards are refused.
+     */
+    public void close() {
+        _robot.removeResponseListener(this);
+        List<DeviceCommand> abandonedCommands = new ArrayList<DeviceCommand>();
+        List<ResponseListener> abandonedListeners = new ArrayList<ResponseListener>();
+        synchronized (this) {
+            _closed = true;
+            for (int slot = 0; slot < _commands.length; slot++) {
+                if (_commands[slot] != null) {
+                    abandonedCommands.add(_commands[slot]);
+                    abandonedListeners.add(_listeners[slot]);
+                    release(slot);
+                }
+            }
+            _handler.removeCallbacks(_tick);
+            _tickScheduled = false;
+        }
+
+        for (int i = 0; i < abandonedCommands.size(); i++) {
+            ResponseListener listener = abandonedListeners.get(i);
+            if (listener instanceof TimeoutListener) {
+                ((TimeoutListener) listener).handleResponseTimeout(abandonedCommands.get(i), _robot);
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return _pendingCount;
+    }
+
+    /**
+     * @return How many tracked commands were never answered in time
+     */
+    public synchronized long getTimeoutCount() {
+        return _timeoutCount;
+    }
+
+    /**
+     * @return How many responses arrived for commands that had already timed out
+     */
+    public synchronized long getLateCount() {
+        return _lateCount;
+    }
+
+    /**
+     * @return How many responses arrived for commands that had already been answered
+     */
+    public synchronized long getDuplicateCount() {
+        return _duplicateCount;
+    }
+
+    /**
+     * @return How many responses the SDK could not match to any command
+     */
+    public synchronized long getOrphanedCount() {
+        return _orphanedCount;
+    }
+
+    @Override
+    public void handleResponse(DeviceResponse response, Robot robot) {
+        DeviceCommand command = response.getCommand();
+        ResponseListener listener;
+        synchronized (this) {
+            if (command == null) {
+                _orphanedCount++;
+                return;
+            }
+            Integer slot = _slotForCommand.get(command);
+            if (slot == null) {
+                classifyUnexpected(command);
+                return;
+            }
+            listener = _listeners[slot];
+            release(slot);
+            remember(command, false);
+        }
+        if (listener != null) {
+            listener.handleResponse(response, robot);
+        }
+    }
+
+    @Override
+    public void handleStringResponse(String stringResponse, Robot robot) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage(AsyncMessage asyncMessage, Robot robot) {
+
+    }
+
+    /**
+     * Advances the wheel to the current time and reports every command whose deadline passed.
+     */
+    private void expireDue() {
+        List<DeviceCommand> expiredCommands = null;
+        List<ResponseListener> expiredListeners = null;
+
+        synchronized (this) {
+            _tickScheduled = false;
+            long now = currentTick();
+            // Visiting every bucket once covers any gap, so a long stall does not mean a long catch-up loop
+            long last = Math.min(now, _currentTick + WHEEL_SIZE);
+            for (long tick = _currentTick + 1; tick <= last; tick++) {
+                int slot = _wheel[(int) (tick % WHEEL_SIZE)];
+                while (slot != NONE) {
+                    int next = _next[slot];
+                    if (_deadlineTicks[slot] <= now) {
+                        if (expiredCommands == null) {
+                            expiredCommands = new ArrayList<DeviceCommand>();
+                            expiredListeners = new ArrayList<ResponseListener>();
+                        }
+                        expiredCommands.add(_commands[slot]);
+                        expiredListeners.add(_listeners[slot]);
+                        remember(_commands[slot], true);
+                        release(slot);
+                        _timeoutCount++;
+                    }
+                    slot = next;
+                }
+            }
+            _currentTick = now;
+            scheduleTick();
+        }
+
+        if (expiredCommands != null) {
+            for (int i = 0; i < expiredCommands.size(); i++) {
+                ResponseListener listener = expiredListeners.get(i);
+                if (listener instanceof TimeoutListener) {
+                    ((TimeoutListener) listener).handleResponseTimeout(expiredCommands.get(i), _robot);
+                }
+            }
+        }
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void scheduleTick() {
+        if (!_tickScheduled && _pendingCount > 0) {
+            _tickScheduled = true;
+            _handler.postDelayed(_tick, TICK_MILLIS);
+        }
+    }
+
+    private void linkIntoWheel(int slot) {
+        int bucket = (int) (_deadlineTicks[slot] % WHEEL_SIZE);
+        int head = _wheel[bucket];
+        _previous[slot] = NONE;
+        _next[slot] = head;
+        if (head != NONE) {
+            _previous[head] = slot;
+        }
+        _wheel[bucket] = slot;
+    }
+
+    private void release(int slot) {
+        int bucket = (int) (_deadlineTicks[slot] % WHEEL_SIZE);
+        int previous = _previous[slot];
+        int next = _next[slot];
+        if (previous != NONE) {
+            _next[previous] = next;
+        } else {
+            _wheel[bucket] = next;
+        }
+        if (next != NONE) {
+            _previous[next] = previous;
+        }
+
+        _slotForCommand.remove(_commands[slot]);
+        _commands[slot] = null;
+        _listeners[slot] = null;
+        _next[slot] = _freeHead;
+        _freeHead = slot;
+        _pendingCount--;
+    }
+
+    private void remember(DeviceCommand command, boolean timedOut) {
+        _recentCommands[_recentNext] = command;
+        _recentTimedOut[_recentNext] = timedOut;
+        _recentNext = (_recentNext + 1) % RECENT_SIZE;
+    }
+
+    /**
+     * Counts a response for a command that is no longer pending. Commands this tracker never sent are ignored.
+     */
+    private void classifyUnexpected(DeviceCommand command) {
+        for (int i = 0; i < RECENT_SIZE; i++) {
+            if (_recentCommands[i] == command) {
+                if (_recentTimedOut[i]) {
+                    _lateCount++;
+                    // A second late response for the same command is a duplicate
+                    _recentTimedOut[i] = false;
+                } else {
+                    _duplicateCount++;
+                }
+                return;
+            }
+        }
+    }
+
+    private static long currentTick() {
+        return SystemClock.uptimeMillis() / TICK_MILLIS;
+    }
+}
@@ -0,0 +1,497 @@
+package com.orbotix.drivesample;
+
+import com.orbotix.command.RGBLEDOutputCommand;
+import com.orbotix.command.RollCommand;
+import com.orbotix.command.SetDataStreamingCommand;
+import com.orbotix.common.Robot;
+import com.orbotix.common.RobotChangedStateListener;
+import com.orbotix.common.internal.DeviceCommand;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives many robots from one phone, where DualStackDiscoveryAgent only offers a maximum connection count and a
+ * flat list of robots.
+ *
+ * Every robot in the fleet gets its own {@link CommandScheduler}. The phone has a single radio, so the link rate
+ * given at construction is shared between all of them: sensor streaming is taken off the top, and the rest is
+ * split between the schedulers by weight. The split is redone whenever a robot joins or leaves, or its streaming
+ * changes, so twelve robots do not each pace themselves as if they had the radio to themselves.
+ *
+ * Robots can be put into named groups. A broadcast sends one drive or LED command to every robot in a group while
+ * using as little radio time as possible: it is queued as realtime, it replaces any older command of the same type
+ * still waiting for that robot, and no response is requested, so each robot costs one packet.
+ *
+ * Each robot can stream at its own rate, but every streaming robot must use the same sensor mask and frames per
+ * packet. The SDK decodes every robot's sensor packets with the mask and frame count of the last
+ * SetDataStreamingCommand created, which it keeps in statics of DeviceSensorAsyncMessage, so robots with different
+ * masks would have their packets decoded with the wrong layout. {@link #setStreaming(Robot, long, int, int)} rejects
+ * a mask that differs from the fleet's, and stops a single robot without clearing the mask the others rely on;
+ * {@link #setStreamingFormat(long, int)} changes the mask of all of them at once.
+ *
+ * Register the fleet as a robot state listener on the discovery agent to have robots added when they come online
+ * and removed when they disconnect, or call {@link #add(Robot)} and {@link #remove(Robot)} directly.
+ */
+public class RobotFleet implements RobotChangedStateListener {
+
+    /**
+     * A rough default for how many bytes per second the phone's radio drains across all connections
+     */
+    public static final int DEFAULT_TOTAL_LINK_BYTES_PER_SECOND = 12000;
+
+    /**
+     * The group robots are in until they are moved
+     */
+    public static final String DEFAULT_GROUP = "";
+
+    /**
+     * No scheduler is paced slower than this, however many robots share the radio
+     */
+    private static final int MIN_LINK_BYTES_PER_SECOND = 100;
+
+    /**
+     * SOP1, SOP2, ID_CODE, DLEN_MSB, DLEN_LSB and CHK around a sensor packet's data
+     */
+    static final int ASYNC_PACKET_OVERHEAD = 6;
+
+    /**
+     * The rate the robot samples its sensors at before the streaming divisor is applied
+     */
+    static final int SENSOR_CLOCK_HZ = 400;
+
+    /**
+     * Bytes per second across all connections
+     */
+    private final int _totalLinkBytesPerSecond;
+
+    /**
+     * The share of each robot's link rate bulk uploads may use
+     */
+    private final float _bulkShare;
+
+    /**
+     * The robots in the fleet, in the order they joined. Guarded by this.
+     */
+    private final Map<Robot, Member> _members = new LinkedHashMap<Robot, Member>();
+
+    /**
+     * Robots that have been assigned to a group, kept while they are disconnected. Guarded by this.
+     */
+    private final Map<Robot, String> _groups = new LinkedHashMap<Robot, String>();
+
+    /**
+     * Streaming each robot should have, kept while it is disconnected so it is restored on reconnect. Guarded by
+     * this.
+     */
+    private final Map<Robot, StreamingConfig> _streaming = new LinkedHashMap<Robot, StreamingConfig>();
+
+    public RobotFleet() {
+        this(DEFAULT_TOTAL_LINK_BYTES_PER_SECOND, CommandScheduler.DEFAULT_BULK_SHARE);
+    }
+
+    /**
+     * @param totalLinkBytesPerSecond The rate the phone's radio sustains across all connections
+     * @param bulkShare The fraction of each robot's share (0 - 1] bulk uploads may use
+     */
+    public RobotFleet(int totalLinkBytesPerSecond, float bulkShare) {
+        if (totalLinkBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("totalLinkBytesPerSecond must be positive: " + totalLinkBytesPerSecond);
+        }
+        if (bulkShare <= 0f || bulkShare > 1f) {
+            throw new IllegalArgumentException("bulkShare must be in (0, 1]: " + bulkShare);
+        }
+        _totalLinkBytesPerSecond = totalLinkBytesPerSecond;
+        _bulkShare = bulkShare;
+    }
+
+    @Override
+    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
+        switch (type) {
+            case Online:
+                add(robot);
+                break;
+            case Disconnected:
+            case FailedConnect:
+                remove(robot);
+                break;
+        }
+    }
+
+    /**
+     * Adds a connected robot with a weight of 1, starts its scheduler and restores its streaming.
+     * @return False if it was already in the fleet
+     */
+    public boolean add(Robot robot) {
+        return add(robot, 1f);
+    }
+
+    /**
+     * Adds a connected robot, starts its scheduler and restores its streaming.
+     * @param weight The robot's share of the command link rate relative to the other robots
+     * @return False if it was already in the fleet
+     */
+    public synchronized boolean add(Robot robot, float weight) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        if (weight <= 0f) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        if (_members.containsKey(robot)) {
+            return false;
+        }
+        // Paced at the minimum until the rebalance below gives it its share
+        Member member = new Member(new CommandScheduler(robot, MIN_LINK_BYTES_PER_SECOND, _bulkShare), weight);
+        _members.put(robot, member);
+        rebalance();
+        member.scheduler.start();
+
+        StreamingConfig streaming = _streaming.get(robot);
+        if (streaming != null) {
+            member.scheduler.enqueue(streaming.toCommand(), CommandScheduler.Priority.CONFIGURATION);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a robot, dropping its queued commands, and gives its share of the link to the others. Its group and
+     * streaming settings are kept for when it is added again.
+     * @return False if it was not in the fleet
+     */
+    public synchronized boolean remove(Robot robot) {
+        Member member = _members.remove(robot);
+        if (member == null) {
+            return false;
+        }
+        member.scheduler.stop();
+        rebalance();
+        return true;
+    }
+
+    /**
+     * Removes every robot and forgets all groups and streaming settings.
+     */
+    public synchronized void clear() {
+        for (Member member : _members.values()) {
+            member.scheduler.stop();
+        }
+        _members.clear();
+        _groups.clear();
+        _streaming.clear();
+    }
+
+    /**
+     * @return The robots in the fleet, in the order they joined
+     */
+    public synchronized List<Robot> getRobots() {
+        return new ArrayList<Robot>(_members.keySet());
+    }
+
+    /**
+     * @return The robots of the fleet in the group, in the order they joined
+     */
+    public synchronized List<Robot> getRobots(String group) {
+        List<Robot> robots = new ArrayList<Robot>();
+        for (Robot robot : _members.keySet()) {
+            if (groupOf(robot).equals(group)) {
+                robots.add(robot);
+            }
+        }
+        return robots;
+    }
+
+    public synchronized int size() {
+        return _members.size();
+    }
+
+    /**
+     * @return The robot's scheduler, or null if it is not in the fleet
+     */
+    public synchronized CommandScheduler getScheduler(Robot robot) {
+        Member member = _members.get(robot);
+        return member == null ? null : member.scheduler;
+    }
+
+    /**
+     * Moves a robot into a group. The robot does not need to be connected.
+     */
+    public synchronized void setGroup(Robot robot, String group) {
+        if (robot == null || group == null) {
+            throw new IllegalArgumentException("robot and group must not be null");
+        }
+        if (group.equals(DEFAULT_GROUP)) {
+            _groups.remove(robot);
+        } else {
+            _groups.put(robot, group);
+        }
+    }
+
+    public synchronized String getGroup(Robot robot) {
+        return groupOf(robot);
+    }
+
+    /**
+     * Changes a robot's share of the command link rate relative to the other robots.
+     */
+    public synchronized void setWeight(Robot robot, float weight) {
+        if (weight <= 0f) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        Member member = _members.get(robot);
+        if (member != null) {
+            member.weight = weight;
+            rebalance();
+        }
+    }
+
+    /**
+     * Sets the sensors a robot streams and sends the streaming command through its scheduler. The setting is kept
+     * and sent again whenever the robot rejoins, and its traffic is reserved out of the shared link rate.
+     * @param mask The SensorFlag mask to stream, or 0 to stop streaming
+     * @param divisor The robot's 400 Hz sensor clock is divided by this
+     * @param framesPerPacket How many frames the robot packs into one packet
+     * @throws IllegalArgumentException if another robot streams a different mask or frames per packet
+     */
+    public synchronized void setStreaming(Robot robot, long mask, int divisor, int framesPerPacket) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        if (divisor <= 0 || framesPerPacket <= 0) {
+            throw new IllegalArgumentException("divisor and framesPerPacket must be positive: " + divisor + ", "
+                    + framesPerPacket);
+        }
+        StreamingConfig shared = getSharedStreaming(robot);
+        if (mask != 0 && shared != null && (shared.mask != mask || shared.framesPerPacket != framesPerPacket)) {
+            throw new IllegalArgumentException("The fleet streams mask 0x" + Long.toHexString(shared.mask) + " with "
+                    + shared.framesPerPacket + " frames per packet; every robot must use the same: 0x"
+                    + Long.toHexString(mask) + ", " + framesPerPacket);
+        }
+
+        SetDataStreamingCommand command;
+        if (mask != 0) {
+            StreamingConfig streaming = new StreamingConfig(mask, divisor, framesPerPacket);
+            _streaming.put(robot, streaming);
+            command = streaming.toCommand();
+        } else {
+            _streaming.remove(robot);
+            command = StreamingConfig.stopCommand(shared, divisor);
+        }
+        Member member = _members.get(robot);
+        if (member != null) {
+            rebalance();
+            member.scheduler.enqueueLatest(command, CommandScheduler.Priority.CONFIGURATION);
+        }
+    }
+
+    /**
+     * Changes the mask and frames per packet of every streaming robot at once, keeping each robot's divisor, and
+     * sends the new settings to the robots in the fleet. Robots that are not in the fleet get them when they
+     * rejoin. This is how the fleet's streaming format is changed while robots stream.
+     * @return How many robots stream
+     */
+    public synchronized int setStreamingFormat(long mask, int framesPerPacket) {
+        if (mask == 0 || framesPerPacket <= 0) {
+            throw new IllegalArgumentException("mask must not be 0 and framesPerPacket must be positive: 0x"
+                    + Long.toHexString(mask) + ", " + framesPerPacket);
+        }
+        for (Map.Entry<Robot, StreamingConfig> entry : _streaming.entrySet()) {
+            StreamingConfig streaming = new StreamingConfig(mask, entry.getValue().divisor, framesPerPacket);
+            entry.setValue(streaming);
+            Member member = _members.get(entry.getKey());
+            if (member != null) {
+                member.scheduler.enqueueLatest(streaming.toCommand(), CommandScheduler.Priority.CONFIGURATION);
+            }
+        }
+        rebalance();
+        return _streaming.size();
+    }
+
+    /**
+     * @return The robot's streaming mask, or 0 if it does not stream
+     */
+    public synchronized long getStreamingMask(Robot robot) {
+        StreamingConfig streaming = _streaming.get(robot);
+        return streaming == null ? 0 : streaming.mask;
+    }
+
+    /**
+     * @return The mask every streaming robot uses, or 0 if no robot streams
+     */
+    public synchronized long getFleetStreamingMask() {
+        StreamingConfig shared = getSharedStreaming(null);
+        return shared == null ? 0 : shared.mask;
+    }
+
+    /**
+     * @return The bytes per second the fleet's sensor streaming is expected to use
+     */
+    public synchronized int getStreamingBytesPerSecond() {
+        int total = 0;
+        for (Robot robot : _members.keySet()) {
+            StreamingConfig streaming = _streaming.get(robot);
+            if (streaming != null) {
+                total += streaming.bytesPerSecond();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The rate the phone's radio sustains across all connections
+     */
+    public int getTotalLinkBytesPerSecond() {
+        return _totalLinkBytesPerSecond;
+    }
+
+    /**
+     * Sends a roll to every robot in the group.
+     * @return How many robots it was queued for
+     */
+    public int broadcastRoll(String group, float heading, float velocity) {
+        return broadcast(group, new RollCommand(heading, velocity));
+    }
+
+    /**
+     * Sets the main LED of every robot in the group.
+     * @return How many robots it was queued for
+     */
+    public int broadcastColor(String group, float red, float green, float blue) {
+        return broadcast(group, new RGBLEDOutputCommand(red, green, blue));
+    }
+
+    /**
+     * Queues one command for every robot in the group, replacing any older command of the same type that has not
+     * been sent yet. The command is sent without asking for a response, and the same instance goes to every robot,
+     * so it must not be reused for other sends.
+     * @return How many robots it was queued for
+     */
+    public synchronized int broadcast(String group, DeviceCommand command) {
+        if (group == null || command == null) {
+            throw new IllegalArgumentException("group and command must not be null");
+        }
+        command.setResponseRequested(false);
+        int count = 0;
+        for (Map.Entry<Robot, Member> entry : _members.entrySet()) {
+            if (groupOf(entry.getKey()).equals(group)) {
+                entry.getValue().scheduler.enqueueLatest(command, CommandScheduler.Priority.REALTIME);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues one command for every robot in the fleet, as {@link #broadcast(String, DeviceCommand)} does.
+     * @return How many robots it was queued for
+     */
+    public synchronized int broadcastAll(DeviceCommand command) {
+        if (command == null) {
+            throw new IllegalArgumentException("command must not be null");
+        }
+        command.setResponseRequested(false);
+        for (Member member : _members.values()) {
+            member.scheduler.enqueueLatest(command, CommandScheduler.Priority.REALTIME);
+        }
+        return _members.size();
+    }
+
+    /**
+     * @return The bytes per second a robot streaming with these settings sends
+     */
+    static int streamingBytesPerSecond(long mask, int divisor, int framesPerPacket) {
+        // Two bytes per sensor value
+        int packetLength = ASYNC_PACKET_OVERHEAD + Long.bitCount(mask) * 2 * framesPerPacket;
+        float packetsPerSecond = (float) SENSOR_CLOCK_HZ / divisor / framesPerPacket;
+        return (int) (packetLength * packetsPerSecond);
+    }
+
+    private String groupOf(Robot robot) {
+        String group = _groups.get(robot);
+        return group == null ? DEFAULT_GROUP : group;
+    }
+
+    /**
+     * @param except A robot to leave out, or null
+     * @return The streaming of any robot but the one left out, or null if none streams. They all share its mask
+     *         and frames per packet. Must be called while holding the lock.
+     */
+    private StreamingConfig getSharedStreaming(Robot except) {
+        for (Map.Entry<Robot, StreamingConfig> entry : _streaming.entrySet()) {
+            if (entry.getKey() != except) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reserves the streaming traffic and splits the rest of the link rate between the schedulers by weight.
+     * Must be called while holding the lock.
+     */
+    private void rebalance() {
+        if (_members.isEmpty()) {
+            return;
+        }
+        float totalWeight = 0f;
+        for (Member member : _members.values()) {
+            totalWeight += member.weight;
+        }
+        int available = Math.max(0, _totalLinkBytesPerSecond - getStreamingBytesPerSecond());
+        for (Member member : _members.values()) {
+            int share = (int) (available * member.weight / totalWeight);
+            member.scheduler.setLinkBytesPerSecond(Math.max(MIN_LINK_BYTES_PER_SECOND, share));
+        }
+    }
+
+    /**
+     * A robot in the fleet
+     */
+    private static final class Member {
+        final CommandScheduler scheduler;
+        float weight;
+
+        Member(CommandScheduler scheduler, float weight) {
+            this.scheduler = scheduler;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * The streaming a robot should have
+     */
+    private static final class StreamingConfig {
+        final long mask;
+        final int divisor;
+        final int framesPerPacket;
+
+        StreamingConfig(long mask, int divisor, int framesPerPacket) {
+            this.mask = mask;
+            this.divisor = divisor;
+            this.framesPerPacket = framesPerPacket;
+        }
+
+        SetDataStreamingCommand toCommand() {
+            return new SetDataStreamingCommand(divisor, framesPerPacket, mask, 0);
+        }
+
+        /**
+         * Creating a SetDataStreamingCommand sets the mask the SDK decodes every robot's packets with. While other
+         * robots stream, a robot is stopped with their mask and a packet count of 1, so it sends one last packet
+         * and stops, and the mask is left as it is.
+         * @param shared The streaming of the other robots, or null if none streams
+         */
+        static SetDataStreamingCommand stopCommand(StreamingConfig shared, int divisor) {
+            if (shared == null) {
+                return new SetDataStreamingCommand(divisor, 1, 0, 0);
+            }
+            return new SetDataStreamingCommand(divisor, shared.framesPerPacket, shared.mask, 1);
+        }
+
+        int bytesPerSecond() {
+            return streamingBytesPerSecond(mask, divisor, framesPerPacket);
+        }
+    }
+}
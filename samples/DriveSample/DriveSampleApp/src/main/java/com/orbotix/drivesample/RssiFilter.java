@@ -0,0 +1,125 @@
+package com.orbotix.drivesample;
+
+/**
+ * Smooths one robot's signal readings and follows their trend.
+ *
+ * Single RSSI readings jump by several dB from one advertisement to the next, so comparing them against a
+ * threshold makes a robot flap in and out of range. This is an exponentially weighted average with a second,
+ * slower average of the slope (Holt's linear smoothing). Readings arrive at irregular times, so the weights
+ * depend on the time since the previous reading: a reading after a long gap counts for more than one of a quick
+ * burst. The trend allows predicting the signal a little ahead, e.g. to notice a robot being carried towards the
+ * phone before its smoothed level has caught up.
+ *
+ * Not thread safe; {@link DiscoveryCache} keeps one per robot and guards it with its own lock.
+ */
+public class RssiFilter {
+
+    public static final long DEFAULT_LEVEL_TIME_CONSTANT_MILLIS = 1000;
+    public static final long DEFAULT_TREND_TIME_CONSTANT_MILLIS = 2000;
+
+    /**
+     * Time constant of the level average
+     */
+    private final double _levelTimeConstant;
+
+    /**
+     * Time constant of the trend average
+     */
+    private final double _trendTimeConstant;
+
+    private double _level;
+
+    /**
+     * Change of the level per millisecond
+     */
+    private double _trend;
+
+    private long _lastTime;
+    private int _sampleCount;
+
+    public RssiFilter() {
+        this(DEFAULT_LEVEL_TIME_CONSTANT_MILLIS, DEFAULT_TREND_TIME_CONSTANT_MILLIS);
+    }
+
+    /**
+     * @param levelTimeConstantMillis How quickly the level follows the readings
+     * @param trendTimeConstantMillis How quickly the trend follows changes of the level
+     */
+    public RssiFilter(long levelTimeConstantMillis, long trendTimeConstantMillis) {
+        if (levelTimeConstantMillis <= 0 || trendTimeConstantMillis <= 0) {
+            throw new IllegalArgumentException("Time constants must be positive: " + levelTimeConstantMillis
+                    + ", " + trendTimeConstantMillis);
+        }
+        _levelTimeConstant = levelTimeConstantMillis;
+        _trendTimeConstant = trendTimeConstantMillis;
+    }
+
+    /**
+     * Adds a reading.
+     * @param value The reading, e.g. a signal quality or RSSI
+     * @param timeMillis When it was taken. Readings not newer than the previous one only update the level.
+     */
+    public void update(float value, long timeMillis) {
+        if (_sampleCount == 0) {
+            _level = value;
+            _trend = 0;
+            _lastTime = timeMillis;
+            _sampleCount = 1;
+            return;
+        }
+        _sampleCount++;
+
+        long elapsed = timeMillis - _lastTime;
+        if (elapsed <= 0) {
+            // Same instant; average it into the level without touching the trend
+            _level += (value - _level) / Math.min(_sampleCount, 4);
+            return;
+        }
+        _lastTime = timeMillis;
+
+        double levelWeight = 1 - Math.exp(-elapsed / _levelTimeConstant);
+        double trendWeight = 1 - Math.exp(-elapsed / _trendTimeConstant);
+        double predicted = _level + _trend * elapsed;
+        double level = predicted + levelWeight * (value - predicted);
+        _trend += trendWeight * ((level - _level) / elapsed - _trend);
+        _level = level;
+    }
+
+    /**
+     * @return The smoothed reading as of the last update
+     */
+    public float getLevel() {
+        return (float) _level;
+    }
+
+    /**
+     * @return How fast the reading is changing, in units per second
+     */
+    public float getTrend() {
+        return (float) (_trend * 1000);
+    }
+
+    /**
+     * @return The reading expected at the given time, following the trend from the last update
+     */
+    public float predict(long timeMillis) {
+        return (float) (_level + _trend * Math.max(0, timeMillis - _lastTime));
+    }
+
+    /**
+     * @return When the last reading was taken
+     */
+    public long getLastTime() {
+        return _lastTime;
+    }
+
+    public int getSampleCount() {
+        return _sampleCount;
+    }
+
+    public void reset() {
+        _level = 0;
+        _trend = 0;
+        _sampleCount = 0;
+    }
+}
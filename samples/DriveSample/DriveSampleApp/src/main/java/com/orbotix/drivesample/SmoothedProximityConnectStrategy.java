@@ -0,0 +1,125 @@
+package com.orbotix.drivesample;
+
+import android.os.SystemClock;
+
+import com.orbotix.common.Robot;
+import com.orbotix.le.connectstrategy.ConnectStrategy;
+
+import java.util.List;
+
+/**
+ * Connects to the robot held closest to the phone, judged by the smoothed signal and its trend in a
+ * {@link DiscoveryCache} rather than by single readings.
+ *
+ * ProximityConnectStrategy compares each raw reading against its threshold, so a robot near the threshold flaps
+ * in and out of range and a lucky reading from a robot across the room can win. Here a robot is picked when:
+ *
+ *   - it has been heard often enough for its filter to have settled, and was heard recently
+ *   - its signal predicted a short time ahead, following its trend, is above the threshold, so a robot being
+ *     carried towards the phone is picked before its smoothed level has caught up
+ *   - it leads every other robot by a margin
+ *   - it has stayed the leader for a short dwell time
+ *
+ * The cache must be registered as a discovery listener on the same agent, next to setting this as its
+ * ConnectStrategy. The signal values are those of Robot#getSignalQuality.
+ */
+public class SmoothedProximityConnectStrategy implements ConnectStrategy {
+
+    public static final float DEFAULT_THRESHOLD = 85f;
+    public static final float DEFAULT_MARGIN = 5f;
+
+    /**
+     * Readings a robot needs before it can be picked
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    /**
+     * A robot not heard for longer is not picked; following its trend across the silence would only guess
+     */
+    private static final long MAX_SILENCE_MILLIS = 500;
+
+    /**
+     * How far ahead the trend is followed
+     */
+    private static final long LOOKAHEAD_MILLIS = 500;
+
+    /**
+     * How long a robot must stay the leader before it is picked
+     */
+    private static final long DWELL_MILLIS = 300;
+
+    private final DiscoveryCache _cache;
+    private final float _threshold;
+    private final float _margin;
+
+    /**
+     * The current leader and since when it leads
+     */
+    private String _leader;
+    private long _leaderSince;
+
+    public SmoothedProximityConnectStrategy(DiscoveryCache cache) {
+        this(cache, DEFAULT_THRESHOLD, DEFAULT_MARGIN);
+    }
+
+    /**
+     * @param cache The cache holding the robots' signal history
+     * @param threshold The predicted signal quality a robot must reach
+     * @param margin How far the picked robot's predicted signal quality must be above any other robot's
+     */
+    public SmoothedProximityConnectStrategy(DiscoveryCache cache, float threshold, float margin) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+        if (margin < 0f) {
+            throw new IllegalArgumentException("margin must not be negative: " + margin);
+        }
+        _cache = cache;
+        _threshold = threshold;
+        _margin = margin;
+    }
+
+    /**
+     * @param robots The robots the agent could connect to
+     * @param robot Not used; the decision rests on the cache
+     * @return The robot to connect to, or null to keep waiting
+     */
+    @Override
+    public synchronized Robot getRobotToConnectFromAvailableNodes(List<Robot> robots, Robot robot) {
+        Robot best = null;
+        String bestAddress = null;
+        float bestSignal = Float.NEGATIVE_INFINITY;
+        float runnerUpSignal = Float.NEGATIVE_INFINITY;
+        for (Robot candidate : robots) {
+            if (candidate.isConnected() || candidate.isConnecting()) {
+                continue;
+            }
+            String address = DiscoveryCache.keyOf(candidate);
+            if (address == null || _cache.getSampleCount(address) == 0
+                    || _cache.getAge(address) > MAX_SILENCE_MILLIS) {
+                continue;
+            }
+            float signal = _cache.getPredictedSignalQuality(address, LOOKAHEAD_MILLIS);
+            if (signal > bestSignal) {
+                runnerUpSignal = bestSignal;
+                bestSignal = signal;
+                best = candidate;
+                bestAddress = address;
+            } else if (signal > runnerUpSignal) {
+                runnerUpSignal = signal;
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (best == null || bestSignal < _threshold || bestSignal - runnerUpSignal < _margin
+                || _cache.getSampleCount(bestAddress) < MIN_SAMPLES) {
+            _leader = null;
+            return null;
+        }
+        if (!bestAddress.equals(_leader)) {
+            _leader = bestAddress;
+            _leaderSince = now;
+        }
+        return now - _leaderSince >= DWELL_MILLIS ? best : null;
+    }
+}
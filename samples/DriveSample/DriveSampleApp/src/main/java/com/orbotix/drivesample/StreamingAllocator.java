@@ -0,0 +1,504 @@
+package com.orbotix.drivesample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.RobotChangedStateListener;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the phone's radio between robots that stream sensors at the same time.
+ *
+ * Each robot calling SensorControl#enableSensors on its own asks for its rate as if it had the radio to itself,
+ * and with several robots the link saturates and all of them lose frames. Here every robot states a demand, a
+ * SensorFlag mask and the rate it would like, and the allocator picks a streaming divisor for each so that
+ * together they fit the capacity of the radio:
+ *
+ *   - every robot first gets the same fraction of the rate it asked for, rounded down to a divisor of the sensor
+ *     clock
+ *   - the capacity left over by the rounding goes to the robots furthest below their demand
+ *   - the fastest robot's rate decides how many frames go into each packet, to save per packet overhead
+ *
+ * All demands must be for the same mask, and all robots put the same number of frames in a packet: the SDK decodes
+ * every robot's sensor packets with the mask and frame count of the last SetDataStreamingCommand created. See
+ * {@link RobotFleet}.
+ *
+ * The capacity starts at a share of the fleet's link rate and follows what is actually delivered. All sensor packets
+ * received from the robots are counted, and a timer compares them with what was allocated once per window, so a window
+ * also ends when no packets arrive at all. When less than {@link #LOSS_THRESHOLD} arrives, the capacity drops to the
+ * rate that did arrive; after {@link #STEP_UP_WINDOWS} healthy windows with some robot short of its demand, it is
+ * raised again.
+ *
+ * The settings are sent through {@link RobotFleet#setStreaming(Robot, long, int, int)}, which reserves them out of the
+ * fleet's link rate and stops a single robot without clearing the mask the others are decoded with. Register the
+ * allocator as a robot state listener next to the fleet; it rebalances when a robot comes online or disconnects, and
+ * listens to the responses of online robots itself.
+ */
+public class StreamingAllocator implements ResponseListener, RobotChangedStateListener {
+
+    /**
+     * Below this share of the allocated traffic, the capacity is lowered
+     */
+    public static final float LOSS_THRESHOLD = 0.9f;
+
+    /**
+     * At or above this share of the allocated traffic, a window counts as healthy
+     */
+    public static final float HEALTHY_THRESHOLD = 0.97f;
+
+    public static final int STEP_UP_WINDOWS = 3;
+
+    /**
+     * The most of the fleet's link rate streaming may take; the rest is kept for commands
+     */
+    private static final float MAX_STREAMING_SHARE = 0.75f;
+
+    /**
+     * How much the capacity is raised after healthy windows
+     */
+    private static final float STEP_UP_FACTOR = 1.1f;
+
+    /**
+     * The capacity never drops below this many bytes per second
+     */
+    private static final int MIN_CAPACITY = 200;
+
+    private static final int DEFAULT_MAX_PACKET_RATE = 25;
+
+    /**
+     * Slowest rate a robot with a demand is given, as the largest divisor of the sensor clock
+     */
+    private static final int MAX_DIVISOR = RobotFleet.SENSOR_CLOCK_HZ;
+
+    private static final long WINDOW_MILLIS = 2000;
+
+    /**
+     * Packets sent with the old settings are still arriving right after a change
+     */
+    private static final long SETTLE_MILLIS = 500;
+
+    /**
+     * The longest data a sensor packet may carry; the SDK decodes longer ones as plain AsyncMessages
+     */
+    private static final int MAX_DATA_LENGTH = 0x7F;
+
+    private static final int ID_OFFSET = 2;
+
+    /**
+     * The fleet settings are sent through
+     */
+    private final RobotFleet _fleet;
+
+    /**
+     * The handler the window timer runs on
+     */
+    private final Handler _handler;
+
+    private final Runnable _windowTimer = new Runnable() {
+        @Override
+        public void run() {
+            onWindowTimer();
+        }
+    };
+
+    /**
+     * The most packets per second any one robot is asked for
+     */
+    private final int _maxPacketRate;
+
+    /**
+     * Demands by robot, kept while the robot is offline. Guarded by this.
+     */
+    private final Map<Robot, Demand> _demands = new LinkedHashMap<Robot, Demand>();
+
+    /**
+     * Robots that are online. Guarded by this.
+     */
+    private final List<Robot> _online = new ArrayList<Robot>();
+
+    /**
+     * The aggregate streaming rate the radio is believed to carry, in bytes per second. Guarded by this.
+     */
+    private float _capacity;
+    private final float _maxCapacity;
+
+    /**
+     * The frames per packet all streaming robots were last given, or 0 if none was. Guarded by this.
+     */
+    private int _framesPerPacket;
+
+    /**
+     * Current window
+     */
+    private long _windowStart;
+    private long _windowBytes;
+    private int _healthyWindows;
+
+    /**
+     * Results of the last complete window
+     */
+    private float _measuredBytesPerSecond;
+    private float _deliveryRatio;
+
+    public StreamingAllocator(RobotFleet fleet) {
+        this(fleet, DEFAULT_MAX_PACKET_RATE);
+    }
+
+    /**
+     * @param fleet The fleet to send settings through
+     * @param maxPacketRate The most sensor packets per second to ask any robot for; higher rates put several
+     *                      frames in each packet
+     */
+    public StreamingAllocator(RobotFleet fleet, int maxPacketRate) {
+        this(fleet, maxPacketRate, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler The handler the window timer runs on
+     */
+    public StreamingAllocator(RobotFleet fleet, int maxPacketRate, Handler handler) {
+        if (fleet == null || handler == null) {
+            throw new IllegalArgumentException("fleet and handler must not be null");
+        }
+        if (maxPacketRate <= 0) {
+            throw new IllegalArgumentException("maxPacketRate must be positive: " + maxPacketRate);
+        }
+        _fleet = fleet;
+        _handler = handler;
+        _maxPacketRate = maxPacketRate;
+        _maxCapacity = fleet.getTotalLinkBytesPerSecond() * MAX_STREAMING_SHARE;
+        _capacity = _maxCapacity;
+    }
+
+    /**
+     * Asks for a robot to stream the sensors in the mask at the given rate, or as close to it as the radio allows.
+     * The robot does not need to be online yet.
+     * @param mask The SensorFlag mask to stream
+     * @param hz The rate wanted, in frames per second
+     * @throws IllegalArgumentException if another robot has a demand for a different mask
+     */
+    public synchronized void setDemand(Robot robot, long mask, float hz) {
+        if (robot == null) {
+            throw new IllegalArgumentException("robot must not be null");
+        }
+        int frameLength = Long.bitCount(mask) * 2;
+        if (frameLength == 0 || frameLength + 1 > MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Cannot stream mask " + Long.toHexString(mask));
+        }
+        if (hz <= 0f) {
+            throw new IllegalArgumentException("hz must be positive: " + hz);
+        }
+        for (Map.Entry<Robot, Demand> entry : _demands.entrySet()) {
+            if (entry.getKey() != robot && entry.getValue().mask != mask) {
+                throw new IllegalArgumentException("Every robot must stream the same mask: "
+                        + Long.toHexString(entry.getValue().mask) + ", not " + Long.toHexString(mask));
+            }
+        }
+        Demand demand = _demands.get(robot);
+        if (demand == null) {
+            demand = new Demand(mask, hz);
+            _demands.put(robot, demand);
+        } else {
+            demand.mask = mask;
+            demand.hz = hz;
+            demand.divisor = 0;
+        }
+        allocate();
+    }
+
+    /**
+     * Stops a robot's streaming and gives its share to the others.
+     */
+    public synchronized void removeDemand(Robot robot) {
+        if (_demands.remove(robot) == null) {
+            return;
+        }
+        // The fleet stops it without touching the mask the other robots are decoded with
+        _fleet.setStreaming(robot, 0L, 1, 1);
+        if (_demands.isEmpty()) {
+            _framesPerPacket = 0;
+        }
+        allocate();
+    }
+
+    /**
+     * @return The rate the robot currently streams at in frames per second, or 0 if it is offline or has no demand
+     */
+    public synchronized float getAllocatedRate(Robot robot) {
+        Demand demand = _demands.get(robot);
+        if (demand == null || demand.divisor == 0 || !_online.contains(robot)) {
+            return 0f;
+        }
+        return (float) RobotFleet.SENSOR_CLOCK_HZ / demand.divisor;
+    }
+
+    /**
+     * @return The aggregate streaming rate the radio is believed to carry, in bytes per second
+     */
+    public synchronized float getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * @return The aggregate streaming rate that arrived in the last complete window, in bytes per second
+     */
+    public synchronized float getMeasuredBytesPerSecond() {
+        return _measuredBytesPerSecond;
+    }
+
+    /**
+     * @return The share of the allocated traffic that arrived in the last complete window
+     */
+    public synchronized float getDeliveryRatio() {
+        return _deliveryRatio;
+    }
+
+    @Override
+    public void handleRobotChangedState(Robot robot, RobotChangedStateNotificationType type) {
+        switch (type) {
+            case Online:
+                synchronized (this) {
+                    if (_online.contains(robot)) {
+                        return;
+                    }
+                    _online.add(robot);
+                    Demand demand = _demands.get(robot);
+                    if (demand != null) {
+                        // The fleet restores the robot's previous settings, which may no longer be the right ones
+                        demand.divisor = 0;
+                    }
+                    allocate();
+                }
+                robot.addResponseListener(this);
+                break;
+            case Disconnected:
+            case FailedConnect:
+                robot.removeResponseListener(this);
+                synchronized (this) {
+                    if (_online.remove(robot)) {
+                        allocate();
+                    }
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void handleResponse(DeviceResponse response, Robot robot) {
+
+    }
+
+    @Override
+    public void handleStringResponse(String stringResponse, Robot robot) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage(AsyncMessage asyncMessage, Robot robot) {
+        byte[] packet = asyncMessage.getPacket();
+        // Read the packet itself, since longer sensor packets are not decoded as DeviceSensorAsyncMessages
+        if (packet == null || packet.length <= RobotFleet.ASYNC_PACKET_OVERHEAD
+                || packet[ID_OFFSET] != AsyncMessage.Type.SensorAsyncMessage.getValue()) {
+            return;
+        }
+        onSensorPacket(packet.length, SystemClock.elapsedRealtime());
+    }
+
+    private synchronized void onSensorPacket(int length, long now) {
+        if (now >= _windowStart) {
+            _windowBytes += length;
+        }
+    }
+
+    private synchronized void onWindowTimer() {
+        long elapsed = SystemClock.elapsedRealtime() - _windowStart;
+        if (elapsed < WINDOW_MILLIS) {
+            _handler.postDelayed(_windowTimer, WINDOW_MILLIS - elapsed);
+            return;
+        }
+        endWindow(elapsed);
+    }
+
+    /**
+     * Compares what arrived with what was allocated, and adjusts the capacity. Must be called while holding the
+     * lock.
+     */
+    private void endWindow(long elapsed) {
+        float allocated = allocatedBytesPerSecond();
+        _measuredBytesPerSecond = _windowBytes * 1000f / elapsed;
+        _deliveryRatio = allocated == 0f ? 1f : Math.min(1f, _measuredBytesPerSecond / allocated);
+
+        if (_deliveryRatio < LOSS_THRESHOLD) {
+            _capacity = Math.max(MIN_CAPACITY, _measuredBytesPerSecond);
+            allocate();
+        } else if (_deliveryRatio >= HEALTHY_THRESHOLD && isShortOfDemand() && _capacity < _maxCapacity) {
+            if (++_healthyWindows >= STEP_UP_WINDOWS) {
+                _capacity = Math.min(_maxCapacity, _capacity * STEP_UP_FACTOR);
+                allocate();
+            } else {
+                startWindow(SystemClock.elapsedRealtime());
+            }
+        } else {
+            _healthyWindows = 0;
+            startWindow(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Picks a divisor and frames per packet for every online robot with a demand, and sends the ones that
+     * changed. Must be called while holding the lock.
+     */
+    private void allocate() {
+        List<Demand> active = new ArrayList<Demand>();
+        int fastestDivisor = MAX_DIVISOR;
+        for (Map.Entry<Robot, Demand> entry : _demands.entrySet()) {
+            if (_online.contains(entry.getKey())) {
+                Demand demand = entry.getValue();
+                active.add(demand);
+                fastestDivisor = Math.min(fastestDivisor, divisorFor(demand.hz));
+            }
+        }
+        int framesPerPacket = active.isEmpty() ? 0 : framesPerPacket(active.get(0).mask, fastestDivisor);
+        float demanded = 0f;
+        for (Demand demand : active) {
+            demanded += bytesPerSecond(demand, divisorFor(demand.hz), framesPerPacket);
+        }
+
+        // The same fraction of its demand for everyone, rounded down to a divisor
+        float fraction = demanded <= _capacity ? 1f : _capacity / demanded;
+        float used = 0f;
+        for (Demand demand : active) {
+            demand.nextDivisor = divisorFor(demand.hz * fraction);
+            used += bytesPerSecond(demand, demand.nextDivisor, framesPerPacket);
+        }
+
+        // Hand what the rounding left over to whoever is furthest below its demand
+        while (true) {
+            Demand neediest = null;
+            float neediestCost = 0f;
+            float lowestShare = Float.MAX_VALUE;
+            for (Demand demand : active) {
+                int divisor = demand.nextDivisor;
+                if (divisor <= divisorFor(demand.hz)) {
+                    continue;
+                }
+                float cost = bytesPerSecond(demand, divisor - 1, framesPerPacket)
+                        - bytesPerSecond(demand, divisor, framesPerPacket);
+                float share = RobotFleet.SENSOR_CLOCK_HZ / (float) divisor / demand.hz;
+                if (used + cost <= _capacity && share < lowestShare) {
+                    neediest = demand;
+                    neediestCost = cost;
+                    lowestShare = share;
+                }
+            }
+            if (neediest == null) {
+                break;
+            }
+            neediest.nextDivisor--;
+            used += neediestCost;
+        }
+
+        if (framesPerPacket != 0 && framesPerPacket != _framesPerPacket) {
+            // Changed for every streaming robot at once, since they must all agree
+            _fleet.setStreamingFormat(active.get(0).mask, framesPerPacket);
+            _framesPerPacket = framesPerPacket;
+        }
+        for (Map.Entry<Robot, Demand> entry : _demands.entrySet()) {
+            Demand demand = entry.getValue();
+            if (!_online.contains(entry.getKey()) || demand.nextDivisor == demand.divisor) {
+                continue;
+            }
+            demand.divisor = demand.nextDivisor;
+            _fleet.setStreaming(entry.getKey(), demand.mask, demand.divisor, _framesPerPacket);
+        }
+
+        _healthyWindows = 0;
+        startWindow(SystemClock.elapsedRealtime() + SETTLE_MILLIS);
+    }
+
+    /**
+     * Starts counting a new window and times its end. The timer only runs while something is allocated. Must be
+     * called while holding the lock.
+     */
+    private void startWindow(long start) {
+        _windowStart = start;
+        _windowBytes = 0;
+        _handler.removeCallbacks(_windowTimer);
+        if (allocatedBytesPerSecond() > 0f) {
+            _handler.postDelayed(_windowTimer, start - SystemClock.elapsedRealtime() + WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * @return The bytes per second the online robots were allocated. Must be called while holding the lock.
+     */
+    private float allocatedBytesPerSecond() {
+        float total = 0f;
+        for (Map.Entry<Robot, Demand> entry : _demands.entrySet()) {
+            Demand demand = entry.getValue();
+            if (_online.contains(entry.getKey()) && demand.divisor != 0) {
+                total += bytesPerSecond(demand, demand.divisor, _framesPerPacket);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return True if an online robot streams slower than it asked for. Must be called while holding the lock.
+     */
+    private boolean isShortOfDemand() {
+        for (Map.Entry<Robot, Demand> entry : _demands.entrySet()) {
+            Demand demand = entry.getValue();
+            if (_online.contains(entry.getKey()) && demand.divisor > divisorFor(demand.hz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The smallest divisor that does not exceed the rate
+     */
+    private static int divisorFor(float hz) {
+        int divisor = (int) Math.ceil(RobotFleet.SENSOR_CLOCK_HZ / hz);
+        return Math.max(1, Math.min(MAX_DIVISOR, divisor));
+    }
+
+    /**
+     * @return How many frames to put in a packet so a robot streaming at the divisor stays within the packet rate
+     */
+    private int framesPerPacket(long mask, int divisor) {
+        int frameLength = Long.bitCount(mask) * 2;
+        int maxFrames = Math.max(1, (MAX_DATA_LENGTH - 1) / frameLength);
+        float hz = (float) RobotFleet.SENSOR_CLOCK_HZ / divisor;
+        return Math.max(1, Math.min(maxFrames, (int) Math.ceil(hz / _maxPacketRate)));
+    }
+
+    private static float bytesPerSecond(Demand demand, int divisor, int framesPerPacket) {
+        return RobotFleet.streamingBytesPerSecond(demand.mask, divisor, framesPerPacket);
+    }
+
+    /**
+     * What a robot asked for, and what it was given
+     */
+    private static final class Demand {
+        long mask;
+        float hz;
+        int divisor;
+        int nextDivisor;
+
+        Demand(long mask, float hz) {
+            this.mask = mask;
+            this.hz = hz;
+        }
+    }
+}
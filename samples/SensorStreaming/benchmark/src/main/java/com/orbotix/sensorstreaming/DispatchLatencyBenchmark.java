@@ -0,0 +1,180 @@
+package com.orbotix.sensorstreaming;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.orbotix.async.AsyncMessageFactory;
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a sensor message takes to reach all of 8 listeners under a 400 Hz stream, with the listeners
+ * registered on the SDK's RobotBase directly or behind a {@link ResponseListenerDispatcher}.
+ *
+ * Each invocation waits for the next 2.5 ms slot, hands one message to RobotBase#handleAsyncMessageReceived as the
+ * radio link does, and returns once every listener has been entered. Sample time mode reports the distribution,
+ * p99 included. The registrations are:
+ *
+ *   ROBOT_BASE                   every listener added to the robot; RobotBase copies its listener set and calls
+ *                                them one after the other in a single main thread post
+ *   DISPATCHER_INLINE            the dispatcher is the robot's only listener and calls the listeners inline, still
+ *                                on the main thread
+ *   DISPATCHER_DEDICATED_THREAD  the dispatcher hands each listener the message on its own thread
+ *
+ * Every listener spins for listenerWorkMicros before returning. With no work the scores compare the fan-out
+ * overhead; with work, a listener that runs after others on the same thread waits for them.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SampleTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DispatchLatencyBenchmark {
+
+    private static final int LISTENER_COUNT = 8;
+
+    // 400 Hz
+    private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos( 1 ) / 400;
+
+    public enum Registration {
+        ROBOT_BASE,
+        DISPATCHER_INLINE,
+        DISPATCHER_DEDICATED_THREAD
+    }
+
+    @Param
+    public Registration registration;
+
+    @Param( { "0", "100" } )
+    public int listenerWorkMicros;
+
+    private LoopbackRobot mRobot;
+    private ResponseListenerDispatcher mDispatcher;
+    private AsyncMessage mMessage;
+
+    private final AtomicInteger mEntered = new AtomicInteger();
+    private int mExpected;
+    private long mNextSlot;
+
+    @Setup
+    public void setUp() {
+        // Decode one sensor message up front with the corpus' format, then leave the SDK's global format alone
+        long savedMask = DeviceSensorAsyncMessage.sMask;
+        int savedPacketFrames = DeviceSensorAsyncMessage.sPacketFrames;
+        try {
+            DeviceSensorAsyncMessage.sMask = PacketCorpus.MASK;
+            DeviceSensorAsyncMessage.sPacketFrames = 1;
+            mMessage = AsyncMessageFactory.getInstance().dataFromPacket( PacketCorpus.get().sensorPackets.get( 0 ) );
+        } finally {
+            DeviceSensorAsyncMessage.sMask = savedMask;
+            DeviceSensorAsyncMessage.sPacketFrames = savedPacketFrames;
+        }
+
+        Handler mainThreadHandler = new Handler( Looper.getMainLooper() );
+        // The robot is never connected; only its listener delivery is used, which does not report state changes
+        mRobot = new LoopbackRobot( new BluetoothDevice( "Benchmark", "00:06:66:00:00:01" ), null, mainThreadHandler );
+
+        if( registration != Registration.ROBOT_BASE ) {
+            mDispatcher = new ResponseListenerDispatcher( mainThreadHandler );
+            mRobot.addResponseListener( mDispatcher );
+        }
+        ResponseListenerDispatcher.Delivery delivery = registration == Registration.DISPATCHER_DEDICATED_THREAD
+                                                       ? ResponseListenerDispatcher.Delivery.DEDICATED_THREAD
+                                                       : ResponseListenerDispatcher.Delivery.INLINE;
+        long workNanos = TimeUnit.MICROSECONDS.toNanos( listenerWorkMicros );
+        for( int i = 0; i < LISTENER_COUNT; i++ ) {
+            WorkingListener listener = new WorkingListener( mEntered, workNanos );
+            if( mDispatcher != null ) {
+                mDispatcher.addResponseListener( listener, delivery );
+            } else {
+                mRobot.addResponseListener( listener );
+            }
+        }
+
+        mNextSlot = System.nanoTime();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if( mDispatcher != null )
+            mDispatcher.clearResponseListeners();
+    }
+
+    /**
+     * Waits, outside the measurement, for the next message of the stream to be due.
+     */
+    @Setup( Level.Invocation )
+    public void awaitNextSlot() {
+        long now = System.nanoTime();
+        if( mNextSlot - now > 0 ) {
+            LockSupport.parkNanos( mNextSlot - now );
+        } else if( now - mNextSlot > PERIOD_NANOS ) {
+            // Fell behind, e.g. across an iteration boundary; restart the stream instead of bursting
+            mNextSlot = now;
+        }
+        mNextSlot += PERIOD_NANOS;
+    }
+
+    @Benchmark
+    public int deliverToAllListeners() {
+        mExpected += LISTENER_COUNT;
+        mRobot.handleAsyncMessageReceived( mMessage );
+        int entered;
+        while( ( entered = mEntered.get() ) < mExpected ) {
+            Thread.yield();
+        }
+        return entered;
+    }
+
+    private static final class WorkingListener implements ResponseListener {
+        private final AtomicInteger mEntered;
+        private final long mWorkNanos;
+
+        WorkingListener( AtomicInteger entered, long workNanos ) {
+            mEntered = entered;
+            mWorkNanos = workNanos;
+        }
+
+        @Override
+        public void handleResponse( DeviceResponse response, Robot robot ) {
+
+        }
+
+        @Override
+        public void handleStringResponse( String stringResponse, Robot robot ) {
+
+        }
+
+        @Override
+        public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+            mEntered.incrementAndGet();
+            long end = System.nanoTime() + mWorkNanos;
+            while( System.nanoTime() - end < 0 ) {
+                // Stands in for a listener's own work
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.AsyncMessageFactory;
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.internal.MainProcessorSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the same recorded sensor stream, cut into 20 byte Bluetooth LE notifications, through the SDK's framer and
+ * through {@link PacketFramer}.
+ *
+ * Every invocation handles the next notification, so the scores are per notification; every other one
+ * completes a packet with the corpus' mask. The cases are:
+ *
+ *   sdkProcessRawData        MainProcessorSession#processRawData, which frames and then builds the async message
+ *   packetFramer             PacketFramer alone, framing in place without building anything
+ *   packetFramerWithFactory  PacketFramer handing each packet to AsyncMessageFactory, the same work as the SDK case
+ *
+ * The SDK and packetFramerWithFactory cases produce the same messages, so their difference is the cost of the SDK's
+ * leftover buffer and its copies.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FramerBenchmark {
+
+    // Bluetooth LE notifications carry 20 bytes
+    private static final int NOTIFICATION_LENGTH = 20;
+
+    private byte[][] mNotifications;
+    private int mNext;
+
+    // The SDK's global streaming format, restored after the trial
+    private long mSavedMask;
+    private int mSavedPacketFrames;
+
+    private MainProcessorSession mSession;
+    private PacketFramer mFramer;
+    private PacketFramer mDecodingFramer;
+    private AsyncMessageFactory mFactory;
+
+    // Written by the listeners so their work stays observable
+    private int mPacketCount;
+    private Object mLastMessage;
+
+    @Setup
+    public void setUp() {
+        byte[] stream = PacketCorpus.get().sensorStream;
+        // Each notification arrives in its own array, as the Bluetooth stack hands them over
+        mNotifications = new byte[( stream.length + NOTIFICATION_LENGTH - 1 ) / NOTIFICATION_LENGTH][];
+        for( int i = 0; i < mNotifications.length; i++ ) {
+            int offset = i * NOTIFICATION_LENGTH;
+            mNotifications[i] = new byte[Math.min( NOTIFICATION_LENGTH, stream.length - offset )];
+            System.arraycopy( stream, offset, mNotifications[i], 0, mNotifications[i].length );
+        }
+
+        // Both framers decode with the format of the last SetDataStreamingCommand built
+        mSavedMask = DeviceSensorAsyncMessage.sMask;
+        mSavedPacketFrames = DeviceSensorAsyncMessage.sPacketFrames;
+        DeviceSensorAsyncMessage.sMask = PacketCorpus.MASK;
+        DeviceSensorAsyncMessage.sPacketFrames = 1;
+
+        mSession = new MainProcessorSession( new MainProcessorSession.MainProcessorSessionDelegate() {
+            @Override
+            public void handleResponseCreated( DeviceResponse response ) {
+                mLastMessage = response;
+            }
+
+            @Override
+            public void handleAsyncMessageCreated( AsyncMessage asyncMessage ) {
+                mLastMessage = asyncMessage;
+            }
+
+            @Override
+            public void handleStringResponseCreated( String stringResponse ) {
+                mLastMessage = stringResponse;
+            }
+        } );
+
+        mFramer = new PacketFramer( new PacketFramer.PacketListener() {
+            @Override
+            public void onPacket( PacketFramer framer, boolean isAsync, int length ) {
+                mPacketCount++;
+            }
+        } );
+
+        mFactory = AsyncMessageFactory.getInstance();
+        mDecodingFramer = new PacketFramer( new PacketFramer.PacketListener() {
+            @Override
+            public void onPacket( PacketFramer framer, boolean isAsync, int length ) {
+                if( isAsync )
+                    mLastMessage = mFactory.dataFromPacket( framer.packetToByteArray() );
+            }
+        } );
+    }
+
+    @TearDown
+    public void tearDown() {
+        DeviceSensorAsyncMessage.sMask = mSavedMask;
+        DeviceSensorAsyncMessage.sPacketFrames = mSavedPacketFrames;
+    }
+
+    private byte[] nextNotification() {
+        byte[] notification = mNotifications[mNext];
+        mNext = ( mNext + 1 ) % mNotifications.length;
+        return notification;
+    }
+
+    @Benchmark
+    public Object sdkProcessRawData() {
+        mSession.processRawData( nextNotification() );
+        return mLastMessage;
+    }
+
+    @Benchmark
+    public int packetFramer() {
+        mFramer.processRawData( nextNotification() );
+        return mPacketCount;
+    }
+
+    @Benchmark
+    public Object packetFramerWithFactory() {
+        mDecodingFramer.processRawData( nextNotification() );
+        return mLastMessage;
+    }
+}
@@ -0,0 +1,131 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.utilities.SynchronousSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ListenerRegistry} with the SDK's SynchronousSet under contention.
+ *
+ * In each group, three threads keep walking 8 registered listeners, the way state changes are fired, while a fourth
+ * adds and removes a spare listener. SynchronousSet walks a copy made under its lock; the registry walks its
+ * current snapshot. The mutator pauses for mutatorPauseTokens of Blackhole#consumeCPU between changes: 0 keeps the
+ * lock as busy as possible, the other value leaves most of the time to the iterating threads.
+ *
+ * Scores are per walk and per add/remove pair, with -prof gc bytes per operation next to them.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ListenerRegistryBenchmark {
+
+    private static final int LISTENER_COUNT = 8;
+
+    public interface Listener {
+        int onEvent();
+    }
+
+    private static final class CountingListener implements Listener {
+        private final int mId;
+
+        CountingListener( int id ) {
+            mId = id;
+        }
+
+        @Override
+        public int onEvent() {
+            return mId;
+        }
+    }
+
+    @State( Scope.Group )
+    public static class SynchronousSetState {
+        final SynchronousSet<Listener> listeners = new SynchronousSet<Listener>();
+        final Listener spare = new CountingListener( -1 );
+
+        @Param( { "0", "1000" } )
+        public int mutatorPauseTokens;
+
+        @Setup
+        public void setUp() {
+            for( int i = 0; i < LISTENER_COUNT; i++ ) {
+                listeners.add( new CountingListener( i ) );
+            }
+        }
+    }
+
+    @State( Scope.Group )
+    public static class ListenerRegistryState {
+        final ListenerRegistry<Listener> listeners = new ListenerRegistry<Listener>();
+        final Listener spare = new CountingListener( -1 );
+
+        @Param( { "0", "1000" } )
+        public int mutatorPauseTokens;
+
+        @Setup
+        public void setUp() {
+            for( int i = 0; i < LISTENER_COUNT; i++ ) {
+                listeners.add( new CountingListener( i ) );
+            }
+        }
+    }
+
+    @Benchmark
+    @Group( "synchronousSet" )
+    @GroupThreads( 3 )
+    public int synchronousSetIterate( SynchronousSetState state ) {
+        int sum = 0;
+        for( Listener listener : state.listeners ) {
+            sum += listener.onEvent();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @Group( "synchronousSet" )
+    @GroupThreads( 1 )
+    public void synchronousSetAddRemove( SynchronousSetState state ) {
+        state.listeners.add( state.spare );
+        state.listeners.remove( state.spare );
+        Blackhole.consumeCPU( state.mutatorPauseTokens );
+    }
+
+    @Benchmark
+    @Group( "listenerRegistry" )
+    @GroupThreads( 3 )
+    public int listenerRegistryIterate( ListenerRegistryState state ) {
+        int sum = 0;
+        for( ListenerRegistry.Entry<Listener> entry : state.listeners.snapshot() ) {
+            Listener listener = entry.get();
+            if( listener != null )
+                sum += listener.onEvent();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @Group( "listenerRegistry" )
+    @GroupThreads( 1 )
+    public void listenerRegistryAddRemove( ListenerRegistryState state ) {
+        state.listeners.add( state.spare );
+        state.listeners.remove( state.spare );
+        Blackhole.consumeCPU( state.mutatorPauseTokens );
+    }
+}
@@ -0,0 +1,203 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.AsyncMessageFactory;
+import com.orbotix.async.CollisionDetectedAsyncData;
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.command.RollCommand;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.internal.MainProcessorSession;
+import com.orbotix.common.sensor.DeviceSensorsData;
+import com.orbotix.common.sensor.SensorFlag;
+import com.orbotix.common.utilities.binary.BitMask;
+import com.orbotix.common.utilities.binary.ByteUtil;
+import com.orbotix.macro.MacroObject;
+import com.orbotix.macro.cmd.Delay;
+import com.orbotix.macro.cmd.RGB;
+import com.orbotix.macro.cmd.Roll;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the SDK's packet parsing and encoding paths next to the sample's own decoder and orientation filter.
+ *
+ * Each invocation handles the next packet of the {@link PacketCorpus}, so the code sees a realistic mix of values.
+ * The framers are compared on the same corpus in {@link FramerBenchmark}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PacketBenchmark {
+
+    private static final long MASK = PacketCorpus.MASK;
+
+    private List<byte[]> mSensorPackets;
+    private byte[] mFrame;
+    private byte[] mCollisionPacket;
+    private int mNext;
+
+    // The SDK's global streaming format, restored after the trial
+    private long mSavedMask;
+    private int mSavedPacketFrames;
+
+    private MainProcessorSession mEncoder;
+    private MainProcessorSession mDecoder;
+    private RollCommand mRoll;
+    private AsyncMessageFactory mFactory;
+    private AsyncMessageRegistry mRegistry;
+    private BitMask<SensorFlag> mBitMask;
+    private MacroObject mMacro;
+    private byte[] mWord;
+    private SensorSample mSample;
+    private SensorFrame mSensorFrame;
+    private SensorFrameLayout mLayout;
+    private OrientationFilter mFilter;
+    private float[] mQuaternion;
+
+    @Setup
+    public void setUp() {
+        PacketCorpus corpus = PacketCorpus.get();
+        mSensorPackets = corpus.sensorPackets;
+        mFrame = corpus.sensorFrame;
+        mCollisionPacket = corpus.collisionPacket;
+
+        // The SDK decodes sensor packets with the format of the last SetDataStreamingCommand built
+        mSavedMask = DeviceSensorAsyncMessage.sMask;
+        mSavedPacketFrames = DeviceSensorAsyncMessage.sPacketFrames;
+        DeviceSensorAsyncMessage.sMask = MASK;
+        DeviceSensorAsyncMessage.sPacketFrames = 1;
+
+        mEncoder = new MainProcessorSession( new NullDelegate() );
+        mDecoder = new MainProcessorSession( new NullDelegate() );
+        mRoll = new RollCommand( 90f, 0.5f, RollCommand.State.GO );
+        mFactory = AsyncMessageFactory.getInstance();
+        mRegistry = new AsyncMessageRegistry();
+        mBitMask = new BitMask<SensorFlag>( MASK );
+
+        mMacro = new MacroObject();
+        for( int i = 0; i < 16; i++ ) {
+            mMacro.addCommand( new RGB( 255, i * 16, 0, 0 ) );
+            mMacro.addCommand( new Roll( 0.5f, i * 22, 0 ) );
+            mMacro.addCommand( new Delay( 250 ) );
+        }
+
+        mWord = new byte[4];
+        mSample = new SensorSample();
+        mSensorFrame = new SensorFrame();
+        mLayout = new SensorFrameLayout( MASK );
+        mFilter = new OrientationFilter();
+        mQuaternion = new float[4];
+    }
+
+    @TearDown
+    public void tearDown() {
+        DeviceSensorAsyncMessage.sMask = mSavedMask;
+        DeviceSensorAsyncMessage.sPacketFrames = mSavedPacketFrames;
+    }
+
+    private byte[] nextSensorPacket() {
+        byte[] packet = mSensorPackets.get( mNext );
+        mNext = ( mNext + 1 ) % mSensorPackets.size();
+        return packet;
+    }
+
+    @Benchmark
+    public int packetForCommand() {
+        return mEncoder.packetForCommand( mRoll ).length;
+    }
+
+    @Benchmark
+    public void processRawDataSensor() {
+        mDecoder.processRawData( nextSensorPacket() );
+    }
+
+    @Benchmark
+    public Object asyncMessageFactoryDataFromPacket() {
+        return mFactory.dataFromPacket( nextSensorPacket() );
+    }
+
+    @Benchmark
+    public Object asyncMessageRegistryDecode() {
+        return mRegistry.decode( nextSensorPacket() );
+    }
+
+    @Benchmark
+    public Object newDeviceSensorsData() {
+        return new DeviceSensorsData( mBitMask, mFrame );
+    }
+
+    @Benchmark
+    public Object newCollisionDetectedAsyncData() {
+        return new CollisionDetectedAsyncData( mCollisionPacket );
+    }
+
+    @Benchmark
+    public int macroObjectGenerateMacroData() {
+        return mMacro.generateMacroData().length;
+    }
+
+    @Benchmark
+    public int byteUtilConvertBytesTo32BitInt() {
+        mWord[3]++;
+        return ByteUtil.convertBytesTo32BitInt( mWord );
+    }
+
+    @Benchmark
+    public float sensorSampleDecodeAllGroups() {
+        mSample.decode( MASK, mFrame, 0, mNext++ );
+        mSample.decodeAll();
+        return mSample.getPosition().x;
+    }
+
+    @Benchmark
+    public float sensorSampleDecodeLocatorOnly() {
+        mSample.decode( MASK, mFrame, 0, mNext++ );
+        return mSample.getPosition().x;
+    }
+
+    @Benchmark
+    public void orientationFilterHandleSensorFrame() {
+        // 100 Hz frames
+        mSensorFrame.decode( mLayout, mFrame, 0, ( mNext++ ) * 10L );
+        mFilter.handleSensorFrame( mSensorFrame, null );
+    }
+
+    @Benchmark
+    public float orientationFilterGetQuaternion() {
+        mNext = ( mNext + 1 ) % 16;
+        return mFilter.getQuaternion( mFilter.getTimeStamp() + mNext, mQuaternion )[0];
+    }
+
+    static final class NullDelegate implements MainProcessorSession.MainProcessorSessionDelegate {
+        @Override
+        public void handleResponseCreated( DeviceResponse response ) {
+
+        }
+
+        @Override
+        public void handleAsyncMessageCreated( AsyncMessage asyncMessage ) {
+
+        }
+
+        @Override
+        public void handleStringResponseCreated( String stringResponse ) {
+
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.CollisionDetectedAsyncData;
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.command.ConfigureCollisionDetectionCommand;
+import com.orbotix.command.RollCommand;
+import com.orbotix.command.SetDataStreamingCommand;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.sensor.SensorFlag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Raw packets recorded once from a {@link SimulatedRobot}, so every benchmark measures the same bytes.
+ *
+ * The session streams {@link #MASK} one frame per packet, drives a little and ends with a collision.
+ */
+final class PacketCorpus {
+
+    static final long MASK = SensorFlag.ATTITUDE.longValue() | SensorFlag.ACCELEROMETER_NORMALIZED.longValue()
+                             | SensorFlag.GYRO_NORMALIZED.longValue() | SensorFlag.QUATERNION.longValue()
+                             | SensorFlag.LOCATOR.longValue() | SensorFlag.VELOCITY.longValue();
+
+    private static final int SENSOR_PACKETS = 64;
+
+    // Bytes before the payload of an async packet: SOP1, SOP2, ID_CODE and the two length bytes
+    private static final int ASYNC_HEADER_LENGTH = 5;
+
+    private static PacketCorpus sInstance;
+
+    /**
+     * Sensor packets, in the order they were streamed
+     */
+    final List<byte[]> sensorPackets;
+
+    /**
+     * The sensor packets back to back, as they arrive from the radio
+     */
+    final byte[] sensorStream;
+
+    /**
+     * The payload of the first sensor packet, one frame of {@link #MASK}
+     */
+    final byte[] sensorFrame;
+
+    final byte[] collisionPacket;
+
+    private PacketCorpus( List<byte[]> sensorPackets, byte[] collisionPacket ) {
+        this.sensorPackets = Collections.unmodifiableList( sensorPackets );
+        this.collisionPacket = collisionPacket;
+
+        int length = 0;
+        for( byte[] packet : sensorPackets ) {
+            length += packet.length;
+        }
+        sensorStream = new byte[length];
+        int offset = 0;
+        for( byte[] packet : sensorPackets ) {
+            System.arraycopy( packet, 0, sensorStream, offset, packet.length );
+            offset += packet.length;
+        }
+
+        sensorFrame = new byte[SensorSample.frameLength( MASK )];
+        System.arraycopy( sensorStream, ASYNC_HEADER_LENGTH, sensorFrame, 0, sensorFrame.length );
+    }
+
+    static synchronized PacketCorpus get() {
+        if( sInstance == null )
+            sInstance = record();
+        return sInstance;
+    }
+
+    /**
+     * Drives a simulated robot through a short session and keeps the raw packets it produced.
+     */
+    private static PacketCorpus record() {
+        final List<byte[]> sensorPackets = new ArrayList<byte[]>();
+        final byte[][] collisionPacket = new byte[1][];
+
+        // Constructing a SetDataStreamingCommand sets the SDK's global sensor mask; leave it as we found it
+        long savedMask = DeviceSensorAsyncMessage.sMask;
+        int savedPacketFrames = DeviceSensorAsyncMessage.sPacketFrames;
+        try {
+            SimulatedRobot robot = new SimulatedRobot( "Benchmark" );
+            robot.setAutoStreaming( false );
+            robot.addResponseListener( new ResponseListener() {
+                @Override
+                public void handleResponse( DeviceResponse response, Robot robot ) {
+
+                }
+
+                @Override
+                public void handleStringResponse( String stringResponse, Robot robot ) {
+
+                }
+
+                @Override
+                public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+                    if( asyncMessage instanceof CollisionDetectedAsyncData ) {
+                        synchronized( collisionPacket ) {
+                            collisionPacket[0] = asyncMessage.getPacket();
+                            collisionPacket.notifyAll();
+                        }
+                    } else {
+                        sensorPackets.add( asyncMessage.getPacket() );
+                    }
+                }
+            } );
+
+            robot.sendCommand( new ConfigureCollisionDetectionCommand( ConfigureCollisionDetectionCommand.DEFAULT_DETECTION_METHOD,
+                                                                       45, 110, 45, 110, 100 ) );
+            robot.sendCommand( new SetDataStreamingCommand( 10, 1, MASK, 0 ) );
+            robot.sendCommand( new RollCommand( 45f, 0.4f, RollCommand.State.GO ) );
+            for( int i = 0; i < SENSOR_PACKETS; i++ ) {
+                robot.emitSensorPacket();
+            }
+            robot.simulateCollision( 1.2f, 0.4f );
+
+            // Collisions are delivered on the simulator's thread
+            synchronized( collisionPacket ) {
+                long deadline = System.currentTimeMillis() + 1000;
+                while( collisionPacket[0] == null && System.currentTimeMillis() < deadline ) {
+                    try {
+                        collisionPacket.wait( 10 );
+                    } catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            robot.disconnect();
+        } finally {
+            DeviceSensorAsyncMessage.sMask = savedMask;
+            DeviceSensorAsyncMessage.sPacketFrames = savedPacketFrames;
+        }
+
+        if( collisionPacket[0] == null )
+            throw new IllegalStateException( "The simulator did not report the collision" );
+        return new PacketCorpus( sensorPackets, collisionPacket[0] );
+    }
+}
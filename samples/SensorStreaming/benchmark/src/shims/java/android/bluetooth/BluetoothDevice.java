@@ -0,0 +1,23 @@
+package android.bluetooth;
+
+/**
+ * Desktop stand-in for a remote Bluetooth device, which only carries a name and an address.
+ */
+public class BluetoothDevice {
+
+    private final String mName;
+    private final String mAddress;
+
+    public BluetoothDevice( String name, String address ) {
+        mName = name;
+        mAddress = address;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+}
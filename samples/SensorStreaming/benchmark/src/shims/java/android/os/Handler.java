@@ -0,0 +1,87 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Desktop stand-in for the Android handler: posts runnables to its {@link Looper}'s thread, delayed or not, and
+ * removes the ones still pending.
+ */
+public class Handler {
+
+    private final Looper mLooper;
+    private final Map<Runnable, List<ScheduledFuture<?>>> mPending = new HashMap<Runnable, List<ScheduledFuture<?>>>();
+
+    public Handler() {
+        this( Looper.myLooper() );
+    }
+
+    public Handler( Looper looper ) {
+        if( looper == null )
+            throw new RuntimeException( "Can't create handler inside thread that has not called Looper.prepare()" );
+        mLooper = looper;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final boolean post( Runnable runnable ) {
+        return postDelayed( runnable, 0 );
+    }
+
+    public final boolean postAtTime( Runnable runnable, long uptimeMillis ) {
+        return postDelayed( runnable, uptimeMillis - SystemClock.uptimeMillis() );
+    }
+
+    public final synchronized boolean postDelayed( final Runnable runnable, long delayMillis ) {
+        final List<ScheduledFuture<?>> pending = pendingFor( runnable );
+        final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+        // The task takes this handler's lock first, so it cannot look at future[0] before it is set
+        future[0] = mLooper.getExecutor().schedule( new Runnable() {
+            @Override
+            public void run() {
+                synchronized( Handler.this ) {
+                    pending.remove( future[0] );
+                    if( pending.isEmpty() && mPending.get( runnable ) == pending )
+                        mPending.remove( runnable );
+                }
+                runnable.run();
+            }
+        }, Math.max( 0, delayMillis ), TimeUnit.MILLISECONDS );
+        pending.add( future[0] );
+        return true;
+    }
+
+    public final synchronized void removeCallbacks( Runnable runnable ) {
+        List<ScheduledFuture<?>> pending = mPending.remove( runnable );
+        if( pending == null )
+            return;
+        for( ScheduledFuture<?> future : pending )
+            future.cancel( false );
+    }
+
+    /**
+     * Only null is supported, which removes everything pending.
+     */
+    public final synchronized void removeCallbacksAndMessages( Object token ) {
+        for( List<ScheduledFuture<?>> pending : mPending.values() ) {
+            for( ScheduledFuture<?> future : pending )
+                future.cancel( false );
+        }
+        mPending.clear();
+    }
+
+    private List<ScheduledFuture<?>> pendingFor( Runnable runnable ) {
+        List<ScheduledFuture<?>> pending = mPending.get( runnable );
+        if( pending == null ) {
+            pending = new ArrayList<ScheduledFuture<?>>();
+            mPending.put( runnable, pending );
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,56 @@
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Desktop stand-in for the Android looper: a single thread that runs what its handlers post, in order.
+ *
+ * Only the main looper exists. Its thread is a daemon, so it does not keep a benchmark fork alive.
+ */
+public final class Looper {
+
+    private static final Looper sMainLooper = new Looper( "main" );
+
+    private final ScheduledExecutorService mExecutor;
+    private volatile Thread mThread;
+
+    private Looper( final String name ) {
+        mExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, name );
+                thread.setDaemon( true );
+                mThread = thread;
+                return thread;
+            }
+        } );
+        // Starts the thread so getThread() has an answer before the first post
+        mExecutor.execute( new Runnable() {
+            @Override
+            public void run() {
+
+            }
+        } );
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    /**
+     * @return The main looper when called on its thread, null on every other thread
+     */
+    public static Looper myLooper() {
+        return Thread.currentThread() == sMainLooper.mThread ? sMainLooper : null;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return mExecutor;
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+import java.io.Serializable;
+
+/**
+ * Desktop stand-in for the Android parcel. Nothing is parcelled on the desktop; it only lets the SDK's messages
+ * load.
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public void writeSerializable( Serializable value ) {
+        throw new UnsupportedOperationException( "Parcels are not available on the desktop" );
+    }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android parcelable interface, which the SDK's messages implement.
+ */
+public interface Parcelable {
+
+    int describeContents();
+
+    void writeToParcel( Parcel destination, int flags );
+}
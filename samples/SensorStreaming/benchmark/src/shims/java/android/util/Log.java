@@ -0,0 +1,46 @@
+package android.util;
+
+/**
+ * Desktop stand-in for the Android log. Debug and info messages are dropped so they do not show in timings;
+ * warnings and errors go to stderr.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int v( String tag, String message ) {
+        return 0;
+    }
+
+    public static int d( String tag, String message ) {
+        return 0;
+    }
+
+    public static int i( String tag, String message ) {
+        return 0;
+    }
+
+    public static int w( String tag, String message ) {
+        return w( tag, message, null );
+    }
+
+    public static int w( String tag, String message, Throwable throwable ) {
+        return print( "W", tag, message, throwable );
+    }
+
+    public static int e( String tag, String message ) {
+        return e( tag, message, null );
+    }
+
+    public static int e( String tag, String message, Throwable throwable ) {
+        return print( "E", tag, message, throwable );
+    }
+
+    private static int print( String level, String tag, String message, Throwable throwable ) {
+        System.err.println( level + "/" + tag + ": " + message );
+        if( throwable != null )
+            throwable.printStackTrace();
+        return 0;
+    }
+}
@@ -0,0 +1,42 @@
+package android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Desktop stand-in for the Android sparse array, backed by a HashMap. It boxes its keys, which the real one does not,
+ * so allocation figures for code using it are slightly higher than on a device.
+ */
+public class SparseArray<E> {
+
+    private final Map<Integer, E> mValues = new HashMap<Integer, E>();
+
+    public E get( int key ) {
+        return mValues.get( key );
+    }
+
+    public E get( int key, E valueIfKeyNotFound ) {
+        E value = mValues.get( key );
+        return value == null ? valueIfKeyNotFound : value;
+    }
+
+    public void put( int key, E value ) {
+        mValues.put( key, value );
+    }
+
+    public void delete( int key ) {
+        mValues.remove( key );
+    }
+
+    public void remove( int key ) {
+        mValues.remove( key );
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    public void clear() {
+        mValues.clear();
+    }
+}
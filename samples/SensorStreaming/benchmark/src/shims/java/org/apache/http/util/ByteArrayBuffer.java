@@ -0,0 +1,47 @@
+package org.apache.http.util;
+
+import java.util.Arrays;
+
+/**
+ * Desktop stand-in for the growable byte buffer Android bundles from Apache HttpCore, which the SDK's macros are
+ * built with.
+ */
+public final class ByteArrayBuffer {
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public ByteArrayBuffer( int capacity ) {
+        if( capacity < 0 )
+            throw new IllegalArgumentException( "Buffer capacity may not be negative" );
+        mBuffer = new byte[capacity];
+    }
+
+    public void append( int b ) {
+        ensureCapacity( mLength + 1 );
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    public void append( byte[] bytes, int offset, int length ) {
+        if( bytes == null )
+            return;
+        if( offset < 0 || length < 0 || offset + length > bytes.length )
+            throw new IndexOutOfBoundsException( "off: " + offset + " len: " + length + " b.length: " + bytes.length );
+        ensureCapacity( mLength + length );
+        System.arraycopy( bytes, offset, mBuffer, mLength, length );
+        mLength += length;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf( mBuffer, mLength );
+    }
+
+    private void ensureCapacity( int capacity ) {
+        if( capacity > mBuffer.length )
+            mBuffer = Arrays.copyOf( mBuffer, Math.max( capacity, mBuffer.length << 1 ) );
+    }
+}
@@ -0,0 +1,375 @@
+package com.orbotix.sensorstreaming;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.orbotix.command.SetDataStreamingCommand;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.subsystem.SensorControl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams sensors at the highest rate the link actually delivers, instead of one fixed StreamingRate.
+ *
+ * SensorControl#enableSensors sends a single SetDataStreamingCommand and never looks at what arrives. With many
+ * sensors at 400 Hz a Bluetooth LE link drops packets without telling anyone. This controller sends the streaming
+ * command itself and watches the sensor packets that come back. Once per evaluation window, ended by a timer so
+ * that a window without any packets counts too, it compares the frames received with the frames the robot was asked
+ * for:
+ *
+ *   - if fewer than {@link #LOSS_THRESHOLD} arrived, it steps down to the next lower rate, and that rate is not
+ *     tried again for a hold time that doubles every time it fails
+ *   - after {@link #STEP_UP_WINDOWS} windows in a row with at least {@link #HEALTHY_THRESHOLD} delivered, it tries
+ *     the next higher rate
+ *
+ * Each rate packs as many frames into a packet as needed to stay under the packet rate limit, which cuts per packet
+ * overhead at high rates. Frames per packet are capped so a packet's length byte stays below 0x80, because the
+ * SDK decodes longer sensor packets as plain AsyncMessages.
+ *
+ * Register the controller as a response listener on the robot, then call {@link #start(long)} instead of
+ * enableSensors. Do not use SensorControl for streaming at the same time. Throughput is reported to the
+ * {@link Listener} after every window, on the handler's thread and without holding the controller's lock.
+ */
+public class AdaptiveStreamingController implements ResponseListener {
+
+    /**
+     * Receives throughput reports
+     */
+    public interface Listener {
+        /**
+         * Called at the end of every evaluation window.
+         * @param rateChanged True if the controller has just switched to a different rate
+         */
+        void handleStreamingUpdate( AdaptiveStreamingController controller, boolean rateChanged );
+    }
+
+    /**
+     * Below this share of the requested frames, the rate is lowered
+     */
+    public static final float LOSS_THRESHOLD = 0.9f;
+
+    /**
+     * At or above this share of the requested frames, a window counts as healthy
+     */
+    public static final float HEALTHY_THRESHOLD = 0.97f;
+
+    public static final int STEP_UP_WINDOWS = 3;
+
+    private static final int DEFAULT_SENSOR_CLOCK = 400;
+    private static final long DEFAULT_WINDOW_MILLIS = 1000;
+    private static final int DEFAULT_MAX_PACKET_RATE = 50;
+
+    // Packets sent at the old rate are still arriving right after a change
+    private static final long SETTLE_MILLIS = 300;
+
+    // A window must span at least this many packets, so slow rates are not judged on a handful of arrivals
+    private static final int MIN_PACKETS_PER_WINDOW = 10;
+
+    private static final long MIN_HOLD_MILLIS = 5000;
+    private static final long MAX_HOLD_MILLIS = 120000;
+
+    // SOP1 SOP2 ID_CODE DLEN_MSB DLEN_LSB ... CHK
+    private static final int PACKET_OVERHEAD = 6;
+    private static final int ID_OFFSET = 2;
+    private static final int MAX_DATA_LENGTH = 0x7F;
+
+    private final Robot mRobot;
+    private final Handler mHandler;
+    private final Runnable mWindowTimer = new Runnable() {
+        @Override
+        public void run() {
+            onWindowTimer();
+        }
+    };
+    private final int[] mRates;
+    private final long[] mHoldUntil;
+    private final long[] mHoldMillis;
+    private final long mWindowMillis;
+    private final int mMaxPacketRate;
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    private int mSensorClock = DEFAULT_SENSOR_CLOCK;
+    private long mMask;
+    private int mFrameLength;
+    private boolean mStreaming;
+
+    private int mLevel;
+    private int mFramesPerPacket;
+    private float mFrameRateRequested;
+    private int mHealthyWindows;
+
+    // Current window
+    private long mWindowStart;
+    private long mWindowFrames;
+    private long mWindowBytes;
+    private long mLastPacketTime;
+    private long mMaxGap;
+
+    // Results of the last complete window
+    private float mFrameRate;
+    private float mByteRate;
+    private float mDeliveryRatio;
+    private long mLastMaxGap;
+
+    /**
+     * Adapts between 10 and 400 Hz.
+     */
+    public AdaptiveStreamingController( Robot robot ) {
+        this( robot, SensorControl.StreamingRate.STREAMING_RATE10, SensorControl.StreamingRate.STREAMING_RATE400,
+              DEFAULT_MAX_PACKET_RATE );
+    }
+
+    /**
+     * @param minRate The lowest rate to fall back to
+     * @param maxRate The highest rate to try
+     * @param maxPacketRate The most sensor packets per second to ask for; higher sample rates put several frames
+     *                      in each packet
+     */
+    public AdaptiveStreamingController( Robot robot, SensorControl.StreamingRate minRate,
+                                        SensorControl.StreamingRate maxRate, int maxPacketRate ) {
+        this( robot, minRate, maxRate, maxPacketRate, new Handler( Looper.getMainLooper() ) );
+    }
+
+    /**
+     * @param handler The handler windows are ended and listeners called on
+     */
+    public AdaptiveStreamingController( Robot robot, SensorControl.StreamingRate minRate,
+                                        SensorControl.StreamingRate maxRate, int maxPacketRate, Handler handler ) {
+        if( minRate.getValue() <= 0 || maxRate.getValue() < minRate.getValue() )
+            throw new IllegalArgumentException( "Invalid rate range " + minRate + " - " + maxRate );
+        if( maxPacketRate <= 0 )
+            throw new IllegalArgumentException( "maxPacketRate must be positive: " + maxPacketRate );
+
+        List<Integer> rates = new ArrayList<Integer>();
+        for( SensorControl.StreamingRate rate : SensorControl.StreamingRate.values() ) {
+            int value = rate.getValue();
+            if( value >= minRate.getValue() && value <= maxRate.getValue() )
+                rates.add( value );
+        }
+        mRates = new int[rates.size()];
+        for( int i = 0; i < mRates.length; i++ ) {
+            mRates[i] = rates.get( i );
+        }
+        mHoldUntil = new long[mRates.length];
+        mHoldMillis = new long[mRates.length];
+
+        mRobot = robot;
+        mHandler = handler;
+        mWindowMillis = DEFAULT_WINDOW_MILLIS;
+        mMaxPacketRate = maxPacketRate;
+    }
+
+    public synchronized void addListener( Listener listener ) {
+        if( listener != null && !mListeners.contains( listener ) )
+            mListeners.add( listener );
+    }
+
+    public synchronized void removeListener( Listener listener ) {
+        mListeners.remove( listener );
+    }
+
+    /**
+     * Sets the rate the robot samples its sensors at, which the streaming divisor is applied to. It depends on the
+     * model; SensorControl uses 420 Hz for model number 2, 390 Hz for model 3 and 400 Hz otherwise. Takes effect on
+     * the next rate change.
+     */
+    public synchronized void setSensorClock( int hz ) {
+        if( hz <= 0 )
+            throw new IllegalArgumentException( "hz must be positive: " + hz );
+        mSensorClock = hz;
+    }
+
+    /**
+     * Starts streaming the sensors in the mask at the lowest rate and works upwards from there.
+     */
+    public synchronized void start( long mask ) {
+        mMask = mask;
+        mFrameLength = Long.bitCount( mask ) * 2;
+        if( mFrameLength == 0 || mFrameLength + 1 > MAX_DATA_LENGTH )
+            throw new IllegalArgumentException( "Cannot stream mask " + Long.toHexString( mask ) );
+        for( int i = 0; i < mRates.length; i++ ) {
+            mHoldUntil[i] = 0;
+            mHoldMillis[i] = MIN_HOLD_MILLIS;
+        }
+        mStreaming = true;
+        setLevel( 0 );
+    }
+
+    /**
+     * Stops streaming.
+     */
+    public synchronized void stop() {
+        if( !mStreaming )
+            return;
+        mStreaming = false;
+        mHandler.removeCallbacks( mWindowTimer );
+        mRobot.sendCommand( new SetDataStreamingCommand( 1, 1, 0L, 0 ) );
+    }
+
+    public synchronized boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * @return The nominal rate currently requested from the robot, in Hz
+     */
+    public synchronized int getRate() {
+        return mRates[mLevel];
+    }
+
+    public synchronized int getFramesPerPacket() {
+        return mFramesPerPacket;
+    }
+
+    /**
+     * @return Frames per second received in the last complete window
+     */
+    public synchronized float getEffectiveFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return Packet bytes per second received in the last complete window
+     */
+    public synchronized float getEffectiveByteRate() {
+        return mByteRate;
+    }
+
+    /**
+     * @return The share of requested frames that arrived in the last complete window
+     */
+    public synchronized float getDeliveryRatio() {
+        return mDeliveryRatio;
+    }
+
+    /**
+     * @return The longest time between two sensor packets in the last complete window, in milliseconds
+     */
+    public synchronized long getMaxGap() {
+        return mLastMaxGap;
+    }
+
+    @Override
+    public void handleResponse( DeviceResponse response, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleStringResponse( String stringResponse, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+        byte[] packet = asyncMessage.getPacket();
+        // Read the packet itself, since longer sensor packets are not decoded as DeviceSensorAsyncMessages
+        if( packet == null || packet.length <= PACKET_OVERHEAD
+            || packet[ID_OFFSET] != AsyncMessage.Type.SensorAsyncMessage.getValue() )
+            return;
+        onSensorPacket( packet.length, SystemClock.elapsedRealtime() );
+    }
+
+    private synchronized void onSensorPacket( int length, long now ) {
+        if( !mStreaming || now < mWindowStart )
+            return;
+
+        if( mWindowFrames > 0 )
+            mMaxGap = Math.max( mMaxGap, now - mLastPacketTime );
+        mLastPacketTime = now;
+        mWindowFrames += ( length - PACKET_OVERHEAD ) / mFrameLength;
+        mWindowBytes += length;
+    }
+
+    private void onWindowTimer() {
+        boolean rateChanged;
+        List<Listener> listeners;
+        synchronized( this ) {
+            if( !mStreaming )
+                return;
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - mWindowStart;
+            long windowLength = getWindowLength();
+            if( elapsed < windowLength ) {
+                mHandler.postDelayed( mWindowTimer, windowLength - elapsed );
+                return;
+            }
+            rateChanged = endWindow( now, elapsed );
+            listeners = new ArrayList<Listener>( mListeners );
+        }
+        for( Listener listener : listeners ) {
+            listener.handleStreamingUpdate( this, rateChanged );
+        }
+    }
+
+    // The methods below must be called while holding the lock
+
+    /**
+     * @return How long the current window lasts, at least long enough for {@link #MIN_PACKETS_PER_WINDOW} packets
+     */
+    private long getWindowLength() {
+        long packetInterval = (long) ( 1000f * mFramesPerPacket / mFrameRateRequested );
+        return Math.max( mWindowMillis, MIN_PACKETS_PER_WINDOW * packetInterval );
+    }
+
+    /**
+     * @return True if the rate was changed
+     */
+    private boolean endWindow( long now, long elapsed ) {
+        // The silence since the last packet counts, even if no packet ends it
+        mMaxGap = Math.max( mMaxGap, now - ( mWindowFrames > 0 ? mLastPacketTime : mWindowStart ) );
+        mFrameRate = mWindowFrames * 1000f / elapsed;
+        mByteRate = mWindowBytes * 1000f / elapsed;
+        mDeliveryRatio = Math.min( 1f, mFrameRate / mFrameRateRequested );
+        mLastMaxGap = mMaxGap;
+
+        boolean rateChanged = false;
+        if( mDeliveryRatio < LOSS_THRESHOLD && mLevel > 0 ) {
+            // Back off from this rate for longer every time it fails
+            mHoldUntil[mLevel] = now + mHoldMillis[mLevel];
+            mHoldMillis[mLevel] = Math.min( MAX_HOLD_MILLIS, mHoldMillis[mLevel] * 2 );
+            setLevel( mLevel - 1 );
+            rateChanged = true;
+        } else if( mDeliveryRatio >= HEALTHY_THRESHOLD ) {
+            mHoldMillis[mLevel] = MIN_HOLD_MILLIS;
+            if( ++mHealthyWindows >= STEP_UP_WINDOWS && mLevel + 1 < mRates.length
+                && now >= mHoldUntil[mLevel + 1] ) {
+                setLevel( mLevel + 1 );
+                rateChanged = true;
+            } else {
+                startWindow( now );
+            }
+        } else {
+            mHealthyWindows = 0;
+            startWindow( now );
+        }
+        return rateChanged;
+    }
+
+    private void setLevel( int level ) {
+        mLevel = level;
+        int rate = mRates[level];
+        int maxFrames = Math.max( 1, ( MAX_DATA_LENGTH - 1 ) / mFrameLength );
+        mFramesPerPacket = Math.max( 1, Math.min( maxFrames, ( rate + mMaxPacketRate - 1 ) / mMaxPacketRate ) );
+        mHealthyWindows = 0;
+
+        int divisor = Math.max( 1, mSensorClock / rate );
+        mFrameRateRequested = (float) mSensorClock / divisor;
+        mRobot.sendCommand( new SetDataStreamingCommand( divisor, mFramesPerPacket, mMask, 0 ) );
+        startWindow( SystemClock.elapsedRealtime() + SETTLE_MILLIS );
+    }
+
+    private void startWindow( long start ) {
+        mWindowStart = start;
+        mWindowFrames = 0;
+        mWindowBytes = 0;
+        mMaxGap = 0;
+        mHandler.removeCallbacks( mWindowTimer );
+        mHandler.postDelayed( mWindowTimer, start - SystemClock.elapsedRealtime() + getWindowLength() );
+    }
+}
@@ -0,0 +1,179 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.AsyncMessageFactory;
+import com.orbotix.async.CollisionDetectedAsyncData;
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.async.Level1DiagnosticsAsyncData;
+import com.orbotix.async.MacroEmitMarker;
+import com.orbotix.async.SelfLevelCompleteAsyncData;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.ovalcompiler.response.async.OvalDeviceBroadcast;
+import com.orbotix.ovalcompiler.response.async.OvalErrorBroadcast;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Turns framed async packets into message objects through a table indexed by the packet's ID code.
+ *
+ * {@link AsyncMessageFactory} looks up a Class for each packet and instantiates it reflectively, and every caller
+ * first goes through its synchronized getInstance(). Here each ID code maps straight to a {@link Decoder} that
+ * calls the message constructor itself, and the table is read without locking, so decoding a streamed packet
+ * costs one array read and the constructor.
+ *
+ * Decoders for the SDK's public message types are registered up front. Apps can add or replace decoders for any ID
+ * code, for example to parse their own Oval broadcasts into a richer type. IDs without a decoder, including the
+ * SDK types whose constructors are not public, are passed on to {@link AsyncMessageFactory}.
+ *
+ * Decode and failure counts are kept per ID code.
+ */
+public class AsyncMessageRegistry {
+
+    /**
+     * Builds a message from a complete async packet
+     */
+    public interface Decoder {
+        /**
+         * @param packet The packet, from SOP1 through the checksum
+         */
+        AsyncMessage decode( byte[] packet );
+    }
+
+    private static final int ID_COUNT = 256;
+
+    // SOP1, SOP2, ID_CODE
+    private static final int ID_OFFSET = 2;
+
+    private final AtomicReferenceArray<Decoder> mDecoders = new AtomicReferenceArray<Decoder>( ID_COUNT );
+    private final AtomicLongArray mDecodeCounts = new AtomicLongArray( ID_COUNT );
+    private final AtomicLongArray mFailureCounts = new AtomicLongArray( ID_COUNT );
+
+    private final AsyncMessageFactory mFallback = AsyncMessageFactory.getInstance();
+
+    /**
+     * Creates a registry with decoders for the SDK's public message types.
+     */
+    public AsyncMessageRegistry() {
+        register( AsyncMessage.Type.SensorAsyncMessage, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new DeviceSensorAsyncMessage( packet );
+            }
+        } );
+        register( AsyncMessage.Type.CollisionDetected, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new CollisionDetectedAsyncData( packet );
+            }
+        } );
+        register( AsyncMessage.Type.L1DiagnosticAsyncMessage, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new Level1DiagnosticsAsyncData( packet );
+            }
+        } );
+        register( AsyncMessage.Type.MacroEmitMarker, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new MacroEmitMarker( packet );
+            }
+        } );
+        register( AsyncMessage.Type.SelfLevelComplete, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new SelfLevelCompleteAsyncData( packet );
+            }
+        } );
+        register( AsyncMessage.Type.OvalErrorBroadcast, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new OvalErrorBroadcast( packet );
+            }
+        } );
+        register( AsyncMessage.Type.OvalDeviceBroadcast, new Decoder() {
+            @Override
+            public AsyncMessage decode( byte[] packet ) {
+                return new OvalDeviceBroadcast( packet );
+            }
+        } );
+    }
+
+    /**
+     * Sets the decoder for a message type.
+     * @return The decoder it replaced, or null
+     */
+    public Decoder register( AsyncMessage.Type type, Decoder decoder ) {
+        return register( type.getValue() & 0xFF, decoder );
+    }
+
+    /**
+     * Sets the decoder for an ID code, including codes the SDK does not know about.
+     * @param idCode The ID code, 0 - 255
+     * @param decoder The decoder, or null to fall back to {@link AsyncMessageFactory}
+     * @return The decoder it replaced, or null
+     */
+    public Decoder register( int idCode, Decoder decoder ) {
+        if( idCode < 0 || idCode >= ID_COUNT )
+            throw new IllegalArgumentException( "idCode must be in [0, 255]: " + idCode );
+        return mDecoders.getAndSet( idCode, decoder );
+    }
+
+    public Decoder unregister( int idCode ) {
+        return register( idCode, null );
+    }
+
+    public Decoder getDecoder( int idCode ) {
+        return mDecoders.get( idCode );
+    }
+
+    /**
+     * Decodes a complete async packet. A decoder that throws is counted as a failure and, like the SDK, the packet
+     * is returned as a plain {@link AsyncMessage}.
+     * @return The message, or null if the packet is too short to carry an ID code
+     */
+    public AsyncMessage decode( byte[] packet ) {
+        if( packet == null || packet.length <= ID_OFFSET )
+            return null;
+        int idCode = packet[ID_OFFSET] & 0xFF;
+        mDecodeCounts.incrementAndGet( idCode );
+
+        Decoder decoder = mDecoders.get( idCode );
+        if( decoder == null )
+            return mFallback.dataFromPacket( packet );
+        try {
+            return decoder.decode( packet );
+        } catch( RuntimeException e ) {
+            mFailureCounts.incrementAndGet( idCode );
+            return new AsyncMessage( packet );
+        }
+    }
+
+    /**
+     * @return How many packets with the ID code were decoded
+     */
+    public long getDecodeCount( int idCode ) {
+        return mDecodeCounts.get( idCode );
+    }
+
+    public long getDecodeCount( AsyncMessage.Type type ) {
+        return getDecodeCount( type.getValue() & 0xFF );
+    }
+
+    /**
+     * @return How many packets with the ID code made their decoder throw
+     */
+    public long getFailureCount( int idCode ) {
+        return mFailureCounts.get( idCode );
+    }
+
+    public long getFailureCount( AsyncMessage.Type type ) {
+        return getFailureCount( type.getValue() & 0xFF );
+    }
+
+    public void resetCounts() {
+        for( int i = 0; i < ID_COUNT; i++ ) {
+            mDecodeCounts.set( i, 0 );
+            mFailureCounts.set( i, 0 );
+        }
+    }
+}
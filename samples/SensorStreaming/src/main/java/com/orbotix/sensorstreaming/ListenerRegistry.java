@@ -0,0 +1,170 @@
+package com.orbotix.sensorstreaming;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+
+/**
+ * A listener set built for frequent iteration from one thread while other threads add and remove listeners.
+ *
+ * Adding and removing is O(1) and only marks the current snapshot as stale. {@link #snapshot()} hands out an
+ * immutable array of entries, rebuilt at most once per change, so walking the listeners for every streamed packet
+ * allocates nothing and never waits for a lock held by a caller that is busy iterating.
+ *
+ * Listeners can be held weakly, so an Activity that forgets to unregister does not keep itself, or the robot it
+ * listens to, alive. Entries whose listener has been collected return null from {@link Entry#get()} and are
+ * dropped on the next change or rebuild.
+ *
+ * @param <T> The listener type
+ */
+public class ListenerRegistry<T> {
+
+    /**
+     * A registered listener, held either strongly or weakly.
+     */
+    public static final class Entry<T> {
+        private final T mStrong;
+        private final Key mKey;
+
+        private Entry( T listener, boolean weak, ReferenceQueue<Object> queue ) {
+            mStrong = weak ? null : listener;
+            mKey = new Key( listener, weak ? queue : null );
+        }
+
+        /**
+         * @return The listener, or null if it was held weakly and has been garbage collected
+         */
+        @SuppressWarnings( "unchecked" )
+        public T get() {
+            return mStrong != null ? mStrong : (T) mKey.get();
+        }
+
+        public boolean isWeak() {
+            return mStrong == null;
+        }
+    }
+
+    private static final Entry<?>[] NO_ENTRIES = new Entry<?>[0];
+
+    // Insertion ordered, so snapshots list listeners in the order they were added, as SynchronousSet does
+    private final LinkedHashMap<Key, Entry<T>> mEntries = new LinkedHashMap<Key, Entry<T>>();
+    private final ReferenceQueue<Object> mCollected = new ReferenceQueue<Object>();
+
+    private volatile Entry<T>[] mSnapshot = emptySnapshot();
+
+    /**
+     * Adds a listener that is held strongly. Adding a listener that is already registered has no effect.
+     */
+    public void add( T listener ) {
+        add( listener, false );
+    }
+
+    /**
+     * Adds a listener that is held weakly, so it must be referenced elsewhere for as long as it should be called.
+     */
+    public void addWeak( T listener ) {
+        add( listener, true );
+    }
+
+    public synchronized void remove( T listener ) {
+        if( listener == null )
+            return;
+        expungeCollected();
+        if( mEntries.remove( new Key( listener, null ) ) != null ) {
+            mSnapshot = null;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mSnapshot = emptySnapshot();
+    }
+
+    public synchronized boolean contains( T listener ) {
+        return listener != null && mEntries.containsKey( new Key( listener, null ) );
+    }
+
+    public synchronized int size() {
+        expungeCollected();
+        return mEntries.size();
+    }
+
+    public boolean isEmpty() {
+        return snapshot().length == 0;
+    }
+
+    /**
+     * @return An immutable array of the registered listeners, in the order they were added. Do not modify it;
+     *         skip entries whose {@link Entry#get()} returns null.
+     */
+    public Entry<T>[] snapshot() {
+        Entry<T>[] snapshot = mSnapshot;
+        if( snapshot != null )
+            return snapshot;
+
+        synchronized( this ) {
+            expungeCollected();
+            if( mSnapshot == null ) {
+                mSnapshot = mEntries.isEmpty() ? emptySnapshot() : mEntries.values().toArray( emptySnapshot() );
+            }
+            return mSnapshot;
+        }
+    }
+
+    private synchronized void add( T listener, boolean weak ) {
+        if( listener == null )
+            return;
+        expungeCollected();
+        Key key = new Key( listener, null );
+        if( mEntries.containsKey( key ) )
+            return;
+        Entry<T> entry = new Entry<T>( listener, weak, mCollected );
+        mEntries.put( entry.mKey, entry );
+        mSnapshot = null;
+    }
+
+    // Caller must hold the lock
+    private void expungeCollected() {
+        Reference<?> collected;
+        while( ( collected = mCollected.poll() ) != null ) {
+            if( mEntries.remove( collected ) != null ) {
+                mSnapshot = null;
+            }
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private Entry<T>[] emptySnapshot() {
+        return (Entry<T>[]) NO_ENTRIES;
+    }
+
+    /**
+     * Identity key for a listener. The key is also the weak reference of a weak entry and is queued when the
+     * listener is collected, so the entry can be removed from the map in O(1). Strong entries keep their listener
+     * reachable through {@link Entry}, so their key is never cleared.
+     */
+    private static final class Key extends WeakReference<Object> {
+        private final int mHash;
+
+        Key( Object listener, ReferenceQueue<Object> queue ) {
+            super( listener, queue );
+            mHash = System.identityHashCode( listener );
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals( Object other ) {
+            if( this == other )
+                return true;
+            if( !( other instanceof Key ) )
+                return false;
+            Object referent = get();
+            return referent != null && referent == ( (Key) other ).get();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.orbotix.sensorstreaming;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.MainProcessorState;
+import com.orbotix.common.internal.RadioConnectionState;
+import com.orbotix.common.internal.RadioLink;
+import com.orbotix.common.internal.RadioLinkSessionListener;
+import com.orbotix.common.internal.RadioLinkStateChangedListener;
+
+/**
+ * A radio link that talks to a {@link SimulatedRobot} instead of a Bluetooth radio.
+ *
+ * Everything above the radio is the SDK's own code: RadioLink#sendCommand encodes the command with the link's
+ * MainProcessorSession and queues it on the link's command thread, which hands it to
+ * {@link #sendCommandInternal(DeviceCommand)}. There the encoded packet goes to the simulator as if it had been
+ * written to the robot, and the bytes the simulator answers with are passed to RadioLink#processRawData, which
+ * decodes them and reports them to the robot like data read from the radio. Response matching, connection and main
+ * processor state, sleep handling and the command queue all behave as they do with a real link.
+ *
+ * RadioLink#getName and #getAddress are final and read the BluetoothDevice, so the link still needs one. On a phone,
+ * BluetoothAdapter#getRemoteDevice(String) creates one for any address without connecting to it. See
+ * {@link LoopbackRobot}.
+ */
+public class LoopbackRadioLink extends RadioLink {
+
+    private final SimulatedRobot mFirmware;
+
+    /**
+     * @param device Provides the name and address the link reports
+     * @param sessionListener Receives the decoded responses and async messages
+     * @param stateListener Receives the connection changes
+     */
+    public LoopbackRadioLink( BluetoothDevice device, RadioLinkSessionListener sessionListener,
+                              RadioLinkStateChangedListener stateListener ) {
+        super( device, sessionListener, stateListener );
+        mFirmware = new SimulatedRobot( device.getAddress(), new SimulatedRobot.PacketSink() {
+            @Override
+            public void handlePacket( byte[] packet ) {
+                processRawData( packet );
+            }
+        } );
+    }
+
+    /**
+     * @return The simulator acting as the robot, e.g. to raise collisions or emit sensor packets by hand
+     */
+    public SimulatedRobot getFirmware() {
+        return mFirmware;
+    }
+
+    /**
+     * Starts the link's command thread and connects at once. The simulator is woken up first, so the link can be
+     * opened again after it was closed.
+     */
+    @Override
+    public void open() {
+        mFirmware.connect();
+        super.open();
+        handleConnectionInitiated();
+        handleConnectionSucceeded();
+    }
+
+    @Override
+    public void close() {
+        if( getRfState() == RadioConnectionState.Offline )
+            return;
+        handleConnectionEnding();
+        mFirmware.disconnect();
+        handleConnectionClosed();
+        // The main processor has to be brought up again after a reconnect, so the robot is not Online too early
+        setMpState( MainProcessorState.Offline );
+    }
+
+    @Override
+    public String getRadioFirmwareRevision() {
+        return mFirmware.getRadioFirmwareRevision();
+    }
+
+    @Override
+    protected void sendCommandInternal( DeviceCommand command ) {
+        // RadioLink#sendCommand encoded the command, sequence number included, before queueing it
+        byte[] packet = command.getPacket();
+        handleCommandWritten();
+        mFirmware.receiveCommandPacket( packet );
+    }
+
+    @Override
+    protected void handleSleepResponse() {
+        close();
+    }
+}
@@ -0,0 +1,119 @@
+package com.orbotix.sensorstreaming;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.orbotix.command.JumpToMainCommand;
+import com.orbotix.command.SleepCommand;
+import com.orbotix.common.DiscoveryAgentProxy;
+import com.orbotix.common.RobotBase;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.MainProcessorState;
+import com.orbotix.common.internal.RadioLink;
+
+/**
+ * A robot whose radio link loops back to a {@link SimulatedRobot}, so app code runs against the SDK's own RobotBase
+ * and RadioLink without Bluetooth.
+ *
+ * Unlike SimulatedRobot used on its own, commands take the same path as on a real robot: they are queued on the
+ * link's command thread, responses are matched by the link's session, listeners are called on the main thread
+ * handler, and the robot goes through Connected and Online, reported to the discovery agent given at construction.
+ * Once the link is up the robot sends JumpToMain, as the SDK does, and the link marks the robot Online when the
+ * answer arrives.
+ *
+ * The BluetoothDevice only provides the name and address; on a phone,
+ * BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:06:66:00:00:01") makes one without connecting to it.
+ */
+public class LoopbackRobot extends RobotBase {
+
+    private final LoopbackRadioLink mLink;
+
+    public LoopbackRobot( BluetoothDevice device, DiscoveryAgentProxy agent ) {
+        this( device, agent, new Handler( Looper.getMainLooper() ) );
+    }
+
+    /**
+     * @param device Provides the name and address the robot reports
+     * @param agent Receives the robot's state changes, like a real discovery agent does
+     * @param mainThreadHandler The handler response listeners are called on
+     */
+    public LoopbackRobot( BluetoothDevice device, DiscoveryAgentProxy agent, Handler mainThreadHandler ) {
+        super( agent, mainThreadHandler );
+        mLink = new LoopbackRadioLink( device, this, this );
+    }
+
+    /**
+     * Connects the loopback link. The robot reports Connected at once and Online after its first round trip.
+     */
+    public void connect() {
+        mLink.open();
+    }
+
+    /**
+     * @return The simulator acting as the robot
+     */
+    public SimulatedRobot getFirmware() {
+        return mLink.getFirmware();
+    }
+
+    @Override
+    public void handleLinkDidConnect() {
+        super.handleLinkDidConnect();
+        // Leaving the bootloader is the first exchange with a robot; its response brings the robot Online
+        sendCommand( new JumpToMainCommand() );
+    }
+
+    @Override
+    public void sendCommand( DeviceCommand command ) {
+        mLink.sendCommand( command );
+    }
+
+    @Override
+    public void streamCommand( DeviceCommand command ) {
+        mLink.sendCommand( command );
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mLink.isConnected();
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mLink.isConnecting();
+    }
+
+    @Override
+    public boolean isOnline() {
+        return mLink.isConnected() && mLink.getMpState() == MainProcessorState.InMainApp;
+    }
+
+    @Override
+    public void disconnect() {
+        mLink.close();
+    }
+
+    @Override
+    public void sleep() {
+        sendCommand( new SleepCommand() );
+    }
+
+    /**
+     * The simulator sleeps the same way whatever the type.
+     */
+    @Override
+    public void sleep( SleepCommand.SleepType sleepType ) {
+        sleep();
+    }
+
+    @Override
+    public float getSignalQuality() {
+        return mLink.getFirmware().getSignalQuality();
+    }
+
+    @Override
+    protected RadioLink getRadioLink() {
+        return mLink;
+    }
+}
@@ -41,6 +41,9 @@ public class MainActivity extends Activity implements RobotChangedStateListener,
 
     private ConvenienceRobot mRobot;
 
+    //Fans the robot's responses out to the sample's listeners without holding the robot's lock
+    private final ResponseListenerDispatcher mDispatcher = new ResponseListenerDispatcher();
+
     private TextView mAccelX;
     private TextView mAccelY;
     private TextView mAccelZ;
@@ -157,6 +160,8 @@ public class MainActivity extends Activity implements RobotChangedStateListener,
 
         //If a robot is connected to the device, disconnect it
         if( mRobot != null ) {
+            mRobot.removeResponseListener( mDispatcher );
+            mDispatcher.clearResponseListeners();
             mRobot.disconnect();
             mRobot = null;
         }
@@ -191,8 +196,10 @@ public class MainActivity extends Activity implements RobotChangedStateListener,
                 //Enable sensors based on the flag defined above, and stream their data ten times a second to the mobile device
                 mRobot.enableSensors( sensorFlag, SensorControl.StreamingRate.STREAMING_RATE10 );
 
-                //Listen to data responses from the robot
-                mRobot.addResponseListener(this);
+                //Listen to data responses from the robot through the dispatcher, its only listener. The robot already
+                //calls its listeners on the main thread, so this activity is called inline and can update its views
+                mDispatcher.addResponseListener( this, ResponseListenerDispatcher.Delivery.INLINE );
+                mRobot.addResponseListener( mDispatcher );
 
                 break;
             }
@@ -218,13 +225,14 @@ public class MainActivity extends Activity implements RobotChangedStateListener,
         if( asyncMessage instanceof DeviceSensorAsyncMessage ) {
             DeviceSensorAsyncMessage message = (DeviceSensorAsyncMessage) asyncMessage;
 
-            if( message.getAsyncData() == null
-                    || message.getAsyncData().isEmpty()
-                    || message.getAsyncData().get( 0 ) == null )
+            List<DeviceSensorsData> frames = message.getAsyncData();
+            if( frames == null
+                    || frames.isEmpty()
+                    || frames.get( frames.size() - 1 ) == null )
                 return;
 
-            //Retrieve DeviceSensorsData from the async message
-            DeviceSensorsData data = message.getAsyncData().get( 0 );
+            //Retrieve the newest DeviceSensorsData from the async message. A packet can hold several frames, oldest first
+            DeviceSensorsData data = frames.get( frames.size() - 1 );
 
             //Extract the accelerometer data from the sensor data
             displayAccelerometer(data.getAccelerometerData());
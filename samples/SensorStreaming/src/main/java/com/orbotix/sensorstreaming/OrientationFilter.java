@@ -0,0 +1,265 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.Robot;
+import com.orbotix.common.sensor.SensorFlag;
+
+/**
+ * Fuses streamed gyro, accelerometer and quaternion values into an orientation that can be read at any time,
+ * e.g. once per display refresh, without raising the streaming rate.
+ *
+ * A complementary filter: every frame, the gyro rates are integrated into the orientation, which gives smooth
+ * short-term motion but drifts. The drift is pulled back by the slower absolute references, the tilt measured by
+ * the accelerometer (skipped while the robot accelerates) and the firmware's own quaternion when it is streamed.
+ * Between frames, {@link #getQuaternion(long, float[])} rotates the last estimate on by the last measured rate up
+ * to the requested time, so an animation at 60 Hz moves every frame even when sensors stream at 20 Hz.
+ *
+ * Register it as a {@link SensorFrameListener}, ideally on a dispatcher with a {@link SensorFrameTimestamper} so
+ * frames are evenly spaced. Frames and reads may come from different threads. Nothing is allocated per frame or
+ * per read.
+ *
+ * Quaternions are (w, x, y, z). Gyro and accelerometer are taken to share the body axes of the firmware quaternion,
+ * whose first component is w.
+ */
+public class OrientationFilter implements SensorFrameListener {
+
+    // Normalized gyro values are in tenths of a degree per second
+    private static final float GYRO_RADIANS_PER_UNIT = (float) ( Math.PI / 1800.0 );
+
+    /**
+     * How strongly the accelerometer corrects tilt, in radians per second per unit of error
+     */
+    private static final float ACCELEROMETER_GAIN = 2.0f;
+
+    // The accelerometer only measures gravity when the robot is not accelerating
+    private static final float MIN_GRAVITY = 0.85f;
+    private static final float MAX_GRAVITY = 1.15f;
+
+    /**
+     * Time constant of the pull towards the firmware quaternion, in seconds
+     */
+    private static final float QUATERNION_TIME_CONSTANT = 0.5f;
+
+    // Gaps longer than this are treated as a restart instead of being integrated
+    private static final long MAX_FRAME_GAP_MILLIS = 250;
+
+    private static final long MAX_EXTRAPOLATION_MILLIS = 100;
+
+    private final Robot mRobot;
+
+    // Estimate as of mTimeStamp
+    private float mW = 1;
+    private float mX;
+    private float mY;
+    private float mZ;
+    private boolean mInitialized;
+    private long mTimeStamp;
+
+    // Last measured body rates in radians per second
+    private float mRateX;
+    private float mRateY;
+    private float mRateZ;
+
+    // Slots of the last layout seen
+    private SensorFrameLayout mLayout;
+    private int mGyroSlot;
+    private int mAccelerometerSlot;
+    private int mQuaternionSlot;
+
+    public OrientationFilter() {
+        this( null );
+    }
+
+    /**
+     * @param robot Only frames from this robot are used, or null to use frames from any robot
+     */
+    public OrientationFilter( Robot robot ) {
+        mRobot = robot;
+    }
+
+    @Override
+    public synchronized void handleSensorFrame( SensorFrame frame, Robot robot ) {
+        if( mRobot != null && robot != mRobot )
+            return;
+
+        SensorFrameLayout layout = frame.getLayout();
+        if( layout != mLayout ) {
+            mLayout = layout;
+            mGyroSlot = layout.indexOf( SensorFlag.GYRO_NORMALIZED );
+            mAccelerometerSlot = layout.indexOf( SensorFlag.ACCELEROMETER_NORMALIZED );
+            mQuaternionSlot = layout.indexOf( SensorFlag.QUATERNION );
+        }
+        float[] values = frame.values;
+        long timeStamp = frame.getTimeStamp();
+
+        long elapsed = timeStamp - mTimeStamp;
+        if( !mInitialized || elapsed < 0 || elapsed > MAX_FRAME_GAP_MILLIS ) {
+            initialize( values, timeStamp );
+            return;
+        }
+        float dt = elapsed / 1000f;
+        mTimeStamp = timeStamp;
+
+        if( mGyroSlot >= 0 ) {
+            mRateX = values[mGyroSlot] * GYRO_RADIANS_PER_UNIT;
+            mRateY = values[mGyroSlot + 1] * GYRO_RADIANS_PER_UNIT;
+            mRateZ = values[mGyroSlot + 2] * GYRO_RADIANS_PER_UNIT;
+        }
+        float rateX = mRateX;
+        float rateY = mRateY;
+        float rateZ = mRateZ;
+
+        if( mAccelerometerSlot >= 0 ) {
+            float ax = values[mAccelerometerSlot];
+            float ay = values[mAccelerometerSlot + 1];
+            float az = values[mAccelerometerSlot + 2];
+            float norm = (float) Math.sqrt( ax * ax + ay * ay + az * az );
+            if( norm > MIN_GRAVITY && norm < MAX_GRAVITY ) {
+                ax /= norm;
+                ay /= norm;
+                az /= norm;
+                // Gravity as the estimate expects to see it in body axes
+                float vx = 2 * ( mX * mZ - mW * mY );
+                float vy = 2 * ( mW * mX + mY * mZ );
+                float vz = mW * mW - mX * mX - mY * mY + mZ * mZ;
+                // Rotating by the cross product turns the estimate towards the measured gravity
+                rateX += ACCELEROMETER_GAIN * ( ay * vz - az * vy );
+                rateY += ACCELEROMETER_GAIN * ( az * vx - ax * vz );
+                rateZ += ACCELEROMETER_GAIN * ( ax * vy - ay * vx );
+            }
+        }
+
+        // q += 0.5 * q * (0, rate) * dt
+        float halfDt = 0.5f * dt;
+        float w = mW - ( mX * rateX + mY * rateY + mZ * rateZ ) * halfDt;
+        float x = mX + ( mW * rateX + mY * rateZ - mZ * rateY ) * halfDt;
+        float y = mY + ( mW * rateY - mX * rateZ + mZ * rateX ) * halfDt;
+        float z = mZ + ( mW * rateZ + mX * rateY - mY * rateX ) * halfDt;
+        setNormalized( w, x, y, z );
+
+        if( mQuaternionSlot >= 0 ) {
+            float weight = dt / ( QUATERNION_TIME_CONSTANT + dt );
+            blendTowards( values[mQuaternionSlot], values[mQuaternionSlot + 1], values[mQuaternionSlot + 2],
+                          values[mQuaternionSlot + 3], weight );
+        }
+    }
+
+    /**
+     * @return True once a frame has been received
+     */
+    public synchronized boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * @return The time of the last frame used, in the frames' milliseconds
+     */
+    public synchronized long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    /**
+     * Writes the orientation at the given time, predicted on from the last frame with the last measured rates.
+     * @param timeMillis The time to predict for, on the same clock as the frame timestamps. Prediction stops
+     *                   100 ms after the last frame.
+     * @param out Receives w, x, y, z
+     * @return out
+     */
+    public synchronized float[] getQuaternion( long timeMillis, float[] out ) {
+        float horizon = Math.max( 0, Math.min( MAX_EXTRAPOLATION_MILLIS, timeMillis - mTimeStamp ) ) / 1000f;
+        float rateX = mRateX;
+        float rateY = mRateY;
+        float rateZ = mRateZ;
+        float rate = (float) Math.sqrt( rateX * rateX + rateY * rateY + rateZ * rateZ );
+        float angle = rate * horizon;
+        if( !mInitialized || angle < 1e-6f ) {
+            out[0] = mW;
+            out[1] = mX;
+            out[2] = mY;
+            out[3] = mZ;
+            return out;
+        }
+
+        // q * (cos(angle / 2), sin(angle / 2) * axis)
+        float s = (float) Math.sin( angle / 2 ) / rate;
+        float dw = (float) Math.cos( angle / 2 );
+        float dx = rateX * s;
+        float dy = rateY * s;
+        float dz = rateZ * s;
+        out[0] = mW * dw - mX * dx - mY * dy - mZ * dz;
+        out[1] = mW * dx + mX * dw + mY * dz - mZ * dy;
+        out[2] = mW * dy - mX * dz + mY * dw + mZ * dx;
+        out[3] = mW * dz + mX * dy - mY * dx + mZ * dw;
+        return out;
+    }
+
+    /**
+     * Converts a quaternion to yaw, pitch and roll in degrees, rotating about z, then y, then x.
+     * @param quaternion w, x, y, z
+     * @param out Receives yaw, pitch, roll
+     * @return out
+     */
+    public static float[] toYawPitchRoll( float[] quaternion, float[] out ) {
+        float w = quaternion[0];
+        float x = quaternion[1];
+        float y = quaternion[2];
+        float z = quaternion[3];
+        float sinPitch = Math.max( -1f, Math.min( 1f, 2 * ( w * y - z * x ) ) );
+        out[0] = (float) Math.toDegrees( Math.atan2( 2 * ( w * z + x * y ), 1 - 2 * ( y * y + z * z ) ) );
+        out[1] = (float) Math.toDegrees( Math.asin( sinPitch ) );
+        out[2] = (float) Math.toDegrees( Math.atan2( 2 * ( w * x + y * z ), 1 - 2 * ( x * x + y * y ) ) );
+        return out;
+    }
+
+    // The methods below must be called while holding the lock
+
+    /**
+     * Starts over from the firmware quaternion, or else from the tilt the accelerometer measures.
+     */
+    private void initialize( float[] values, long timeStamp ) {
+        mTimeStamp = timeStamp;
+        mRateX = 0;
+        mRateY = 0;
+        mRateZ = 0;
+        if( mQuaternionSlot >= 0 ) {
+            setNormalized( values[mQuaternionSlot], values[mQuaternionSlot + 1], values[mQuaternionSlot + 2],
+                           values[mQuaternionSlot + 3] );
+        } else if( mAccelerometerSlot >= 0 ) {
+            // The rotation taking (0, 0, 1) onto the measured gravity, with no yaw
+            float ax = values[mAccelerometerSlot];
+            float ay = values[mAccelerometerSlot + 1];
+            float az = values[mAccelerometerSlot + 2];
+            float norm = (float) Math.sqrt( ax * ax + ay * ay + az * az );
+            if( norm > 0 ) {
+                setNormalized( 1 + az / norm, ay / norm, -ax / norm, 0 );
+            }
+        }
+        mInitialized = true;
+    }
+
+    private void blendTowards( float w, float x, float y, float z, float weight ) {
+        // q and -q are the same rotation; blend towards the nearer one
+        if( mW * w + mX * x + mY * y + mZ * z < 0 ) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        setNormalized( mW + ( w - mW ) * weight, mX + ( x - mX ) * weight, mY + ( y - mY ) * weight,
+                       mZ + ( z - mZ ) * weight );
+    }
+
+    private void setNormalized( float w, float x, float y, float z ) {
+        float norm = (float) Math.sqrt( w * w + x * x + y * y + z * z );
+        if( norm < 1e-6f ) {
+            mW = 1;
+            mX = 0;
+            mY = 0;
+            mZ = 0;
+            return;
+        }
+        mW = w / norm;
+        mX = x / norm;
+        mY = y / norm;
+        mZ = z / norm;
+    }
+}
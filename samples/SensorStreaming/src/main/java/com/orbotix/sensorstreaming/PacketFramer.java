@@ -0,0 +1,228 @@
+package com.orbotix.sensorstreaming;
+
+/**
+ * Incremental framer for the robot-to-phone packet stream.
+ *
+ * Raw bytes are copied once into a fixed ring buffer. Start-of-packet bytes, the data length and the checksum are
+ * then checked in place, so a partial notification costs no allocation at all and a complete packet is only copied
+ * when a listener asks for it with {@link #copyPacket(byte[], int)} or {@link #packetToByteArray()}.
+ *
+ * Two packet shapes are recognised:
+ *
+ *   Response:      SOP1 SOP2(0xFF) MRSP SEQ DLEN &lt;DLEN - 1 bytes&gt; CHK
+ *   Async message: SOP1 SOP2(0xFE) ID_CODE DLEN_MSB DLEN_LSB &lt;DLEN - 1 bytes&gt; CHK
+ *
+ * Bytes that do not start a valid packet, or packets whose checksum does not match, are skipped one byte at a time
+ * until the stream lines up again.
+ */
+public class PacketFramer {
+
+    public static final int SOP1 = 0xFF;
+    public static final int SOP2_RESPONSE = 0xFF;
+    public static final int SOP2_ASYNC = 0xFE;
+
+    // SOP1, SOP2, MRSP/ID_CODE, SEQ/DLEN_MSB, DLEN/DLEN_LSB
+    private static final int HEADER_LENGTH = 5;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    public interface PacketListener {
+        /**
+         * Invoked for every complete packet with a valid checksum. The packet can be read through
+         * {@link PacketFramer#packetByteAt(int)} or copied out, but only until this method returns.
+         *
+         * @param framer The framer holding the packet
+         * @param isAsync True for an async message (SOP2 0xFE), false for a command response
+         * @param length The total packet length, including start-of-packet bytes and checksum
+         */
+        void onPacket( PacketFramer framer, boolean isAsync, int length );
+    }
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final PacketListener mListener;
+
+    // Monotonic read and write positions; the ring index is position & mMask
+    private int mReadPosition;
+    private int mWritePosition;
+
+    private int mPacketStart;
+    private int mPacketLength;
+
+    private long mPacketCount;
+    private long mDiscardedByteCount;
+    private long mChecksumFailureCount;
+
+    public PacketFramer( PacketListener listener ) {
+        this( listener, DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param listener Receives every framed packet
+     * @param capacity Ring size in bytes, rounded up to a power of two. Must hold the largest expected packet.
+     */
+    public PacketFramer( PacketListener listener, int capacity ) {
+        if( listener == null )
+            throw new IllegalArgumentException( "listener must not be null" );
+        if( capacity < HEADER_LENGTH + 1 )
+            throw new IllegalArgumentException( "capacity too small: " + capacity );
+
+        int size = Integer.highestOneBit( capacity - 1 ) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+        mListener = listener;
+    }
+
+    /**
+     * Appends freshly received bytes and delivers every packet they complete.
+     */
+    public void processRawData( byte[] data ) {
+        processRawData( data, 0, data.length );
+    }
+
+    public void processRawData( byte[] data, int offset, int length ) {
+        while( length > 0 ) {
+            int free = mBuffer.length - ( mWritePosition - mReadPosition );
+            if( free == 0 ) {
+                // A packet larger than the ring can never complete; drop the oldest byte so we can resync
+                discard( 1 );
+                continue;
+            }
+
+            int chunk = Math.min( length, free );
+            int index = mWritePosition & mMask;
+            int firstPart = Math.min( chunk, mBuffer.length - index );
+            System.arraycopy( data, offset, mBuffer, index, firstPart );
+            if( firstPart < chunk ) {
+                System.arraycopy( data, offset + firstPart, mBuffer, 0, chunk - firstPart );
+            }
+            mWritePosition += chunk;
+            offset += chunk;
+            length -= chunk;
+
+            scan();
+        }
+    }
+
+    /**
+     * Drops any buffered partial packet, e.g. after the link has been closed.
+     */
+    public void reset() {
+        mReadPosition = mWritePosition;
+        mPacketLength = 0;
+    }
+
+    /**
+     * @return The byte at the given index of the packet currently being delivered
+     */
+    public byte packetByteAt( int index ) {
+        if( index < 0 || index >= mPacketLength )
+            throw new IndexOutOfBoundsException( "index " + index + " outside packet of length " + mPacketLength );
+        return mBuffer[( mPacketStart + index ) & mMask];
+    }
+
+    /**
+     * Copies the packet currently being delivered into the destination array.
+     */
+    public void copyPacket( byte[] destination, int destinationOffset ) {
+        int index = mPacketStart & mMask;
+        int firstPart = Math.min( mPacketLength, mBuffer.length - index );
+        System.arraycopy( mBuffer, index, destination, destinationOffset, firstPart );
+        if( firstPart < mPacketLength ) {
+            System.arraycopy( mBuffer, 0, destination, destinationOffset + firstPart, mPacketLength - firstPart );
+        }
+    }
+
+    /**
+     * Copies the packet currently being delivered into a right-sized array, which is the form
+     * ResponseFactory and AsyncMessageFactory expect.
+     */
+    public byte[] packetToByteArray() {
+        byte[] packet = new byte[mPacketLength];
+        copyPacket( packet, 0 );
+        return packet;
+    }
+
+    public int getBufferedByteCount() {
+        return mWritePosition - mReadPosition;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getDiscardedByteCount() {
+        return mDiscardedByteCount;
+    }
+
+    public long getChecksumFailureCount() {
+        return mChecksumFailureCount;
+    }
+
+    private void scan() {
+        while( mWritePosition - mReadPosition >= HEADER_LENGTH ) {
+            if( byteAt( 0 ) != SOP1 ) {
+                discard( 1 );
+                continue;
+            }
+
+            int sop2 = byteAt( 1 );
+            boolean isAsync;
+            int dataLength;
+            if( sop2 == SOP2_RESPONSE ) {
+                isAsync = false;
+                dataLength = byteAt( 4 );
+            } else if( sop2 == SOP2_ASYNC ) {
+                isAsync = true;
+                dataLength = ( byteAt( 3 ) << 8 ) | byteAt( 4 );
+            } else {
+                discard( 1 );
+                continue;
+            }
+
+            if( dataLength == 0 ) {
+                discard( 1 );
+                continue;
+            }
+
+            // DLEN counts the data bytes plus the checksum, which closes the packet
+            int packetLength = HEADER_LENGTH + dataLength;
+            if( packetLength > mBuffer.length ) {
+                discard( 1 );
+                continue;
+            }
+            if( mWritePosition - mReadPosition < packetLength ) {
+                return;
+            }
+
+            int sum = 0;
+            for( int i = 2; i < packetLength - 1; i++ ) {
+                sum += byteAt( i );
+            }
+            if( ( ~sum & 0xFF ) != byteAt( packetLength - 1 ) ) {
+                mChecksumFailureCount++;
+                discard( 1 );
+                continue;
+            }
+
+            mPacketStart = mReadPosition;
+            mPacketLength = packetLength;
+            mPacketCount++;
+            try {
+                mListener.onPacket( this, isAsync, packetLength );
+            } finally {
+                mPacketLength = 0;
+                mReadPosition += packetLength;
+            }
+        }
+    }
+
+    private int byteAt( int index ) {
+        return mBuffer[( mReadPosition + index ) & mMask] & 0xFF;
+    }
+
+    private void discard( int count ) {
+        mReadPosition += count;
+        mDiscardedByteCount += count;
+    }
+}
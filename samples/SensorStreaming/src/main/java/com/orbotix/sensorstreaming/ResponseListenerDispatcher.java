@@ -0,0 +1,231 @@
+package com.orbotix.sensorstreaming;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fans robot responses out to any number of listeners without holding a lock.
+ *
+ * RobotBase copies its listener set for every message while synchronized on the robot, on the radio read thread,
+ * and then calls every listener one after the other in a single main thread post. A slow listener therefore delays
+ * all the listeners after it, and adding or removing a listener contends with the read thread. Register this
+ * dispatcher as the robot's only listener instead and add the real listeners here. Listeners live in an immutable
+ * array that is swapped atomically on add and remove, so delivery just walks the current array, and each listener
+ * picks where it runs:
+ *
+ *   INLINE           on the thread that delivered the message, the main thread behind RobotBase; for listeners
+ *                    that return quickly
+ *   DEDICATED_THREAD on a thread owned by that listener, so a slow listener only delays itself
+ *   MAIN_THREAD      posted to the main thread Handler, for listeners that touch views
+ */
+public class ResponseListenerDispatcher implements ResponseListener {
+
+    public enum Delivery {
+        INLINE,
+        DEDICATED_THREAD,
+        MAIN_THREAD
+    }
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    private final AtomicReference<Registration[]> mRegistrations = new AtomicReference<Registration[]>( NO_REGISTRATIONS );
+    private final Handler mMainThreadHandler;
+
+    public ResponseListenerDispatcher() {
+        this( new Handler( Looper.getMainLooper() ) );
+    }
+
+    /**
+     * @param mainThreadHandler The handler used for {@link Delivery#MAIN_THREAD} listeners
+     */
+    public ResponseListenerDispatcher( Handler mainThreadHandler ) {
+        mMainThreadHandler = mainThreadHandler;
+    }
+
+    /**
+     * Adds a listener that is called inline.
+     */
+    public void addResponseListener( ResponseListener listener ) {
+        addResponseListener( listener, Delivery.INLINE );
+    }
+
+    /**
+     * Adds a listener, or changes the delivery of a listener that was already added.
+     */
+    public void addResponseListener( ResponseListener listener, Delivery delivery ) {
+        if( listener == null || delivery == null )
+            return;
+
+        Registration registration = new Registration( listener, delivery, mMainThreadHandler );
+        while( true ) {
+            Registration[] current = mRegistrations.get();
+            int existing = indexOf( current, listener );
+            Registration[] updated;
+            if( existing >= 0 ) {
+                updated = current.clone();
+                updated[existing] = registration;
+            } else {
+                updated = new Registration[current.length + 1];
+                System.arraycopy( current, 0, updated, 0, current.length );
+                updated[current.length] = registration;
+            }
+            if( mRegistrations.compareAndSet( current, updated ) ) {
+                if( existing >= 0 )
+                    current[existing].shutdown();
+                return;
+            }
+        }
+    }
+
+    public void removeResponseListener( ResponseListener listener ) {
+        while( true ) {
+            Registration[] current = mRegistrations.get();
+            int existing = indexOf( current, listener );
+            if( existing < 0 )
+                return;
+
+            Registration[] updated;
+            if( current.length == 1 ) {
+                updated = NO_REGISTRATIONS;
+            } else {
+                updated = new Registration[current.length - 1];
+                System.arraycopy( current, 0, updated, 0, existing );
+                System.arraycopy( current, existing + 1, updated, existing, current.length - existing - 1 );
+            }
+            if( mRegistrations.compareAndSet( current, updated ) ) {
+                current[existing].shutdown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes every listener and stops their delivery threads.
+     */
+    public void clearResponseListeners() {
+        Registration[] removed = mRegistrations.getAndSet( NO_REGISTRATIONS );
+        for( Registration registration : removed ) {
+            registration.shutdown();
+        }
+    }
+
+    public int getListenerCount() {
+        return mRegistrations.get().length;
+    }
+
+    @Override
+    public void handleResponse( final DeviceResponse response, final Robot robot ) {
+        Registration[] registrations = mRegistrations.get();
+        for( int i = 0; i < registrations.length; i++ ) {
+            final Registration registration = registrations[i];
+            if( registration.delivery == Delivery.INLINE ) {
+                registration.listener.handleResponse( response, robot );
+            } else {
+                registration.post( new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.handleResponse( response, robot );
+                    }
+                } );
+            }
+        }
+    }
+
+    @Override
+    public void handleStringResponse( final String stringResponse, final Robot robot ) {
+        Registration[] registrations = mRegistrations.get();
+        for( int i = 0; i < registrations.length; i++ ) {
+            final Registration registration = registrations[i];
+            if( registration.delivery == Delivery.INLINE ) {
+                registration.listener.handleStringResponse( stringResponse, robot );
+            } else {
+                registration.post( new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.handleStringResponse( stringResponse, robot );
+                    }
+                } );
+            }
+        }
+    }
+
+    @Override
+    public void handleAsyncMessage( final AsyncMessage asyncMessage, final Robot robot ) {
+        Registration[] registrations = mRegistrations.get();
+        for( int i = 0; i < registrations.length; i++ ) {
+            final Registration registration = registrations[i];
+            if( registration.delivery == Delivery.INLINE ) {
+                registration.listener.handleAsyncMessage( asyncMessage, robot );
+            } else {
+                registration.post( new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.handleAsyncMessage( asyncMessage, robot );
+                    }
+                } );
+            }
+        }
+    }
+
+    private static int indexOf( Registration[] registrations, ResponseListener listener ) {
+        for( int i = 0; i < registrations.length; i++ ) {
+            if( registrations[i].listener == listener )
+                return i;
+        }
+        return -1;
+    }
+
+    private static final class Registration {
+        final ResponseListener listener;
+        final Delivery delivery;
+        final Handler handler;
+        final ExecutorService executor;
+
+        Registration( ResponseListener listener, Delivery delivery, Handler mainThreadHandler ) {
+            this.listener = listener;
+            this.delivery = delivery;
+            this.handler = delivery == Delivery.MAIN_THREAD ? mainThreadHandler : null;
+            this.executor = delivery == Delivery.DEDICATED_THREAD ? newDeliveryThread( listener ) : null;
+        }
+
+        void post( Runnable delivery ) {
+            if( handler != null ) {
+                handler.post( delivery );
+            } else if( executor != null ) {
+                try {
+                    executor.execute( delivery );
+                } catch( RejectedExecutionException e ) {
+                    // The listener was removed while this message was being delivered
+                }
+            }
+        }
+
+        void shutdown() {
+            if( executor != null ) {
+                executor.shutdown();
+            }
+        }
+
+        private static ExecutorService newDeliveryThread( final ResponseListener listener ) {
+            return Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable runnable ) {
+                    Thread thread = new Thread( runnable, "ResponseListener-" + listener.getClass().getSimpleName() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+    }
+}
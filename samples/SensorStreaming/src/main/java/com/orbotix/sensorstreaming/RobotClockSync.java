@@ -0,0 +1,272 @@
+package com.orbotix.sensorstreaming;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.orbotix.command.PollPacketTimesCommand;
+import com.orbotix.command.PollPacketTimesResponse;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+/**
+ * Keeps a model of the robot's millisecond clock relative to the host clock, from periodic PollPacketTimes
+ * exchanges.
+ *
+ * Each exchange yields four times: the host transmit time T0, the robot receive and transmit times T1 and T2, and
+ * the host receive time T3. As in NTP, the offset is ((T1 - T0) + (T2 - T3)) / 2 and the round trip
+ * (T3 - T0) - (T2 - T1). PollPacketTimesResponse#getTimeOffset and #getTimeDelay cannot be used directly: the
+ * robot only echoes the low 32 bits of T0, and they combine those with the full 64 bit T3. The times are read
+ * from the response and T0 is restored from T3 instead.
+ *
+ * Exchanges delayed by the radio give offsets that are off by up to half their round trip, so only the exchanges
+ * whose round trip is close to the shortest recent one are used. Once they span long enough, a line is fitted
+ * through their offsets, which also follows the drift between the two crystals.
+ *
+ * Register it as a response listener on the robot and call {@link #start()}. The robot clock is 32 bits wide and
+ * wraps after about 49 days of uptime, which is not handled.
+ */
+public class RobotClockSync implements ResponseListener {
+
+    private static final long DEFAULT_POLL_INTERVAL_MILLIS = 5000;
+
+    // Polls sent in quick succession after start, so the model is usable right away
+    private static final int BURST_POLLS = 5;
+    private static final long BURST_INTERVAL_MILLIS = 200;
+
+    private static final int SAMPLE_COUNT = 16;
+
+    // Exchanges whose round trip is within this of the shortest one are trusted
+    private static final long RTT_TOLERANCE_MILLIS = 4;
+
+    // Drift is only fitted over samples spanning at least this long
+    private static final long MIN_FIT_SPAN_MILLIS = 20000;
+
+    private static final long UINT32_MASK = 0xFFFFFFFFL;
+
+    private final Robot mRobot;
+    private final Handler mHandler;
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    private long mPollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+    private boolean mRunning;
+    private int mPollsSent;
+
+    // Recent exchanges: host time at the middle of the exchange, robot minus host offset, and round trip
+    private final long[] mSampleTimes = new long[SAMPLE_COUNT];
+    private final double[] mSampleOffsets = new double[SAMPLE_COUNT];
+    private final long[] mSampleRoundTrips = new long[SAMPLE_COUNT];
+    private int mSampleHead;
+    private int mSampleSize;
+
+    // The model: robot = host + mOffset + mDrift * (host - mReferenceTime)
+    private boolean mSynchronized;
+    private long mReferenceTime;
+    private double mOffset;
+    private double mDrift;
+    private long mRoundTrip;
+
+    public RobotClockSync( Robot robot ) {
+        this( robot, new Handler( Looper.getMainLooper() ) );
+    }
+
+    /**
+     * @param handler The handler polls are sent from
+     */
+    public RobotClockSync( Robot robot, Handler handler ) {
+        mRobot = robot;
+        mHandler = handler;
+    }
+
+    /**
+     * @param millis Time between polls once the model is established
+     */
+    public synchronized void setPollInterval( long millis ) {
+        if( millis <= 0 )
+            throw new IllegalArgumentException( "millis must be positive: " + millis );
+        mPollIntervalMillis = millis;
+    }
+
+    /**
+     * Starts polling, beginning with a short burst.
+     */
+    public synchronized void start() {
+        if( mRunning )
+            return;
+        mRunning = true;
+        mPollsSent = 0;
+        mHandler.post( mPoll );
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks( mPoll );
+    }
+
+    /**
+     * Forgets every exchange, e.g. after the robot has been power cycled.
+     */
+    public synchronized void reset() {
+        mSampleHead = 0;
+        mSampleSize = 0;
+        mSynchronized = false;
+        mDrift = 0;
+    }
+
+    /**
+     * @return True once at least one exchange completed
+     */
+    public synchronized boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * @return The robot clock reading at the given host time, in milliseconds, with a fractional part
+     */
+    public synchronized double toRobotTime( long hostMillis ) {
+        return hostMillis + mOffset + mDrift * ( hostMillis - mReferenceTime );
+    }
+
+    /**
+     * @return The host time at which the robot clock shows the given reading, in milliseconds
+     */
+    public synchronized double toHostTime( double robotMillis ) {
+        return ( robotMillis - mOffset + mDrift * mReferenceTime ) / ( 1 + mDrift );
+    }
+
+    /**
+     * @return Robot minus host clock at the given host time, in milliseconds
+     */
+    public synchronized double getOffset( long hostMillis ) {
+        return mOffset + mDrift * ( hostMillis - mReferenceTime );
+    }
+
+    /**
+     * @return How much faster the robot clock runs than the host clock, in parts per million
+     */
+    public synchronized double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * @return The shortest round trip among the recent exchanges, in milliseconds
+     */
+    public synchronized long getRoundTripTime() {
+        return mRoundTrip;
+    }
+
+    @Override
+    public void handleResponse( DeviceResponse response, Robot robot ) {
+        if( !( response instanceof PollPacketTimesResponse ) || response.getTimeStamp() == null )
+            return;
+        PollPacketTimesResponse times = (PollPacketTimesResponse) response;
+
+        long hostReceive = response.getTimeStamp().getTime();
+        long hostTransmit = hostReceive - ( ( hostReceive - times.getCommandTransmitTime() ) & UINT32_MASK );
+        long robotReceive = times.getRobotReceiveTime();
+        long robotTransmit = times.getRobotTransmitTime();
+
+        long roundTrip = ( hostReceive - hostTransmit ) - ( robotTransmit - robotReceive );
+        double offset = ( ( robotReceive - hostTransmit ) + ( robotTransmit - hostReceive ) ) / 2.0;
+        if( roundTrip < 0 )
+            return;
+        addSample( ( hostTransmit + hostReceive ) / 2, offset, roundTrip );
+    }
+
+    @Override
+    public void handleStringResponse( String stringResponse, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+
+    }
+
+    private void poll() {
+        long delay;
+        synchronized( this ) {
+            if( !mRunning )
+                return;
+            mPollsSent++;
+            delay = mPollsSent < BURST_POLLS ? BURST_INTERVAL_MILLIS : mPollIntervalMillis;
+            mHandler.postDelayed( mPoll, delay );
+        }
+        mRobot.sendCommand( new PollPacketTimesCommand() );
+    }
+
+    private synchronized void addSample( long hostTime, double offset, long roundTrip ) {
+        mSampleTimes[mSampleHead] = hostTime;
+        mSampleOffsets[mSampleHead] = offset;
+        mSampleRoundTrips[mSampleHead] = roundTrip;
+        mSampleHead = ( mSampleHead + 1 ) % SAMPLE_COUNT;
+        if( mSampleSize < SAMPLE_COUNT )
+            mSampleSize++;
+        updateModel();
+    }
+
+    // The methods below must be called while holding the lock
+
+    /**
+     * Fits the model through the exchanges with the shortest round trips.
+     */
+    private void updateModel() {
+        long minRoundTrip = Long.MAX_VALUE;
+        int best = 0;
+        for( int i = 0; i < mSampleSize; i++ ) {
+            if( mSampleRoundTrips[i] < minRoundTrip ) {
+                minRoundTrip = mSampleRoundTrips[i];
+                best = i;
+            }
+        }
+        mRoundTrip = minRoundTrip;
+
+        long limit = minRoundTrip + RTT_TOLERANCE_MILLIS;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        for( int i = 0; i < mSampleSize; i++ ) {
+            if( mSampleRoundTrips[i] <= limit ) {
+                first = Math.min( first, mSampleTimes[i] );
+                last = Math.max( last, mSampleTimes[i] );
+                count++;
+            }
+        }
+
+        if( count < 3 || last - first < MIN_FIT_SPAN_MILLIS ) {
+            // Not enough spread for a slope; use the best exchange, and the previous drift if there was one
+            mReferenceTime = mSampleTimes[best];
+            mOffset = mSampleOffsets[best];
+            mSynchronized = true;
+            return;
+        }
+
+        // Least squares line through the trusted offsets, relative to the first one to keep the sums small
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        double originY = mSampleOffsets[best];
+        for( int i = 0; i < mSampleSize; i++ ) {
+            if( mSampleRoundTrips[i] > limit )
+                continue;
+            double x = mSampleTimes[i] - first;
+            double y = mSampleOffsets[i] - originY;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double denominator = count * sumXX - sumX * sumX;
+        mDrift = ( count * sumXY - sumX * sumY ) / denominator;
+        mReferenceTime = first;
+        mOffset = originY + ( sumY - mDrift * sumX ) / count;
+        mSynchronized = true;
+    }
+}
@@ -0,0 +1,270 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.sensor.SensorFlag;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by {@link SensorColumnWriter} one row group at a time.
+ *
+ * Only the current row group is held in memory, and a column is only decoded when it is asked for, so reading
+ * the accelerometer out of a file that streamed every sensor skips the other columns. The arrays handed out are
+ * reused for the next row group; their first {@link #getRowCount()} entries are valid.
+ *
+ * The reader only depends on the SDK's SensorFlag, so it can run in JVM analytics tools as well as on a device:
+ *
+ *   SensorColumnReader reader = new SensorColumnReader( file );
+ *   while( reader.nextRowGroup() ) {
+ *       long[] timeStamps = reader.getTimeStamps();
+ *       float[] z = reader.getColumn( SensorFlag.ACCELEROMETER_NORMALIZED, 2 );
+ *       for( int row = 0; row < reader.getRowCount(); row++ ) ...
+ *   }
+ *   reader.close();
+ */
+public class SensorColumnReader implements Closeable {
+
+    private final DataInputStream mIn;
+    private final Inflater mInflater = new Inflater();
+
+    private SensorFrameLayout mLayout;
+    private int mRows;
+    private boolean mFinished;
+
+    // The inflated row group, with the start of each column; index 0 is the timestamps
+    private byte[] mEncoded = new byte[1024];
+    private int[] mColumnStarts = new int[1];
+    private byte[] mDeflated = new byte[1024];
+
+    // Decoded columns, filled on first access
+    private long[] mTimeStamps = new long[0];
+    private boolean mTimeStampsDecoded;
+    private int[][] mRawColumns = new int[0][];
+    private float[][] mColumns = new float[0][];
+    private boolean[] mRawDecoded = new boolean[0];
+    private boolean[] mScaled = new boolean[0];
+
+    private int mPosition;
+
+    public SensorColumnReader( File file ) throws IOException {
+        this( new BufferedInputStream( new FileInputStream( file ) ) );
+    }
+
+    /**
+     * Reads the file header.
+     * @param in The file. It is closed by {@link #close()}.
+     * @throws IOException If the stream is not a sensor column file
+     */
+    public SensorColumnReader( InputStream in ) throws IOException {
+        mIn = new DataInputStream( in );
+        if( mIn.readInt() != SensorColumnWriter.MAGIC )
+            throw new IOException( "Not a sensor column file" );
+        int version = mIn.readUnsignedByte();
+        if( version != SensorColumnWriter.VERSION )
+            throw new IOException( "Unsupported sensor column file version " + version );
+    }
+
+    /**
+     * Moves to the next row group.
+     * @return False at the end of the file
+     */
+    public boolean nextRowGroup() throws IOException {
+        if( mFinished )
+            return false;
+        int marker = mIn.read();
+        if( marker == SensorColumnWriter.END || marker < 0 ) {
+            // A missing END means the writer was not closed; what was written is still readable
+            mFinished = true;
+            mRows = 0;
+            return false;
+        }
+        if( marker != SensorColumnWriter.ROW_GROUP )
+            throw new IOException( "Unexpected block type " + marker );
+
+        long mask = mIn.readLong();
+        if( mLayout == null || mLayout.getMask() != mask )
+            changeLayout( new SensorFrameLayout( mask ) );
+        mRows = readVarint();
+
+        int fieldCount = mLayout.getFieldCount();
+        int encodedLength = 0;
+        for( int column = 0; column <= fieldCount; column++ ) {
+            mColumnStarts[column] = encodedLength;
+            encodedLength += readVarint();
+        }
+        int deflatedLength = readVarint();
+
+        if( mDeflated.length < deflatedLength )
+            mDeflated = new byte[deflatedLength];
+        mIn.readFully( mDeflated, 0, deflatedLength );
+        if( mEncoded.length < encodedLength )
+            mEncoded = new byte[encodedLength];
+        mInflater.reset();
+        mInflater.setInput( mDeflated, 0, deflatedLength );
+        try {
+            if( mInflater.inflate( mEncoded, 0, encodedLength ) != encodedLength )
+                throw new IOException( "Row group is shorter than its columns" );
+        } catch( DataFormatException e ) {
+            throw new IOException( "Corrupt row group", e );
+        }
+
+        if( mTimeStamps.length < mRows ) {
+            mTimeStamps = new long[mRows];
+            for( int slot = 0; slot < mRawColumns.length; slot++ ) {
+                mRawColumns[slot] = new int[mRows];
+                mColumns[slot] = new float[mRows];
+            }
+        }
+        mTimeStampsDecoded = false;
+        for( int slot = 0; slot < fieldCount; slot++ ) {
+            mRawDecoded[slot] = false;
+            mScaled[slot] = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The layout of the current row group, or null before the first one
+     */
+    public SensorFrameLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return The number of frames in the current row group
+     */
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * @return The receive time of each frame in milliseconds
+     */
+    public long[] getTimeStamps() {
+        if( !mTimeStampsDecoded ) {
+            mPosition = mColumnStarts[0];
+            long value = 0;
+            for( int row = 0; row < mRows; row++ ) {
+                value += unzigzag( getVarint() );
+                mTimeStamps[row] = value;
+            }
+            mTimeStampsDecoded = true;
+        }
+        return mTimeStamps;
+    }
+
+    /**
+     * @param slot The slot, as given by {@link SensorFrameLayout#indexOf(SensorFlag)}
+     * @return The raw 16 bit values of the slot
+     */
+    public int[] getRawColumn( int slot ) {
+        checkSlot( slot );
+        if( !mRawDecoded[slot] ) {
+            int[] column = mRawColumns[slot];
+            mPosition = mColumnStarts[slot + 1];
+            int value = 0;
+            for( int row = 0; row < mRows; row++ ) {
+                value += (int) unzigzag( getVarint() );
+                column[row] = value;
+            }
+            mRawDecoded[slot] = true;
+        }
+        return mRawColumns[slot];
+    }
+
+    /**
+     * @return The values of the slot in the units DeviceSensorsData reports
+     */
+    public float[] getColumn( int slot ) {
+        int[] raw = getRawColumn( slot );
+        if( !mScaled[slot] ) {
+            float[] column = mColumns[slot];
+            float scale = mLayout.scaleAt( slot );
+            for( int row = 0; row < mRows; row++ ) {
+                column[row] = raw[row] * scale;
+            }
+            mScaled[slot] = true;
+        }
+        return mColumns[slot];
+    }
+
+    /**
+     * @param component The value inside the group, e.g. 2 for accelerometer z
+     * @throws IllegalArgumentException if the flag is not part of the current row group
+     * @throws IndexOutOfBoundsException if the group does not have that many values
+     */
+    public float[] getColumn( SensorFlag flag, int component ) {
+        int slot = mLayout == null ? -1 : mLayout.indexOf( flag, component );
+        if( slot < 0 )
+            throw new IllegalArgumentException( flag + " is not part of the current row group" );
+        return getColumn( slot );
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInflater.end();
+        mIn.close();
+    }
+
+    private void changeLayout( SensorFrameLayout layout ) {
+        int fieldCount = layout.getFieldCount();
+        if( mRawColumns.length < fieldCount ) {
+            int[][] rawColumns = new int[fieldCount][];
+            float[][] columns = new float[fieldCount][];
+            System.arraycopy( mRawColumns, 0, rawColumns, 0, mRawColumns.length );
+            System.arraycopy( mColumns, 0, columns, 0, mColumns.length );
+            for( int slot = mRawColumns.length; slot < fieldCount; slot++ ) {
+                rawColumns[slot] = new int[mTimeStamps.length];
+                columns[slot] = new float[mTimeStamps.length];
+            }
+            mRawColumns = rawColumns;
+            mColumns = columns;
+            mRawDecoded = new boolean[fieldCount];
+            mScaled = new boolean[fieldCount];
+            mColumnStarts = new int[fieldCount + 1];
+        }
+        mLayout = layout;
+    }
+
+    private void checkSlot( int slot ) {
+        if( mLayout == null || slot < 0 || slot >= mLayout.getFieldCount() )
+            throw new IndexOutOfBoundsException( "No slot " + slot + " in the current row group" );
+    }
+
+    private static long unzigzag( long value ) {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+
+    private long getVarint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = mEncoded[mPosition++];
+            value |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        } while( b < 0 );
+        return value;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for( int shift = 0; shift < 35; shift += 7 ) {
+            int b = mIn.read();
+            if( b < 0 )
+                throw new EOFException( "Truncated row group header" );
+            value |= ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 )
+                return value;
+        }
+        throw new IOException( "Malformed varint" );
+    }
+}
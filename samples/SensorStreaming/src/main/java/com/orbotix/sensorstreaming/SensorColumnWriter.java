@@ -0,0 +1,249 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.Robot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Streams sensor frames into a compressed columnar file, read back with {@link SensorColumnReader}.
+ *
+ * Register it as a {@link SensorFrameListener}, either on the dispatcher of a live robot or on one fed by a
+ * {@link SessionReplayer}. Frames are buffered into a row group of at most rowGroupSize frames, kept as one
+ * primitive column per streamed value plus one for the timestamps. A full row group, or one whose streaming mask
+ * changes, is encoded and written out, so memory stays bounded however long the session runs.
+ *
+ * Each column stores its first value followed by the differences between neighbours, zigzag and varint encoded.
+ * Sensor values change little from frame to frame and timestamps advance by nearly the same step, so most entries
+ * take a single byte before the row group is deflated. Raw 16 bit values are stored, so nothing is lost; the
+ * reader applies the same scales as {@link SensorFrame}.
+ *
+ * Layout:
+ *
+ *   file:       MAGIC(4) VERSION(1) row_group* END(1)
+ *   row_group:  ROW_GROUP(1) MASK(8) ROWS(varint) COLUMN_LENGTH(varint)* DEFLATED_LENGTH(varint) DEFLATED
+ *
+ * There is one COLUMN_LENGTH for the timestamps followed by one per value, giving each column's length after
+ * inflating, so a reader can skip the columns it does not need.
+ */
+public class SensorColumnWriter implements SensorFrameListener, Closeable {
+
+    static final int MAGIC = 0x53434F4C; // "SCOL"
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int ROW_GROUP = 1;
+
+    public static final int DEFAULT_ROW_GROUP_SIZE = 4096;
+
+    private final OutputStream mOut;
+    private final Robot mRobot;
+    private final int mRowGroupSize;
+
+    // The buffered row group
+    private SensorFrameLayout mLayout;
+    private final long[] mTimeStamps;
+    private int[][] mColumns = new int[0][];
+    private int mRows;
+
+    private final Deflater mDeflater = new Deflater( Deflater.BEST_SPEED );
+    private byte[] mEncoded = new byte[1024];
+    private int mEncodedLength;
+    private byte[] mDeflated = new byte[1024];
+    private final byte[] mHeader = new byte[10];
+
+    private long mFrameCount;
+    private boolean mClosed;
+
+    public SensorColumnWriter( File file ) throws IOException {
+        this( new BufferedOutputStream( new FileOutputStream( file ) ), DEFAULT_ROW_GROUP_SIZE, null );
+    }
+
+    /**
+     * Writes the file header.
+     * @param out Receives the file. It is closed by {@link #close()}.
+     * @param rowGroupSize The most frames buffered before they are written out
+     * @param robot Only frames from this robot are written, or null to write frames from any robot
+     */
+    public SensorColumnWriter( OutputStream out, int rowGroupSize, Robot robot ) throws IOException {
+        if( rowGroupSize <= 0 )
+            throw new IllegalArgumentException( "rowGroupSize must be positive: " + rowGroupSize );
+        mOut = out;
+        mRowGroupSize = rowGroupSize;
+        mRobot = robot;
+        mTimeStamps = new long[rowGroupSize];
+
+        writeInt( MAGIC );
+        mOut.write( VERSION );
+    }
+
+    @Override
+    public synchronized void handleSensorFrame( SensorFrame frame, Robot robot ) {
+        if( mClosed || ( mRobot != null && robot != mRobot ) )
+            return;
+        try {
+            append( frame.getLayout(), frame.rawValues, frame.getTimeStamp() );
+        } catch( IOException e ) {
+            throw new IllegalStateException( "Could not write sensor columns", e );
+        }
+    }
+
+    /**
+     * Appends one frame.
+     * @param rawValues The raw values, indexed by the layout
+     */
+    public synchronized void append( SensorFrameLayout layout, int[] rawValues, long timeStamp ) throws IOException {
+        if( mClosed )
+            throw new IOException( "Writer is closed" );
+        if( mLayout == null || mLayout.getMask() != layout.getMask() ) {
+            flush();
+            changeLayout( layout );
+        }
+
+        int fieldCount = layout.getFieldCount();
+        for( int slot = 0; slot < fieldCount; slot++ ) {
+            mColumns[slot][mRows] = rawValues[slot];
+        }
+        mTimeStamps[mRows] = timeStamp;
+        mFrameCount++;
+        if( ++mRows == mRowGroupSize )
+            flush();
+    }
+
+    /**
+     * @return The number of frames appended so far
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Writes out the buffered frames as a row group, even if it is not full.
+     */
+    public synchronized void flush() throws IOException {
+        if( mRows == 0 )
+            return;
+
+        int fieldCount = mLayout.getFieldCount();
+        mEncodedLength = 0;
+        mOut.write( ROW_GROUP );
+        writeLong( mLayout.getMask() );
+        writeVarint( mRows );
+
+        // Encode each column and note its length, which the header needs before the deflated body
+        int start = mEncodedLength;
+        long previous = 0;
+        for( int row = 0; row < mRows; row++ ) {
+            putVarint( zigzag( mTimeStamps[row] - previous ) );
+            previous = mTimeStamps[row];
+        }
+        writeVarint( mEncodedLength - start );
+        for( int slot = 0; slot < fieldCount; slot++ ) {
+            start = mEncodedLength;
+            int[] column = mColumns[slot];
+            int previousValue = 0;
+            for( int row = 0; row < mRows; row++ ) {
+                putVarint( zigzag( column[row] - previousValue ) );
+                previousValue = column[row];
+            }
+            writeVarint( mEncodedLength - start );
+        }
+
+        mDeflater.reset();
+        mDeflater.setInput( mEncoded, 0, mEncodedLength );
+        mDeflater.finish();
+        int deflatedLength = 0;
+        while( !mDeflater.finished() ) {
+            if( deflatedLength == mDeflated.length ) {
+                byte[] grown = new byte[mDeflated.length * 2];
+                System.arraycopy( mDeflated, 0, grown, 0, deflatedLength );
+                mDeflated = grown;
+            }
+            deflatedLength += mDeflater.deflate( mDeflated, deflatedLength, mDeflated.length - deflatedLength );
+        }
+        writeVarint( deflatedLength );
+        mOut.write( mDeflated, 0, deflatedLength );
+        mRows = 0;
+    }
+
+    /**
+     * Writes out the buffered frames, ends the file and closes the stream.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if( mClosed )
+            return;
+        try {
+            flush();
+            mOut.write( END );
+        } finally {
+            mClosed = true;
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void changeLayout( SensorFrameLayout layout ) {
+        int fieldCount = layout.getFieldCount();
+        if( mColumns.length < fieldCount ) {
+            int[][] columns = new int[fieldCount][];
+            System.arraycopy( mColumns, 0, columns, 0, mColumns.length );
+            for( int slot = mColumns.length; slot < fieldCount; slot++ ) {
+                columns[slot] = new int[mRowGroupSize];
+            }
+            mColumns = columns;
+        }
+        mLayout = layout;
+    }
+
+    static long zigzag( long value ) {
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+
+    /**
+     * Appends a varint to the row group being encoded.
+     */
+    private void putVarint( long value ) {
+        if( mEncoded.length - mEncodedLength < 10 ) {
+            byte[] grown = new byte[mEncoded.length * 2];
+            System.arraycopy( mEncoded, 0, grown, 0, mEncodedLength );
+            mEncoded = grown;
+        }
+        while( ( value & ~0x7FL ) != 0 ) {
+            mEncoded[mEncodedLength++] = (byte) ( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        mEncoded[mEncodedLength++] = (byte) value;
+    }
+
+    private void writeVarint( long value ) throws IOException {
+        int length = 0;
+        while( ( value & ~0x7FL ) != 0 ) {
+            mHeader[length++] = (byte) ( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        mHeader[length++] = (byte) value;
+        mOut.write( mHeader, 0, length );
+    }
+
+    private void writeInt( int value ) throws IOException {
+        for( int shift = 24; shift >= 0; shift -= 8 ) {
+            mHeader[3 - shift / 8] = (byte) ( value >>> shift );
+        }
+        mOut.write( mHeader, 0, 4 );
+    }
+
+    private void writeLong( long value ) throws IOException {
+        for( int shift = 56; shift >= 0; shift -= 8 ) {
+            mHeader[7 - shift / 8] = (byte) ( value >>> shift );
+        }
+        mOut.write( mHeader, 0, 8 );
+    }
+}
@@ -0,0 +1,67 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.sensor.SensorFlag;
+
+/**
+ * A streamed sensor frame decoded straight into primitive arrays.
+ *
+ * {@link #rawValues} holds the signed 16 bit values as sent by the robot and {@link #values} the same values in
+ * the units DeviceSensorsData reports. Both are indexed by {@link #getLayout()}. A dispatcher reuses one frame
+ * for every delivery, so copy out whatever needs to outlive the listener call.
+ */
+public class SensorFrame {
+
+    public int[] rawValues = new int[0];
+    public float[] values = new float[0];
+
+    private SensorFrameLayout mLayout = new SensorFrameLayout( 0 );
+    private long mTimeStamp;
+
+    /**
+     * Overwrites this frame with the one starting at offset, growing the arrays if the layout needs more room.
+     */
+    public void decode( SensorFrameLayout layout, byte[] data, int offset, long timeStamp ) {
+        int fieldCount = layout.getFieldCount();
+        if( rawValues.length < fieldCount ) {
+            rawValues = new int[fieldCount];
+            values = new float[fieldCount];
+        }
+
+        mLayout = layout;
+        mTimeStamp = timeStamp;
+        for( int slot = 0; slot < fieldCount; slot++ ) {
+            int raw = ( data[offset] << 8 ) | ( data[offset + 1] & 0xFF );
+            rawValues[slot] = raw;
+            values[slot] = raw * layout.scaleAt( slot );
+            offset += 2;
+        }
+    }
+
+    public SensorFrameLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return Receive time of the frame in milliseconds
+     */
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    public int getFieldCount() {
+        return mLayout.getFieldCount();
+    }
+
+    /**
+     * @return The scaled value at the given offset from the first slot of the flag, e.g. (ACCELEROMETER_NORMALIZED, 2)
+     *         for accelerometer z
+     * @throws IllegalArgumentException if the flag was not streamed
+     * @throws IndexOutOfBoundsException if the flag does not have that many values
+     */
+    public float getValue( SensorFlag flag, int component ) {
+        int slot = mLayout.indexOf( flag, component );
+        if( slot < 0 )
+            throw new IllegalArgumentException( flag + " is not part of the streaming mask" );
+        return values[slot];
+    }
+}
@@ -0,0 +1,120 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.sensor.SensorFlag;
+
+/**
+ * Describes where each value of a streamed frame lives in the primitive arrays of a {@link SensorFrame}.
+ *
+ * Slots follow the order the robot sends values in: every set bit of the low mask word from bit 31 down, then
+ * every set bit of the high mask word from bit 63 down. All the bits of a SensorFlag are adjacent, so a flag's
+ * values occupy consecutive slots starting at {@link #indexOf(SensorFlag)}, e.g. accelerometer x, y, z.
+ */
+public class SensorFrameLayout {
+
+    private static final int NOT_STREAMED = -1;
+
+    private final long mMask;
+    private final int[] mBits;
+    private final float[] mScales;
+    private final int[] mSlotForBit = new int[64];
+
+    public SensorFrameLayout( long mask ) {
+        mMask = mask;
+        mBits = new int[Long.bitCount( mask )];
+        mScales = new float[mBits.length];
+
+        for( int bit = 0; bit < 64; bit++ ) {
+            mSlotForBit[bit] = NOT_STREAMED;
+        }
+
+        int slot = 0;
+        for( int bit = 31; bit >= 0; bit-- ) {
+            slot = addSlot( bit, slot );
+        }
+        for( int bit = 63; bit >= 32; bit-- ) {
+            slot = addSlot( bit, slot );
+        }
+    }
+
+    public long getMask() {
+        return mMask;
+    }
+
+    /**
+     * @return Number of values per frame
+     */
+    public int getFieldCount() {
+        return mBits.length;
+    }
+
+    /**
+     * @return Number of payload bytes per frame
+     */
+    public int getFrameLength() {
+        return mBits.length * 2;
+    }
+
+    /**
+     * @return The slot of the first value of the flag, or -1 if the flag is not part of the mask
+     */
+    public int indexOf( SensorFlag flag ) {
+        long flagMask = flag.longValue();
+        if( flagMask == 0 || ( mMask & flagMask ) != flagMask )
+            return NOT_STREAMED;
+        return mSlotForBit[63 - Long.numberOfLeadingZeros( flagMask )];
+    }
+
+    /**
+     * @return The slot of the value at the given offset from the first slot of the flag, e.g.
+     *         (ACCELEROMETER_NORMALIZED, 2) for accelerometer z, or -1 if the flag is not part of the mask
+     * @throws IndexOutOfBoundsException if the flag does not have that many values
+     */
+    public int indexOf( SensorFlag flag, int component ) {
+        int valueCount = Long.bitCount( flag.longValue() );
+        if( component < 0 || component >= valueCount )
+            throw new IndexOutOfBoundsException( flag + " has " + valueCount + " values, no component " + component );
+        int slot = indexOf( flag );
+        return slot == NOT_STREAMED ? NOT_STREAMED : slot + component;
+    }
+
+    /**
+     * @return The slot holding the value for a single mask bit (0 - 63), or -1 if it is not streamed
+     */
+    public int indexOfBit( int bit ) {
+        return mSlotForBit[bit];
+    }
+
+    /**
+     * @return The mask bit that the value in the given slot belongs to
+     */
+    public int bitAt( int slot ) {
+        return mBits[slot];
+    }
+
+    /**
+     * @return The factor turning the raw value in the given slot into the units DeviceSensorsData reports
+     */
+    public float scaleAt( int slot ) {
+        return mScales[slot];
+    }
+
+    private int addSlot( int bit, int slot ) {
+        if( ( mMask & ( 1L << bit ) ) == 0 )
+            return slot;
+        mBits[slot] = bit;
+        mScales[slot] = scaleForBit( bit );
+        mSlotForBit[bit] = slot;
+        return slot + 1;
+    }
+
+    private static float scaleForBit( int bit ) {
+        long flag = 1L << bit;
+        if( ( SensorFlag.ACCELEROMETER_NORMALIZED.longValue() & flag ) != 0 )
+            return 1.0f / 4096.0f;
+        if( ( SensorFlag.QUATERNION.longValue() & flag ) != 0 )
+            return 1.0f / 10000.0f;
+        if( ( SensorFlag.VELOCITY.longValue() & flag ) != 0 )
+            return 1.0f / 10.0f;
+        return 1.0f;
+    }
+}
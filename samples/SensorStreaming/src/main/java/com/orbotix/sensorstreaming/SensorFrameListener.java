@@ -0,0 +1,16 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.Robot;
+
+/**
+ * Receives streamed sensor frames as primitive arrays, without any per-frame objects.
+ */
+public interface SensorFrameListener {
+    /**
+     * Invoked once per streamed frame, in the order the frames were produced.
+     *
+     * @param frame The decoded frame. It is overwritten by the next frame as soon as this method returns.
+     * @param robot The robot that streamed the frame
+     */
+    void handleSensorFrame( SensorFrame frame, Robot robot );
+}
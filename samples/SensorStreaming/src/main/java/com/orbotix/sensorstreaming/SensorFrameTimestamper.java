@@ -0,0 +1,108 @@
+package com.orbotix.sensorstreaming;
+
+/**
+ * Gives streamed frames timestamps on the robot's sampling grid, free of radio jitter.
+ *
+ * The robot samples at a fixed rate, but packets reach the host whenever the Bluetooth connection interval allows,
+ * so receive times jitter by tens of milliseconds while the true sample times are evenly spaced. A packet can
+ * arrive late but never before its last frame was sampled. Each packet's receive time, moved back by the frame
+ * interval for every frame sent since, is therefore an upper bound on when the newest frame was sampled, and the
+ * smallest of these bounds over the recent packets is the best estimate. Frames then sit exactly one interval
+ * apart, except where the estimate moves.
+ *
+ * With a synchronized {@link RobotClockSync}, receive times are first converted to the robot clock and moved back
+ * by half the shortest round trip. Stamps are in host milliseconds by default, for listeners like
+ * {@link SensorHistory} that work in host time, or in robot milliseconds with {@link #setRobotTimeBase(boolean)}.
+ *
+ * Set it on a {@link SensorStreamDispatcher}, which calls it from the thread delivering async messages.
+ */
+public class SensorFrameTimestamper {
+
+    // How many recent packets bound the estimate. Lost frames shift the grid, which this many packets later is
+    // no longer held back by the packets from before the loss.
+    private static final int WINDOW_PACKETS = 32;
+
+    private final RobotClockSync mClock;
+    private volatile boolean mRobotTimeBase;
+
+    // Recent packets: index of their newest frame, and their adjusted arrival time
+    private final long[] mFrameIndices = new long[WINDOW_PACKETS];
+    private final double[] mArrivals = new double[WINDOW_PACKETS];
+    private int mHead;
+    private int mSize;
+
+    private long mNextFrame;
+    private double mLastStamp;
+    private boolean mSynchronized;
+
+    /**
+     * @param clock The robot clock model, or null to work in host time only
+     */
+    public SensorFrameTimestamper( RobotClockSync clock ) {
+        mClock = clock;
+        reset();
+    }
+
+    /**
+     * @param robotTimeBase True to stamp frames in robot clock milliseconds instead of host milliseconds. Until the
+     *                      clock is synchronized, frames are stamped in host time either way.
+     */
+    public void setRobotTimeBase( boolean robotTimeBase ) {
+        mRobotTimeBase = robotTimeBase;
+        reset();
+    }
+
+    /**
+     * Forgets the sampling grid, e.g. because streaming was restarted.
+     */
+    public synchronized void reset() {
+        mHead = 0;
+        mSize = 0;
+        mNextFrame = 0;
+        mLastStamp = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Stamps the frames of one packet.
+     * @param receiveTime When the packet was received, in host milliseconds
+     * @param frameCount How many frames the packet carries
+     * @param frameInterval The time between two frames in milliseconds
+     * @param frameTimes Receives the timestamp of each frame, oldest first
+     */
+    public synchronized void stampPacket( long receiveTime, int frameCount, double frameInterval, long[] frameTimes ) {
+        RobotClockSync clock = mClock;
+        boolean synced = clock != null && clock.isSynchronized();
+        if( synced != mSynchronized ) {
+            // The stamps switch between host and robot time, so the old bounds do not apply
+            mSynchronized = synced;
+            reset();
+        }
+
+        double arrival = synced ? clock.toRobotTime( receiveTime ) - clock.getRoundTripTime() / 2.0 : receiveTime;
+        long newestFrame = mNextFrame + frameCount - 1;
+        mNextFrame += frameCount;
+        // Without an interval the grid is unknown, so only the packet itself counts
+        if( frameInterval <= 0 ) {
+            mHead = 0;
+            mSize = 0;
+        }
+
+        mFrameIndices[mHead] = newestFrame;
+        mArrivals[mHead] = arrival;
+        mHead = ( mHead + 1 ) % WINDOW_PACKETS;
+        if( mSize < WINDOW_PACKETS )
+            mSize++;
+
+        double newest = Double.POSITIVE_INFINITY;
+        for( int i = 0; i < mSize; i++ ) {
+            newest = Math.min( newest, mArrivals[i] + ( newestFrame - mFrameIndices[i] ) * frameInterval );
+        }
+
+        boolean toHost = synced && !mRobotTimeBase;
+        for( int frame = 0; frame < frameCount; frame++ ) {
+            double stamp = Math.max( mLastStamp, newest - ( frameCount - 1 - frame ) * frameInterval );
+            mLastStamp = stamp;
+            frameTimes[frame] = Math.round( toHost ? clock.toHostTime( stamp ) : stamp );
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.Robot;
+import com.orbotix.common.sensor.SensorFlag;
+
+/**
+ * A fixed-size history of streamed sensor frames with queries by time.
+ *
+ * Register it as a {@link SensorFrameListener} on the {@link SensorStreamDispatcher} of the robot whose sensors were
+ * enabled through SensorControl. Every frame is appended to a ring of primitive columns, one per streamed value plus
+ * one for the timestamps, so recording a frame allocates nothing and the oldest frames are overwritten once the
+ * history is full. Column memory is only (re)allocated when the streaming mask changes, which also clears the
+ * history.
+ *
+ * Timestamps never decrease, so the frames inside a time range are found with two binary searches, and questions
+ * like "accelerometer z over the last 500 ms" cost O(log n) plus the frames actually read.
+ */
+public class SensorHistory implements SensorFrameListener {
+
+    /**
+     * Statistics of one value over a range of frames, filled in by
+     * {@link SensorHistory#summarize(SensorFlag, int, long, long, Summary)}
+     */
+    public static final class Summary {
+        public int count;
+        public float min;
+        public float max;
+        public float mean;
+        public float standardDeviation;
+    }
+
+    private final int mCapacity;
+    private final Robot mRobot;
+
+    private final long[] mTimeStamps;
+    private float[][] mColumns = new float[0][];
+    private SensorFrameLayout mLayout;
+
+    // Next slot to write, and the number of frames held
+    private int mHead;
+    private int mSize;
+
+    public SensorHistory( int capacity ) {
+        this( capacity, null );
+    }
+
+    /**
+     * @param capacity How many frames are kept
+     * @param robot Only frames from this robot are recorded, or null to record frames from any robot
+     */
+    public SensorHistory( int capacity, Robot robot ) {
+        if( capacity <= 0 )
+            throw new IllegalArgumentException( "capacity must be positive: " + capacity );
+        mCapacity = capacity;
+        mRobot = robot;
+        mTimeStamps = new long[capacity];
+    }
+
+    @Override
+    public synchronized void handleSensorFrame( SensorFrame frame, Robot robot ) {
+        if( mRobot != null && robot != mRobot )
+            return;
+
+        SensorFrameLayout layout = frame.getLayout();
+        if( mLayout == null || mLayout.getMask() != layout.getMask() )
+            changeLayout( layout );
+        // A frame older than the newest one would break the ordering the searches rely on
+        if( mSize > 0 && frame.getTimeStamp() < mTimeStamps[physical( mSize - 1 )] )
+            return;
+
+        int fieldCount = layout.getFieldCount();
+        float[] values = frame.values;
+        for( int slot = 0; slot < fieldCount; slot++ ) {
+            mColumns[slot][mHead] = values[slot];
+        }
+        mTimeStamps[mHead] = frame.getTimeStamp();
+        mHead = mHead + 1 == mCapacity ? 0 : mHead + 1;
+        if( mSize < mCapacity )
+            mSize++;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return The layout of the recorded frames, or null if nothing was recorded yet
+     */
+    public synchronized SensorFrameLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return The timestamp of the newest frame, or Long.MIN_VALUE if the history is empty
+     */
+    public synchronized long getNewestTimeStamp() {
+        return mSize == 0 ? Long.MIN_VALUE : mTimeStamps[physical( mSize - 1 )];
+    }
+
+    /**
+     * @return The timestamp of the oldest frame still held, or Long.MIN_VALUE if the history is empty
+     */
+    public synchronized long getOldestTimeStamp() {
+        return mSize == 0 ? Long.MIN_VALUE : mTimeStamps[physical( 0 )];
+    }
+
+    /**
+     * @return The number of frames with a timestamp in [from, to)
+     */
+    public synchronized int count( long from, long to ) {
+        return Math.max( 0, lowerBound( to ) - lowerBound( from ) );
+    }
+
+    /**
+     * Copies one value of every frame with a timestamp in [from, to), oldest first. If the arrays are too small,
+     * the newest frames that fit are copied.
+     * @param flag The sensor group
+     * @param component The value inside the group, e.g. 2 for accelerometer z
+     * @param timeStamps Receives the timestamps. May be null.
+     * @param values Receives the values
+     * @return The number of frames copied
+     * @throws IndexOutOfBoundsException if the group does not have that many values
+     */
+    public synchronized int copy( SensorFlag flag, int component, long from, long to, long[] timeStamps,
+                                  float[] values ) {
+        float[] column = column( flag, component );
+        int end = lowerBound( to );
+        int start = Math.max( lowerBound( from ), end - values.length );
+        if( timeStamps != null )
+            start = Math.max( start, end - timeStamps.length );
+        for( int i = start; i < end; i++ ) {
+            int index = physical( i );
+            values[i - start] = column[index];
+            if( timeStamps != null )
+                timeStamps[i - start] = mTimeStamps[index];
+        }
+        return Math.max( 0, end - start );
+    }
+
+    /**
+     * Copies one value of every frame received in the last windowMillis, measured back from the newest frame.
+     * @see #copy(SensorFlag, int, long, long, long[], float[])
+     */
+    public synchronized int copyLast( SensorFlag flag, int component, long windowMillis, long[] timeStamps,
+                                      float[] values ) {
+        if( mSize == 0 )
+            return 0;
+        long newest = getNewestTimeStamp();
+        return copy( flag, component, newest - windowMillis, newest + 1, timeStamps, values );
+    }
+
+    /**
+     * Computes count, minimum, maximum, mean and standard deviation of one value over [from, to).
+     * @param out Receives the result; count is 0 and the rest undefined if no frame is in range
+     * @return out
+     */
+    public synchronized Summary summarize( SensorFlag flag, int component, long from, long to, Summary out ) {
+        float[] column = column( flag, component );
+        int start = lowerBound( from );
+        int end = lowerBound( to );
+
+        out.count = Math.max( 0, end - start );
+        if( out.count == 0 )
+            return out;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        double sumOfSquares = 0;
+        for( int i = start; i < end; i++ ) {
+            float value = column[physical( i )];
+            min = Math.min( min, value );
+            max = Math.max( max, value );
+            sum += value;
+            sumOfSquares += (double) value * value;
+        }
+        double mean = sum / out.count;
+        out.min = min;
+        out.max = max;
+        out.mean = (float) mean;
+        out.standardDeviation = (float) Math.sqrt( Math.max( 0, sumOfSquares / out.count - mean * mean ) );
+        return out;
+    }
+
+    /**
+     * {@link #summarize(SensorFlag, int, long, long, Summary)} over the last windowMillis, measured back from the
+     * newest frame.
+     */
+    public synchronized Summary summarizeLast( SensorFlag flag, int component, long windowMillis, Summary out ) {
+        if( mSize == 0 ) {
+            out.count = 0;
+            return out;
+        }
+        long newest = getNewestTimeStamp();
+        return summarize( flag, component, newest - windowMillis, newest + 1, out );
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void changeLayout( SensorFrameLayout layout ) {
+        int fieldCount = layout.getFieldCount();
+        if( mColumns.length < fieldCount ) {
+            float[][] columns = new float[fieldCount][];
+            System.arraycopy( mColumns, 0, columns, 0, mColumns.length );
+            for( int slot = mColumns.length; slot < fieldCount; slot++ ) {
+                columns[slot] = new float[mCapacity];
+            }
+            mColumns = columns;
+        }
+        mLayout = layout;
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private float[] column( SensorFlag flag, int component ) {
+        int slot = mLayout == null ? -1 : mLayout.indexOf( flag, component );
+        if( slot < 0 )
+            throw new IllegalArgumentException( flag + " is not part of the recorded frames" );
+        return mColumns[slot];
+    }
+
+    /**
+     * @return The ring index of the frame at the given position, 0 being the oldest
+     */
+    private int physical( int position ) {
+        int index = mHead - mSize + position;
+        return index < 0 ? index + mCapacity : index;
+    }
+
+    /**
+     * @return The position of the first frame with a timestamp at or after the given one, or size if there is none
+     */
+    private int lowerBound( long timeStamp ) {
+        int low = 0;
+        int high = mSize;
+        while( low < high ) {
+            int middle = ( low + high ) >>> 1;
+            if( mTimeStamps[physical( middle )] < timeStamp ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
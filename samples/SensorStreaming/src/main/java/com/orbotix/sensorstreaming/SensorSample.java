@@ -0,0 +1,343 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.sensor.Acceleration;
+import com.orbotix.common.sensor.AttitudeSensor;
+import com.orbotix.common.sensor.BackEMFSensor;
+import com.orbotix.common.sensor.LocatorSensor;
+import com.orbotix.common.sensor.QuaternionSensor;
+import com.orbotix.common.sensor.SensorFlag;
+import com.orbotix.common.sensor.ThreeAxisSensor;
+
+/**
+ * A single streamed sensor frame that can be decoded into over and over again.
+ *
+ * Holds the same values as DeviceSensorsData, but every group object is allocated once and overwritten by
+ * {@link #decode(long, byte[], int, long)}. Samples handed out by a {@link SensorStreamDispatcher} in recycling
+ * mode are only valid until the listener returns; use {@link #copy()} to keep one.
+ *
+ * Decoding is lazy. {@link #decode(long, byte[], int, long)} only remembers where the frame is, and each sensor group
+ * is decoded the first time one of its getters is called, so a listener that reads just the locator pays for two
+ * values no matter how many sensors are streamed. The payload array must therefore stay unchanged until the sample
+ * is decoded again; call {@link #decodeAll()} first if it will not. A sample is not safe to read from several
+ * threads at once.
+ */
+public class SensorSample {
+
+    // Bit positions inside the 64 bit streaming mask, see SensorFlag
+    private static final int BIT_ATTITUDE_PITCH = 18;
+    private static final int BIT_ATTITUDE_ROLL = 17;
+    private static final int BIT_ATTITUDE_YAW = 16;
+    private static final int BIT_ACCELEROMETER_X = 15;
+    private static final int BIT_ACCELEROMETER_Y = 14;
+    private static final int BIT_ACCELEROMETER_Z = 13;
+    private static final int BIT_GYRO_X = 12;
+    private static final int BIT_GYRO_Y = 11;
+    private static final int BIT_GYRO_Z = 10;
+    private static final int BIT_BACKEMF_RIGHT = 6;
+    private static final int BIT_BACKEMF_LEFT = 5;
+    private static final int BIT_QUATERNION_Q0 = 63;
+    private static final int BIT_QUATERNION_Q1 = 62;
+    private static final int BIT_QUATERNION_Q2 = 61;
+    private static final int BIT_QUATERNION_Q3 = 60;
+    private static final int BIT_LOCATOR_X = 59;
+    private static final int BIT_LOCATOR_Y = 58;
+    private static final int BIT_VELOCITY_X = 56;
+    private static final int BIT_VELOCITY_Y = 55;
+
+    // Sensor groups, decoded together on first access
+    private static final int GROUP_ATTITUDE = 1;
+    private static final int GROUP_ACCELEROMETER = 1 << 1;
+    private static final int GROUP_GYRO = 1 << 2;
+    private static final int GROUP_BACKEMF = 1 << 3;
+    private static final int GROUP_QUATERNION = 1 << 4;
+    private static final int GROUP_POSITION = 1 << 5;
+    private static final int GROUP_VELOCITY = 1 << 6;
+    private static final int ALL_GROUPS = ( 1 << 7 ) - 1;
+
+    private static final long LOW_WORD = 0xFFFFFFFFL;
+
+    private static final double ACCELERATION_SCALE = 4096.0;
+
+    // Velocity is streamed in mm/s, LocatorData reports cm/s
+    private static final float VELOCITY_SCALE = 10.0f;
+
+    private final AttitudeSensor mAttitude = new AttitudeSensor();
+    private final ThreeAxisSensor mRawAcceleration = new ThreeAxisSensor();
+    private final Acceleration mAcceleration = new Acceleration();
+    private final ThreeAxisSensor mRotationRate = new ThreeAxisSensor();
+    private final BackEMFSensor mBackEMF = new BackEMFSensor();
+    private final QuaternionSensor mQuaternion = new QuaternionSensor();
+    private final LocatorSensor mPosition = new LocatorSensor();
+    private final LocatorSensor mVelocity = new LocatorSensor();
+
+    private long mMask;
+    private long mTimeStamp;
+
+    // Where the frame is, and which groups have been decoded from it
+    private byte[] mData;
+    private int mOffset;
+    private int mDecodedGroups;
+
+    // Frame bytes owned by this sample after set() or copy()
+    private byte[] mOwnData;
+
+    /**
+     * Number of payload bytes one frame occupies for the given streaming mask.
+     */
+    public static int frameLength( long mask ) {
+        return Long.bitCount( mask ) * 2;
+    }
+
+    /**
+     * Points this sample at the frame starting at offset. Values are decoded when they are first read.
+     *
+     * Values arrive as big endian signed 16 bit words, first for every set bit of the low mask word from
+     * bit 31 down, then for the high mask word from bit 63 down.
+     *
+     * @param mask The streaming mask the frame was produced with
+     * @param data The sensor async message payload
+     * @param offset Start of the frame inside data
+     * @param timeStamp Receive time of the frame in milliseconds
+     */
+    public void decode( long mask, byte[] data, int offset, long timeStamp ) {
+        mMask = mask;
+        mTimeStamp = timeStamp;
+        mData = data;
+        mOffset = offset;
+        mDecodedGroups = 0;
+    }
+
+    /**
+     * Decodes every group now, after which the payload passed to {@link #decode(long, byte[], int, long)} is no
+     * longer needed.
+     */
+    public void decodeAll() {
+        ensureDecoded( ALL_GROUPS );
+        mData = null;
+    }
+
+    /**
+     * @return An independent copy that is never recycled
+     */
+    public SensorSample copy() {
+        SensorSample copy = new SensorSample();
+        copy.set( this );
+        return copy;
+    }
+
+    /**
+     * Overwrites this sample with the values of another one. The frame bytes are copied, so the other sample's
+     * payload may change afterwards.
+     */
+    public void set( SensorSample other ) {
+        if( other.mData == null ) {
+            // Fully decoded, or never decoded at all
+            other.ensureDecoded( ALL_GROUPS );
+            copyValues( other );
+            mMask = other.mMask;
+            mTimeStamp = other.mTimeStamp;
+            mData = null;
+            mDecodedGroups = ALL_GROUPS;
+            return;
+        }
+        int length = frameLength( other.mMask );
+        if( mOwnData == null || mOwnData.length < length )
+            mOwnData = new byte[length];
+        System.arraycopy( other.mData, other.mOffset, mOwnData, 0, length );
+        decode( other.mMask, mOwnData, 0, other.mTimeStamp );
+    }
+
+    /**
+     * @return True if the frame was streamed with every bit of the given flag enabled
+     */
+    public boolean hasFlag( SensorFlag flag ) {
+        return flag.longValue() != 0 && ( mMask & flag.longValue() ) == flag.longValue();
+    }
+
+    public long getMask() {
+        return mMask;
+    }
+
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    public AttitudeSensor getAttitude() {
+        if( !hasFlag( SensorFlag.ATTITUDE ) )
+            return null;
+        ensureDecoded( GROUP_ATTITUDE );
+        return mAttitude;
+    }
+
+    public Acceleration getAcceleration() {
+        if( !hasFlag( SensorFlag.ACCELEROMETER_NORMALIZED ) )
+            return null;
+        ensureDecoded( GROUP_ACCELEROMETER );
+        return mAcceleration;
+    }
+
+    public ThreeAxisSensor getRawAcceleration() {
+        if( !hasFlag( SensorFlag.ACCELEROMETER_NORMALIZED ) )
+            return null;
+        ensureDecoded( GROUP_ACCELEROMETER );
+        return mRawAcceleration;
+    }
+
+    public ThreeAxisSensor getRotationRate() {
+        if( !hasFlag( SensorFlag.GYRO_NORMALIZED ) )
+            return null;
+        ensureDecoded( GROUP_GYRO );
+        return mRotationRate;
+    }
+
+    public BackEMFSensor getBackEMF() {
+        if( !hasFlag( SensorFlag.MOTOR_BACKEMF_NORMALIZED ) )
+            return null;
+        ensureDecoded( GROUP_BACKEMF );
+        return mBackEMF;
+    }
+
+    public QuaternionSensor getQuaternion() {
+        if( !hasFlag( SensorFlag.QUATERNION ) )
+            return null;
+        ensureDecoded( GROUP_QUATERNION );
+        return mQuaternion;
+    }
+
+    public LocatorSensor getPosition() {
+        if( !hasFlag( SensorFlag.LOCATOR ) )
+            return null;
+        ensureDecoded( GROUP_POSITION );
+        return mPosition;
+    }
+
+    public LocatorSensor getVelocity() {
+        if( !hasFlag( SensorFlag.VELOCITY ) )
+            return null;
+        ensureDecoded( GROUP_VELOCITY );
+        return mVelocity;
+    }
+
+    /**
+     * Decodes the given groups unless they already are.
+     */
+    private void ensureDecoded( int groups ) {
+        int missing = groups & ~mDecodedGroups;
+        if( missing == 0 || mData == null )
+            return;
+        if( ( missing & GROUP_ATTITUDE ) != 0 ) {
+            decodeBit( BIT_ATTITUDE_PITCH );
+            decodeBit( BIT_ATTITUDE_ROLL );
+            decodeBit( BIT_ATTITUDE_YAW );
+        }
+        if( ( missing & GROUP_ACCELEROMETER ) != 0 ) {
+            decodeBit( BIT_ACCELEROMETER_X );
+            decodeBit( BIT_ACCELEROMETER_Y );
+            decodeBit( BIT_ACCELEROMETER_Z );
+        }
+        if( ( missing & GROUP_GYRO ) != 0 ) {
+            decodeBit( BIT_GYRO_X );
+            decodeBit( BIT_GYRO_Y );
+            decodeBit( BIT_GYRO_Z );
+        }
+        if( ( missing & GROUP_BACKEMF ) != 0 ) {
+            decodeBit( BIT_BACKEMF_RIGHT );
+            decodeBit( BIT_BACKEMF_LEFT );
+        }
+        if( ( missing & GROUP_QUATERNION ) != 0 ) {
+            decodeBit( BIT_QUATERNION_Q0 );
+            decodeBit( BIT_QUATERNION_Q1 );
+            decodeBit( BIT_QUATERNION_Q2 );
+            decodeBit( BIT_QUATERNION_Q3 );
+        }
+        if( ( missing & GROUP_POSITION ) != 0 ) {
+            decodeBit( BIT_LOCATOR_X );
+            decodeBit( BIT_LOCATOR_Y );
+        }
+        if( ( missing & GROUP_VELOCITY ) != 0 ) {
+            decodeBit( BIT_VELOCITY_X );
+            decodeBit( BIT_VELOCITY_Y );
+        }
+        mDecodedGroups |= missing;
+    }
+
+    /**
+     * Reads the value of one mask bit, if it was streamed. Its position is the number of streamed bits before it:
+     * the higher bits of its own word, plus the whole low word for bits of the high word.
+     */
+    private void decodeBit( int bit ) {
+        if( ( mMask & ( 1L << bit ) ) == 0 )
+            return;
+        int slot;
+        if( bit < 32 ) {
+            slot = Long.bitCount( ( mMask & LOW_WORD ) >>> ( bit + 1 ) );
+        } else {
+            // A shift by 64 would be a shift by 0, so bit 63 has nothing above it by definition
+            int above = bit == 63 ? 0 : Long.bitCount( mMask >>> ( bit + 1 ) );
+            slot = Long.bitCount( mMask & LOW_WORD ) + above;
+        }
+        int position = mOffset + slot * 2;
+        assign( bit, ( mData[position] << 8 ) | ( mData[position + 1] & 0xFF ) );
+    }
+
+    private void copyValues( SensorSample other ) {
+        mAttitude.pitch = other.mAttitude.pitch;
+        mAttitude.roll = other.mAttitude.roll;
+        mAttitude.yaw = other.mAttitude.yaw;
+        mRawAcceleration.x = other.mRawAcceleration.x;
+        mRawAcceleration.y = other.mRawAcceleration.y;
+        mRawAcceleration.z = other.mRawAcceleration.z;
+        mAcceleration.x = other.mAcceleration.x;
+        mAcceleration.y = other.mAcceleration.y;
+        mAcceleration.z = other.mAcceleration.z;
+        mRotationRate.x = other.mRotationRate.x;
+        mRotationRate.y = other.mRotationRate.y;
+        mRotationRate.z = other.mRotationRate.z;
+        mBackEMF.leftMotorValue = other.mBackEMF.leftMotorValue;
+        mBackEMF.rightMotorValue = other.mBackEMF.rightMotorValue;
+        mQuaternion.q0 = other.mQuaternion.q0;
+        mQuaternion.q1 = other.mQuaternion.q1;
+        mQuaternion.q2 = other.mQuaternion.q2;
+        mQuaternion.q3 = other.mQuaternion.q3;
+        mPosition.x = other.mPosition.x;
+        mPosition.y = other.mPosition.y;
+        mVelocity.x = other.mVelocity.x;
+        mVelocity.y = other.mVelocity.y;
+    }
+
+    private void assign( int bit, int value ) {
+        switch( bit ) {
+            case BIT_ATTITUDE_PITCH: mAttitude.pitch = value; break;
+            case BIT_ATTITUDE_ROLL: mAttitude.roll = value; break;
+            case BIT_ATTITUDE_YAW: mAttitude.yaw = value; break;
+            case BIT_ACCELEROMETER_X:
+                mRawAcceleration.x = value;
+                mAcceleration.x = value / ACCELERATION_SCALE;
+                break;
+            case BIT_ACCELEROMETER_Y:
+                mRawAcceleration.y = value;
+                mAcceleration.y = value / ACCELERATION_SCALE;
+                break;
+            case BIT_ACCELEROMETER_Z:
+                mRawAcceleration.z = value;
+                mAcceleration.z = value / ACCELERATION_SCALE;
+                break;
+            case BIT_GYRO_X: mRotationRate.x = value; break;
+            case BIT_GYRO_Y: mRotationRate.y = value; break;
+            case BIT_GYRO_Z: mRotationRate.z = value; break;
+            case BIT_BACKEMF_RIGHT: mBackEMF.rightMotorValue = value; break;
+            case BIT_BACKEMF_LEFT: mBackEMF.leftMotorValue = value; break;
+            case BIT_QUATERNION_Q0: mQuaternion.q0 = QuaternionSensor.normalize( value ); break;
+            case BIT_QUATERNION_Q1: mQuaternion.q1 = QuaternionSensor.normalize( value ); break;
+            case BIT_QUATERNION_Q2: mQuaternion.q2 = QuaternionSensor.normalize( value ); break;
+            case BIT_QUATERNION_Q3: mQuaternion.q3 = QuaternionSensor.normalize( value ); break;
+            case BIT_LOCATOR_X: mPosition.x = value; break;
+            case BIT_LOCATOR_Y: mPosition.y = value; break;
+            case BIT_VELOCITY_X: mVelocity.x = value / VELOCITY_SCALE; break;
+            case BIT_VELOCITY_Y: mVelocity.y = value / VELOCITY_SCALE; break;
+            default:
+                // Raw and other fields that have no SensorFlag are skipped
+                break;
+        }
+    }
+}
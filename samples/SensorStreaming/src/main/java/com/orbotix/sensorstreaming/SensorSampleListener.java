@@ -0,0 +1,17 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.common.Robot;
+
+/**
+ * Receives streamed sensor frames decoded into {@link SensorSample} objects.
+ */
+public interface SensorSampleListener {
+    /**
+     * Invoked once per streamed frame, in the order the frames were produced.
+     *
+     * @param sample The decoded frame. When the dispatcher is recycling, it is reused as soon as this method
+     *               returns, so call {@link SensorSample#copy()} to hold on to it.
+     * @param robot The robot that streamed the frame
+     */
+    void handleSensorSample( SensorSample sample, Robot robot );
+}
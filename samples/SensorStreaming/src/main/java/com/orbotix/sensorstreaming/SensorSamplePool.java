@@ -0,0 +1,55 @@
+package com.orbotix.sensorstreaming;
+
+/**
+ * A bounded free list of {@link SensorSample} objects. Each robot gets its own pool from its
+ * {@link SensorStreamDispatcher}, so samples from different robots never share storage.
+ */
+public class SensorSamplePool {
+
+    private final SensorSample[] mFree;
+    private int mFreeCount;
+
+    private long mCreatedCount;
+
+    /**
+     * @param maxIdle How many released samples are kept around for reuse
+     */
+    public SensorSamplePool( int maxIdle ) {
+        if( maxIdle < 1 )
+            throw new IllegalArgumentException( "maxIdle must be positive: " + maxIdle );
+        mFree = new SensorSample[maxIdle];
+    }
+
+    /**
+     * @return A sample with undefined contents, recycled if one is available
+     */
+    public synchronized SensorSample obtain() {
+        if( mFreeCount == 0 ) {
+            mCreatedCount++;
+            return new SensorSample();
+        }
+        SensorSample sample = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        return sample;
+    }
+
+    /**
+     * Returns a sample to the pool. The caller must not touch it afterwards.
+     */
+    public synchronized void recycle( SensorSample sample ) {
+        if( sample != null && mFreeCount < mFree.length ) {
+            mFree[mFreeCount++] = sample;
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return mFreeCount;
+    }
+
+    /**
+     * @return How many samples this pool has had to allocate since it was created
+     */
+    public synchronized long getCreatedCount() {
+        return mCreatedCount;
+    }
+}
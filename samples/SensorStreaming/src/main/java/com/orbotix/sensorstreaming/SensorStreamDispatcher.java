@@ -0,0 +1,293 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.command.SetDataStreamingCommand;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+import java.util.Date;
+
+/**
+ * Decodes DeviceSensorAsyncMessage payloads and hands every frame to the registered {@link SensorSampleListener}s
+ * as {@link SensorSample} objects and to the registered {@link SensorFrameListener}s as a primitive
+ * {@link SensorFrame}.
+ *
+ * Register one dispatcher per robot with ConvenienceRobot#addResponseListener(). With recycling enabled, samples
+ * are leased from the dispatcher's own {@link SensorSamplePool} and returned right after the listeners have run,
+ * so a steady stream does not allocate per frame. Frame listeners always share a single reused frame.
+ *
+ * A packet may carry several frames, see {@link #enableStreaming(Robot, long, int, int, int, int)}. They are
+ * delivered oldest first, and since only the packet has a receive time, each frame is stamped one frame interval
+ * before the next. The interval is the configured one, or else estimated from how often packets arrive. Receive
+ * times carry the radio's jitter; a {@link SensorFrameTimestamper} removes it.
+ */
+public class SensorStreamDispatcher implements ResponseListener {
+
+    private static final int DEFAULT_POOL_SIZE = 8;
+
+    // SOP1 SOP2 ID_CODE DLEN_MSB DLEN_LSB ... CHK
+    private static final int ID_OFFSET = 2;
+    private static final int PAYLOAD_OFFSET = 5;
+    private static final int PACKET_OVERHEAD = 6;
+
+    private static final double ESTIMATE_WEIGHT = 1.0 / 8;
+    private static final double MAX_INTERVAL_JUMP = 3;
+
+    private final SensorSamplePool mPool;
+    private final ListenerRegistry<SensorSampleListener> mSampleListeners = new ListenerRegistry<SensorSampleListener>();
+    private final ListenerRegistry<SensorFrameListener> mFrameListeners = new ListenerRegistry<SensorFrameListener>();
+
+    // Only touched from the thread delivering async messages
+    private final SensorFrame mFrame = new SensorFrame();
+    private SensorFrameLayout mLayout = new SensorFrameLayout( 0 );
+    private long mLastPacketTime = Long.MIN_VALUE;
+    private long mLastFrameTime = Long.MIN_VALUE;
+    private double mEstimatedFrameInterval;
+    private long[] mFrameTimes = new long[8];
+
+    private volatile SensorFrameTimestamper mTimestamper;
+    private volatile double mConfiguredFrameInterval;
+    private volatile boolean mRecycling;
+
+    public SensorStreamDispatcher() {
+        this( DEFAULT_POOL_SIZE );
+    }
+
+    /**
+     * @param poolSize How many idle samples the per-robot pool keeps
+     */
+    public SensorStreamDispatcher( int poolSize ) {
+        mPool = new SensorSamplePool( poolSize );
+    }
+
+    /**
+     * Turns sample recycling on or off. It is off by default, in which case every frame is decoded into a new
+     * sample that listeners may keep.
+     */
+    public void setRecycling( boolean recycling ) {
+        mRecycling = recycling;
+    }
+
+    public boolean isRecycling() {
+        return mRecycling;
+    }
+
+    public SensorSamplePool getPool() {
+        return mPool;
+    }
+
+    public void addSensorSampleListener( SensorSampleListener listener ) {
+        mSampleListeners.add( listener );
+    }
+
+    /**
+     * Adds a listener that is only weakly referenced, e.g. an Activity that may not get to unregister itself.
+     */
+    public void addWeakSensorSampleListener( SensorSampleListener listener ) {
+        mSampleListeners.addWeak( listener );
+    }
+
+    public void removeSensorSampleListener( SensorSampleListener listener ) {
+        mSampleListeners.remove( listener );
+    }
+
+    public void addSensorFrameListener( SensorFrameListener listener ) {
+        mFrameListeners.add( listener );
+    }
+
+    /**
+     * Adds a listener that is only weakly referenced, e.g. an Activity that may not get to unregister itself.
+     */
+    public void addWeakSensorFrameListener( SensorFrameListener listener ) {
+        mFrameListeners.addWeak( listener );
+    }
+
+    public void removeSensorFrameListener( SensorFrameListener listener ) {
+        mFrameListeners.remove( listener );
+    }
+
+    /**
+     * Sends the streaming command for several frames per packet and spaces the frames of each packet at the
+     * requested rate. Batching frames cuts the per packet overhead at high rates, and every frame still reaches
+     * the listeners, oldest first.
+     * @param robot The robot this dispatcher is registered on
+     * @param sensorClock The rate the robot samples its sensors at, 400 Hz on most models
+     * @param divisor Streams every divisor-th sample
+     * @param framesPerPacket How many frames each packet carries
+     * @param packetCount How many packets to send, or 0 to stream until disabled
+     */
+    public void enableStreaming( Robot robot, long mask, int sensorClock, int divisor, int framesPerPacket,
+                                 int packetCount ) {
+        if( sensorClock <= 0 || divisor <= 0 || framesPerPacket <= 0 )
+            throw new IllegalArgumentException( "sensorClock, divisor and framesPerPacket must be positive" );
+        setFrameInterval( 1000.0 * divisor / sensorClock );
+        robot.sendCommand( new SetDataStreamingCommand( divisor, framesPerPacket, mask, packetCount ) );
+    }
+
+    /**
+     * Sets the time between two streamed frames, used to timestamp the frames that arrive together in one packet.
+     * @param millis The interval in milliseconds, or 0 to estimate it from packet arrivals, which is the default
+     */
+    public void setFrameInterval( double millis ) {
+        if( millis < 0 )
+            throw new IllegalArgumentException( "millis must not be negative: " + millis );
+        mConfiguredFrameInterval = millis;
+    }
+
+    /**
+     * Stamps frames on the robot's sampling grid instead of spacing them back from each packet's receive time.
+     * @param timestamper The timestamper, or null to use receive times
+     */
+    public void setFrameTimestamper( SensorFrameTimestamper timestamper ) {
+        mTimestamper = timestamper;
+    }
+
+    /**
+     * @return The time between two frames used for timestamps, in milliseconds: the configured interval, or the
+     *         current estimate
+     */
+    public double getFrameInterval() {
+        double configured = mConfiguredFrameInterval;
+        return configured > 0 ? configured : mEstimatedFrameInterval;
+    }
+
+    /**
+     * @return The layout of the frames currently being streamed
+     */
+    public SensorFrameLayout getLayout() {
+        return mLayout;
+    }
+
+    @Override
+    public void handleResponse( DeviceResponse response, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleStringResponse( String stringResponse, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+        if( asyncMessage == null )
+            return;
+
+        byte[] data;
+        int dataOffset;
+        int dataLength;
+        if( asyncMessage instanceof DeviceSensorAsyncMessage ) {
+            data = ( (DeviceSensorAsyncMessage) asyncMessage ).getRawData();
+            dataOffset = 0;
+            dataLength = data != null ? data.length : 0;
+        } else {
+            // The SDK decodes sensor packets with a length byte of 0x80 or more as plain AsyncMessages, which
+            // happens as soon as several frames are batched per packet. Take the frames from the packet instead.
+            data = asyncMessage.getPacket();
+            if( data == null || data.length <= PACKET_OVERHEAD
+                || data[ID_OFFSET] != AsyncMessage.Type.SensorAsyncMessage.getValue() )
+                return;
+            dataOffset = PAYLOAD_OFFSET;
+            dataLength = data.length - PACKET_OVERHEAD;
+        }
+
+        ListenerRegistry.Entry<SensorSampleListener>[] sampleListeners = mSampleListeners.snapshot();
+        ListenerRegistry.Entry<SensorFrameListener>[] frameListeners = mFrameListeners.snapshot();
+        if( sampleListeners.length == 0 && frameListeners.length == 0 )
+            return;
+
+        long mask = DeviceSensorAsyncMessage.sMask;
+        if( mLayout.getMask() != mask ) {
+            mLayout = new SensorFrameLayout( mask );
+            mLastFrameTime = Long.MIN_VALUE;
+            if( mTimestamper != null )
+                mTimestamper.reset();
+        }
+        int frameLength = mLayout.getFrameLength();
+        if( data == null || frameLength == 0 )
+            return;
+
+        Date received = asyncMessage.getTimeStamp();
+        long timeStamp = received != null ? received.getTime() : System.currentTimeMillis();
+
+        int frameCount = dataLength / frameLength;
+        if( frameCount == 0 )
+            return;
+        double frameInterval = updateFrameInterval( timeStamp, frameCount );
+
+        SensorFrameTimestamper timestamper = mTimestamper;
+        if( timestamper != null ) {
+            if( mFrameTimes.length < frameCount )
+                mFrameTimes = new long[frameCount];
+            timestamper.stampPacket( timeStamp, frameCount, frameInterval, mFrameTimes );
+        }
+
+        for( int frame = 0; frame < frameCount; frame++ ) {
+            int offset = dataOffset + frame * frameLength;
+            long frameTime;
+            if( timestamper != null ) {
+                frameTime = mFrameTimes[frame];
+            } else {
+                // The last frame was sampled just before the packet was sent, the others one interval before it
+                frameTime = Math.max( mLastFrameTime, timeStamp - Math.round( ( frameCount - 1 - frame ) * frameInterval ) );
+                mLastFrameTime = frameTime;
+            }
+
+            if( sampleListeners.length > 0 ) {
+                dispatchSample( sampleListeners, mask, data, offset, frameTime, robot );
+            }
+            if( frameListeners.length > 0 ) {
+                mFrame.decode( mLayout, data, offset, frameTime );
+                for( int i = 0; i < frameListeners.length; i++ ) {
+                    SensorFrameListener listener = frameListeners[i].get();
+                    if( listener != null )
+                        listener.handleSensorFrame( mFrame, robot );
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the packet's arrival into the frame interval estimate, unless an interval was set.
+     * @return The interval to space this packet's frames by, in milliseconds
+     */
+    private double updateFrameInterval( long timeStamp, int frameCount ) {
+        double configured = mConfiguredFrameInterval;
+        if( configured > 0 ) {
+            mLastPacketTime = timeStamp;
+            return configured;
+        }
+
+        if( mLastPacketTime != Long.MIN_VALUE ) {
+            double interval = (double) ( timeStamp - mLastPacketTime ) / frameCount;
+            if( mEstimatedFrameInterval == 0 ) {
+                mEstimatedFrameInterval = interval;
+            } else if( interval < mEstimatedFrameInterval * MAX_INTERVAL_JUMP ) {
+                // Lost packets leave a long gap that says nothing about the rate, so only plausible gaps count
+                mEstimatedFrameInterval += ( interval - mEstimatedFrameInterval ) * ESTIMATE_WEIGHT;
+            }
+        }
+        mLastPacketTime = timeStamp;
+        return mEstimatedFrameInterval;
+    }
+
+    private void dispatchSample( ListenerRegistry.Entry<SensorSampleListener>[] listeners, long mask, byte[] data,
+                                 int offset, long timeStamp, Robot robot ) {
+        boolean recycling = mRecycling;
+        SensorSample sample = recycling ? mPool.obtain() : new SensorSample();
+        sample.decode( mask, data, offset, timeStamp );
+        try {
+            for( int i = 0; i < listeners.length; i++ ) {
+                SensorSampleListener listener = listeners[i].get();
+                if( listener != null )
+                    listener.handleSensorSample( sample, robot );
+            }
+        } finally {
+            if( recycling ) {
+                mPool.recycle( sample );
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceMessage;
+import com.orbotix.common.internal.DeviceResponse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes every packet a robot sends to a compact binary log, for offline analysis and for replay with
+ * {@link SessionReplayer}.
+ *
+ * Register it as a response listener on the robot, or feed it raw packets from a {@link PacketFramer}. The file is
+ * written through a memory-mapped window that moves along as the log grows, so recording a packet is a copy into
+ * the page cache without a system call. The file is trimmed to its real length on {@link #close()}.
+ *
+ * Layout, all numbers big endian:
+ *
+ *   header:  MAGIC(4) VERSION(1) START_TIME(8)
+ *   record:  TYPE(1) TIME_DELTA(varint) LENGTH(varint) BODY(LENGTH)
+ *
+ * TIME_DELTA is the receive time in milliseconds since the previous record. A PACKET record's body is the packet
+ * from SOP1 through the checksum. Sensor packets can only be decoded with the streaming mask they were produced
+ * with, so a STREAMING_CONFIG record carrying MASK(8) FRAMES(4) is written before the first sensor packet and
+ * whenever the mask changes. A zero TYPE byte marks the end of a log that was not closed properly.
+ */
+public class SessionRecorder implements ResponseListener, PacketFramer.PacketListener, Closeable {
+
+    static final int MAGIC = 0x53504B4C; // "SPKL"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 13;
+
+    static final int RECORD_PACKET = 1;
+    static final int RECORD_STREAMING_CONFIG = 2;
+
+    /**
+     * How much of the file is mapped at a time
+     */
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    // TYPE, TIME_DELTA and LENGTH take at most 1 + 10 + 5 bytes
+    private static final int MAX_RECORD_OVERHEAD = 16;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    // Reused for packets copied out of a PacketFramer
+    private byte[] mScratch = new byte[256];
+
+    private long mLastTime;
+    private long mRecordedMask;
+    private int mRecordedFrames;
+    private long mPacketCount;
+    private boolean mClosed;
+
+    // The file's final length, once closed
+    private long mClosedLength;
+
+    /**
+     * Creates or overwrites the log file and writes its header.
+     */
+    public SessionRecorder( File file ) throws IOException {
+        mFile = new RandomAccessFile( file, "rw" );
+        mFile.setLength( 0 );
+        mChannel = mFile.getChannel();
+        mapWindow( 0, HEADER_LENGTH );
+
+        mLastTime = System.currentTimeMillis();
+        mWindow.putInt( MAGIC );
+        mWindow.put( (byte) VERSION );
+        mWindow.putLong( mLastTime );
+    }
+
+    /**
+     * Appends a packet received at the given time.
+     * @param packet The packet, from SOP1 through the checksum
+     * @param receiveTime The receive time in milliseconds since the epoch
+     */
+    public synchronized void recordPacket( byte[] packet, int offset, int length, long receiveTime ) {
+        if( mClosed )
+            return;
+        try {
+            if( length > 2 && ( packet[offset + 1] & 0xFF ) == PacketFramer.SOP2_ASYNC
+                && ( packet[offset + 2] & 0xFF ) == AsyncMessage.Type.SensorAsyncMessage.getValue() )
+                recordStreamingConfig( receiveTime );
+            beginRecord( RECORD_PACKET, receiveTime, length );
+            mWindow.put( packet, offset, length );
+            mPacketCount++;
+        } catch( IOException e ) {
+            throw new IllegalStateException( "Could not extend the session log", e );
+        }
+    }
+
+    public synchronized long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    public synchronized long getLength() {
+        if( mClosed )
+            return mClosedLength;
+        return mWindowStart + mWindow.position();
+    }
+
+    @Override
+    public void handleResponse( DeviceResponse response, Robot robot ) {
+        record( response );
+    }
+
+    @Override
+    public void handleStringResponse( String stringResponse, Robot robot ) {
+
+    }
+
+    @Override
+    public void handleAsyncMessage( AsyncMessage asyncMessage, Robot robot ) {
+        record( asyncMessage );
+    }
+
+    @Override
+    public synchronized void onPacket( PacketFramer framer, boolean isAsync, int length ) {
+        if( mScratch.length < length )
+            mScratch = new byte[Math.max( length, mScratch.length * 2 )];
+        framer.copyPacket( mScratch, 0 );
+        recordPacket( mScratch, 0, length, System.currentTimeMillis() );
+    }
+
+    /**
+     * Forces the log to storage and trims the file to what was written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if( mClosed )
+            return;
+        long length = getLength();
+        mClosed = true;
+        mClosedLength = length;
+        mWindow.force();
+        mWindow = null;
+        mChannel.truncate( length );
+        mFile.close();
+    }
+
+    private void record( DeviceMessage message ) {
+        byte[] packet = message.getPacket();
+        if( packet == null )
+            return;
+        long receiveTime = message.getTimeStamp() != null ? message.getTimeStamp().getTime() : System.currentTimeMillis();
+        recordPacket( packet, 0, packet.length, receiveTime );
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void recordStreamingConfig( long receiveTime ) throws IOException {
+        long mask = DeviceSensorAsyncMessage.sMask;
+        int frames = DeviceSensorAsyncMessage.sPacketFrames;
+        if( mask == mRecordedMask && frames == mRecordedFrames )
+            return;
+        beginRecord( RECORD_STREAMING_CONFIG, receiveTime, 12 );
+        mWindow.putLong( mask );
+        mWindow.putInt( frames );
+        mRecordedMask = mask;
+        mRecordedFrames = frames;
+    }
+
+    /**
+     * Makes room for a record and writes its type, time delta and body length.
+     */
+    private void beginRecord( int type, long time, int length ) throws IOException {
+        if( mWindow.remaining() < MAX_RECORD_OVERHEAD + length )
+            mapWindow( getLength(), MAX_RECORD_OVERHEAD + length );
+
+        // Receive times can step back slightly when messages come from different threads
+        long delta = Math.max( 0, time - mLastTime );
+        mLastTime = Math.max( mLastTime, time );
+        mWindow.put( (byte) type );
+        putVarint( delta );
+        putVarint( length );
+    }
+
+    /**
+     * Maps a new window starting at the given file position, large enough for at least minimumSize bytes.
+     */
+    private void mapWindow( long position, int minimumSize ) throws IOException {
+        if( mWindow != null )
+            mWindow.force();
+        mWindowStart = position;
+        mWindow = mChannel.map( FileChannel.MapMode.READ_WRITE, position, Math.max( WINDOW_SIZE, minimumSize ) );
+    }
+
+    private void putVarint( long value ) {
+        while( ( value & ~0x7FL ) != 0 ) {
+            mWindow.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        mWindow.put( (byte) value );
+    }
+}
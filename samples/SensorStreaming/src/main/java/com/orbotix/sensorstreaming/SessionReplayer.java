@@ -0,0 +1,243 @@
+package com.orbotix.sensorstreaming;
+
+import android.util.Log;
+
+import com.orbotix.async.DeviceSensorAsyncMessage;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.internal.MainProcessorSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Plays a log written by {@link SessionRecorder} back to ordinary {@link ResponseListener}s.
+ *
+ * The log is mapped read-only and every recorded packet is handed to a {@link MainProcessorSession}, so listeners
+ * receive the same message classes a connected robot would produce, with the recorded gaps between them scaled by
+ * the speed factor. Streaming config records update the SDK's streaming mask before the sensor packets that depend
+ * on it, which means a replay must not run while a real robot is streaming in the same process.
+ *
+ * The session cannot know which command a recorded response answered, so responses arrive as generic
+ * DeviceResponses without a command. Async messages, including sensor data and collisions, are fully decoded.
+ *
+ *   SessionReplayer replayer = new SessionReplayer( file );
+ *   replayer.addResponseListener( listener );
+ *   replayer.setSpeed( 4 );
+ *   replayer.start();
+ */
+public class SessionReplayer implements MainProcessorSession.MainProcessorSessionDelegate {
+
+    private static final String TAG = "SessionReplayer";
+
+    // Longest pause honoured between two records, so a log with a long idle stretch does not stall the replay
+    private static final long MAX_PAUSE_MILLIS = 5000;
+
+    private final File mFile;
+    private final MainProcessorSession mSession = new MainProcessorSession( this );
+    private final CopyOnWriteArrayList<ResponseListener> mListeners = new CopyOnWriteArrayList<ResponseListener>();
+
+    private volatile Robot mRobot;
+    private volatile float mSpeed = 1f;
+    private volatile boolean mStopped;
+    private volatile long mReplayedCount;
+    private Thread mThread;
+
+    public SessionReplayer( File file ) {
+        mFile = file;
+    }
+
+    public void addResponseListener( ResponseListener listener ) {
+        if( listener != null )
+            mListeners.addIfAbsent( listener );
+    }
+
+    public void removeResponseListener( ResponseListener listener ) {
+        mListeners.remove( listener );
+    }
+
+    /**
+     * @param robot The robot passed to listeners, or null
+     */
+    public void setRobot( Robot robot ) {
+        mRobot = robot;
+    }
+
+    /**
+     * @param speed 1 for real time, 2 for twice as fast and so on, or 0 to replay as fast as possible
+     */
+    public void setSpeed( float speed ) {
+        if( speed < 0 || Float.isNaN( speed ) )
+            throw new IllegalArgumentException( "speed must not be negative: " + speed );
+        mSpeed = speed;
+    }
+
+    /**
+     * @return The number of packets replayed so far
+     */
+    public long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    /**
+     * Replays the log on a background thread. Does nothing if a replay is already running.
+     */
+    public synchronized void start() {
+        if( mThread != null && mThread.isAlive() )
+            return;
+        mStopped = false;
+        mThread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch( IOException e ) {
+                    Log.e( TAG, "Could not replay " + mFile, e );
+                }
+            }
+        }, "SessionReplayer" );
+        mThread.start();
+    }
+
+    /**
+     * Stops a replay started with {@link #start()} or running in {@link #replay()}, after the current packet.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        if( mThread != null ) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Replays the log on the calling thread and returns when it is done or stopped.
+     * @return The number of packets replayed
+     * @throws IOException If the file cannot be read or is not a session log
+     */
+    public long replay() throws IOException {
+        mReplayedCount = 0;
+        RandomAccessFile file = new RandomAccessFile( mFile, "r" );
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer log = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if( log.remaining() < SessionRecorder.HEADER_LENGTH || log.getInt() != SessionRecorder.MAGIC )
+                throw new IOException( mFile + " is not a session log" );
+            int version = log.get() & 0xFF;
+            if( version != SessionRecorder.VERSION )
+                throw new IOException( "Unsupported session log version " + version );
+            log.getLong();
+
+            replayRecords( log );
+        } finally {
+            file.close();
+        }
+        return mReplayedCount;
+    }
+
+    private void replayRecords( MappedByteBuffer log ) {
+        long start = System.nanoTime();
+        // Time into the recording of the current record, in milliseconds
+        long recordTime = 0;
+        float speed = mSpeed;
+
+        try {
+            while( !mStopped && log.hasRemaining() ) {
+                int type = log.get() & 0xFF;
+                // A recording that was not closed ends in the zero padding of its last window
+                if( type == 0 )
+                    break;
+                recordTime += Math.min( getVarint( log ), MAX_PAUSE_MILLIS );
+                int length = (int) getVarint( log );
+                if( length < 0 || length > log.remaining() )
+                    break;
+
+                if( type == SessionRecorder.RECORD_STREAMING_CONFIG ) {
+                    DeviceSensorAsyncMessage.sMask = log.getLong();
+                    DeviceSensorAsyncMessage.sPacketFrames = log.getInt();
+                    log.position( log.position() + length - 12 );
+                    continue;
+                }
+                if( type != SessionRecorder.RECORD_PACKET ) {
+                    log.position( log.position() + length );
+                    continue;
+                }
+
+                // Messages keep the packet they were decoded from, so each one gets its own array
+                byte[] packet = new byte[length];
+                log.get( packet );
+
+                // Keep the schedule relative to the start, so time spent in listeners does not accumulate
+                if( speed != mSpeed ) {
+                    start = System.nanoTime() - (long) ( recordTime * 1e6 / Math.max( mSpeed, 1e-3f ) );
+                    speed = mSpeed;
+                }
+                if( speed > 0 && !sleepUntil( start + (long) ( recordTime * 1e6 / speed ) ) )
+                    break;
+
+                mSession.processRawData( packet );
+                mReplayedCount++;
+            }
+        } catch( BufferUnderflowException e ) {
+            // Truncated final record
+        }
+    }
+
+    /**
+     * @return False if interrupted
+     */
+    private boolean sleepUntil( long deadlineNanos ) {
+        long remaining;
+        while( ( remaining = deadlineNanos - System.nanoTime() ) > 0 ) {
+            try {
+                Thread.sleep( remaining / 1000000L, (int) ( remaining % 1000000L ) );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getVarint( MappedByteBuffer log ) {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            int b = log.get() & 0xFF;
+            value |= (long) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 )
+                return value;
+        }
+        return -1;
+    }
+
+    @Override
+    public void handleResponseCreated( DeviceResponse response ) {
+        Robot robot = mRobot;
+        for( ResponseListener listener : mListeners ) {
+            listener.handleResponse( response, robot );
+        }
+    }
+
+    @Override
+    public void handleAsyncMessageCreated( AsyncMessage asyncMessage ) {
+        Robot robot = mRobot;
+        for( ResponseListener listener : mListeners ) {
+            listener.handleAsyncMessage( asyncMessage, robot );
+        }
+    }
+
+    @Override
+    public void handleStringResponseCreated( String stringResponse ) {
+        Robot robot = mRobot;
+        for( ResponseListener listener : mListeners ) {
+            listener.handleStringResponse( stringResponse, robot );
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package com.orbotix.sensorstreaming;
+
+import com.orbotix.command.SleepCommand;
+import com.orbotix.command.VersioningResponse;
+import com.orbotix.common.ResponseListener;
+import com.orbotix.common.Robot;
+import com.orbotix.common.internal.AsyncMessage;
+import com.orbotix.common.internal.DeviceCommand;
+import com.orbotix.common.internal.DeviceResponse;
+import com.orbotix.common.internal.MainProcessorSession;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process robot for exercising app code without Bluetooth.
+ *
+ * Commands go through a real {@link MainProcessorSession}: each one is encoded with
+ * {@link MainProcessorSession#packetForCommand(DeviceCommand)}, the packet is parsed back, and the simulator answers
+ * with raw response bytes that are fed to {@link MainProcessorSession#processRawData(byte[])}. Listeners therefore
+ * receive exactly the response and async message objects a connected robot would produce.
+ *
+ * The simulator understands enough of the protocol to be useful:
+ *
+ *   Roll / Stop           moves a simple point robot, visible through the locator, velocity and attitude sensors
+ *   SetDataStreaming      streams sensor packets at 400 Hz / divisor with the requested frames, mask and count
+ *   ConfigureLocator      moves the locator origin
+ *   ConfigureCollisions   enables collision messages, raised with {@link #simulateCollision(float, float)}
+ *   PollPacketTimes       answers with the robot clock, milliseconds of wall time since the simulator was created
+ *   Sleep                 disconnects
+ *
+ * Every other command is acknowledged with an empty, successful response. A few reads that carry data (versions,
+ * power state, Bluetooth info, odometer) return fixed plausible values.
+ *
+ * Simulated time advances by one sensor sample per streamed frame, not by the wall clock, so the values of a
+ * stream depend only on the commands sent. With automatic streaming turned off, packets are only produced by
+ * {@link #emitSensorPacket()}, which makes runs fully deterministic.
+ *
+ * The same simulator also serves as the firmware behind a {@link LoopbackRadioLink}, which plugs it in below the
+ * SDK's own RobotBase and RadioLink instead of standing in for the robot object.
+ */
+public class SimulatedRobot implements Robot, MainProcessorSession.MainProcessorSessionDelegate {
+
+    // Device and command ids the simulator acts on
+    private static final int DID_CORE = 0x00;
+    private static final int DID_ROBOT = 0x02;
+    private static final int CID_VERSIONING = 0x02;
+    private static final int CID_GET_BLUETOOTH_INFO = 0x11;
+    private static final int CID_GET_POWER_STATE = 0x20;
+    private static final int CID_SLEEP = 0x22;
+    private static final int CID_POLL_PACKET_TIMES = 0x51;
+    private static final int CID_SET_HEADING = 0x01;
+    private static final int CID_SET_DATA_STREAMING = 0x11;
+    private static final int CID_CONFIGURE_COLLISIONS = 0x12;
+    private static final int CID_CONFIGURE_LOCATOR = 0x13;
+    private static final int CID_ROLL = 0x30;
+    private static final int CID_GET_ODOMETER = 0x75;
+
+    private static final int ASYNC_SENSOR_DATA = 0x03;
+    private static final int ASYNC_COLLISION = 0x07;
+
+    // SOP1, SOP2, DID, CID, SEQ, DLEN
+    private static final int COMMAND_HEADER_LENGTH = 6;
+
+    /**
+     * The sensor sampling rate streaming divisors apply to
+     */
+    private static final int SENSOR_SAMPLE_HZ = 400;
+
+    /**
+     * The speed a roll at full velocity (255) reaches, in cm/s
+     */
+    private static final float MAX_SPEED_CM_PER_SECOND = 200f;
+
+    // Sensor mask bits with a modelled value
+    private static final int BIT_ACCEL_RAW_Z = 29;
+    private static final int BIT_IMU_YAW = 16;
+    private static final int BIT_ACCEL_Z = 13;
+    private static final int BIT_EMF_RIGHT = 6;
+    private static final int BIT_EMF_LEFT = 5;
+    private static final int BIT_QUATERNION_Q0 = 63;
+    private static final int BIT_QUATERNION_Q3 = 60;
+    private static final int BIT_LOCATOR_X = 59;
+    private static final int BIT_LOCATOR_Y = 58;
+    private static final int BIT_ACCEL_ONE = 57;
+    private static final int BIT_VELOCITY_X = 56;
+    private static final int BIT_VELOCITY_Y = 55;
+
+    private static final short ONE_G = 4096;
+
+    /**
+     * Receives the raw bytes the simulator sends back, in place of its own session
+     */
+    interface PacketSink {
+        void handlePacket( byte[] packet );
+    }
+
+    private final String mName;
+    private final String mAddress;
+    private final MainProcessorSession mSession;
+    private final PacketSink mSink;
+    private final Object mSessionLock = new Object();
+    private final CopyOnWriteArrayList<ResponseListener> mListeners = new CopyOnWriteArrayList<ResponseListener>();
+    // Replaced when the simulator reconnects, since a shut down executor cannot be restarted
+    private volatile ScheduledExecutorService mExecutor;
+    private final long mClockOrigin = System.nanoTime();
+
+    private volatile boolean mConnected = true;
+    private boolean mAutoStreaming = true;
+    private long mResponseDelayMillis;
+
+    // Motion state, guarded by this
+    private float mHeadingDegrees;
+    private float mSpeed;
+    private float mX;
+    private float mY;
+    private float mDistance;
+    private boolean mCollisionsEnabled;
+    private long mSimulatedMillis;
+
+    // Streaming state, guarded by this
+    private SensorFrameLayout mLayout;
+    private int mDivisor;
+    private int mFramesPerPacket;
+    private int mPacketsRemaining;
+    private ScheduledFuture<?> mStreamTask;
+
+    public SimulatedRobot( String name ) {
+        this( name, null );
+    }
+
+    /**
+     * @param sink Receives the response and async packets, or null to decode them with the simulator's own session
+     */
+    SimulatedRobot( String name, PacketSink sink ) {
+        mName = name;
+        mSink = sink;
+        mAddress = String.format( "00:06:66:%02X:%02X:%02X", name.hashCode() & 0xFF, ( name.hashCode() >> 8 ) & 0xFF,
+                                  ( name.hashCode() >> 16 ) & 0xFF );
+        mSession = new MainProcessorSession( this );
+        mExecutor = newExecutor();
+    }
+
+    /**
+     * Connects again after {@link #disconnect()} or a sleep, like a robot that was woken up. Position and heading are
+     * kept; streaming stays off until it is configured again. Does nothing while connected.
+     */
+    public synchronized void connect() {
+        if( mConnected && !mExecutor.isShutdown() )
+            return;
+        if( mExecutor.isShutdown() )
+            mExecutor = newExecutor();
+        mConnected = true;
+    }
+
+    /**
+     * Turns timed sensor streaming on or off. While off, a streaming command only configures the stream and
+     * packets are produced by {@link #emitSensorPacket()}.
+     */
+    public synchronized void setAutoStreaming( boolean autoStreaming ) {
+        mAutoStreaming = autoStreaming;
+        scheduleStreaming();
+    }
+
+    /**
+     * Sets how long the simulator waits before answering a command, to imitate link latency.
+     */
+    public synchronized void setResponseDelayMillis( long responseDelayMillis ) {
+        mResponseDelayMillis = Math.max( 0, responseDelayMillis );
+    }
+
+    /**
+     * Produces one sensor packet for the current streaming configuration on the calling thread.
+     * @return False if streaming is off or its packet count has run out
+     */
+    public boolean emitSensorPacket() {
+        byte[] packet;
+        synchronized( this ) {
+            if( mLayout == null || mPacketsRemaining == 0 )
+                return false;
+            if( mPacketsRemaining > 0 )
+                mPacketsRemaining--;
+            packet = buildSensorPacket();
+            if( mPacketsRemaining == 0 )
+                stopStreaming();
+        }
+        feed( packet );
+        return true;
+    }
+
+    /**
+     * Raises a collision message, if collision detection has been configured.
+     * @param impactX The impact acceleration along x, in g
+     * @param impactY The impact acceleration along y, in g
+     * @return False if collision detection is off
+     */
+    public boolean simulateCollision( float impactX, float impactY ) {
+        byte[] data = new byte[16];
+        synchronized( this ) {
+            if( !mCollisionsEnabled )
+                return false;
+            putShort( data, 0, (short) ( impactX * ONE_G ) );
+            putShort( data, 2, (short) ( impactY * ONE_G ) );
+            putShort( data, 4, ONE_G );
+            data[6] = (byte) ( ( impactX != 0 ? 0x01 : 0 ) | ( impactY != 0 ? 0x02 : 0 ) );
+            putShort( data, 7, (short) Math.abs( impactX * 100 ) );
+            putShort( data, 9, (short) Math.abs( impactY * 100 ) );
+            data[11] = (byte) Math.min( 255, Math.round( mSpeed / MAX_SPEED_CM_PER_SECOND * 255 ) );
+            putInt( data, 12, (int) mSimulatedMillis );
+        }
+        deliver( asyncPacket( ASYNC_COLLISION, data ), 0 );
+        return true;
+    }
+
+    /**
+     * @return The simulated position in cm, as reported by the locator
+     */
+    public synchronized float getX() {
+        return mX;
+    }
+
+    public synchronized float getY() {
+        return mY;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return mAddress;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public String getSerialNumber() {
+        return "SIM-" + mName;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void sendCommand( DeviceCommand command ) {
+        if( !mConnected )
+            return;
+        receiveCommandPacket( mSession.packetForCommand( command ) );
+    }
+
+    /**
+     * Runs an encoded command as the robot would when it arrives over the radio, and sends the response back.
+     */
+    void receiveCommandPacket( byte[] packet ) {
+        if( !mConnected )
+            return;
+        long delay;
+        synchronized( this ) {
+            delay = mResponseDelayMillis;
+        }
+        byte[] response = handleCommandPacket( packet );
+        if( response != null )
+            deliver( response, delay );
+    }
+
+    @Override
+    public void streamCommand( DeviceCommand command ) {
+        sendCommand( command );
+    }
+
+    @Override
+    public void addResponseListener( ResponseListener listener ) {
+        if( listener != null )
+            mListeners.addIfAbsent( listener );
+    }
+
+    @Override
+    public void removeResponseListener( ResponseListener listener ) {
+        mListeners.remove( listener );
+    }
+
+    @Override
+    public int getConnectTimeInSeconds() {
+        return 0;
+    }
+
+    @Override
+    public VersioningResponse getVersions() {
+        return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return false;
+    }
+
+    @Override
+    public boolean isOnline() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isBootloader() {
+        return false;
+    }
+
+    @Override
+    public void sleep() {
+        disconnect();
+    }
+
+    @Override
+    public void sleep( SleepCommand.SleepType sleepType ) {
+        disconnect();
+    }
+
+    @Override
+    public void disconnect() {
+        mConnected = false;
+        synchronized( this ) {
+            stopStreaming();
+        }
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public float getSignalQuality() {
+        return 1f;
+    }
+
+    @Override
+    public String getRadioFirmwareRevision() {
+        return "simulated";
+    }
+
+    @Override
+    public void handleResponseCreated( DeviceResponse response ) {
+        for( ResponseListener listener : mListeners ) {
+            listener.handleResponse( response, this );
+        }
+    }
+
+    @Override
+    public void handleAsyncMessageCreated( AsyncMessage asyncMessage ) {
+        for( ResponseListener listener : mListeners ) {
+            listener.handleAsyncMessage( asyncMessage, this );
+        }
+    }
+
+    @Override
+    public void handleStringResponseCreated( String stringResponse ) {
+        for( ResponseListener listener : mListeners ) {
+            listener.handleStringResponse( stringResponse, this );
+        }
+    }
+
+    /**
+     * Parses an encoded command, applies it, and builds the response packet.
+     * @return The response, or null if none was requested or the packet was malformed
+     */
+    private byte[] handleCommandPacket( byte[] packet ) {
+        if( packet == null || packet.length < COMMAND_HEADER_LENGTH + 1 )
+            return null;
+        int deviceId = packet[2] & 0xFF;
+        int commandId = packet[3] & 0xFF;
+        byte sequence = packet[4];
+        int dataLength = ( packet[5] & 0xFF ) - 1;
+        if( dataLength < 0 || COMMAND_HEADER_LENGTH + dataLength + 1 != packet.length )
+            return null;
+        if( checksum( packet, 2, packet.length - 3 ) != packet[packet.length - 1] )
+            return null;
+
+        byte[] responseData = applyCommand( deviceId, commandId, packet, COMMAND_HEADER_LENGTH, dataLength );
+
+        boolean responseRequested = ( packet[1] & 0x01 ) != 0;
+        return responseRequested ? responsePacket( sequence, responseData ) : null;
+    }
+
+    /**
+     * @return The data for the response
+     */
+    private synchronized byte[] applyCommand( int deviceId, int commandId, byte[] packet, int offset, int length ) {
+        if( deviceId == DID_CORE ) {
+            switch( commandId ) {
+                case CID_VERSIONING:
+                    return new byte[]{ 0x02, 0x02, 0x07, 0x01, 0x60, 0x04, 0x37, 0x04, 0x01, 0x10 };
+                case CID_GET_BLUETOOTH_INFO:
+                    return bluetoothInfo();
+                case CID_GET_POWER_STATE:
+                    // Record version, "battery OK", 7.8V, 12 charges, 60s awake
+                    return new byte[]{ 0x01, 0x02, 0x03, 0x0C, 0x00, 0x0C, 0x00, 0x3C };
+                case CID_POLL_PACKET_TIMES:
+                    if( length < 4 )
+                        return null;
+                    // Echo the host's transmit time, then the robot's receive and transmit times
+                    byte[] times = new byte[12];
+                    System.arraycopy( packet, offset, times, 0, 4 );
+                    int robotTime = (int) ( ( System.nanoTime() - mClockOrigin ) / 1000000L );
+                    putInt( times, 4, robotTime );
+                    putInt( times, 8, robotTime );
+                    return times;
+                case CID_SLEEP:
+                    mConnected = false;
+                    stopStreaming();
+                    return null;
+                default:
+                    return null;
+            }
+        }
+        if( deviceId != DID_ROBOT )
+            return null;
+
+        switch( commandId ) {
+            case CID_SET_HEADING:
+                mHeadingDegrees = 0;
+                return null;
+            case CID_ROLL:
+                if( length >= 4 ) {
+                    mSpeed = ( packet[offset] & 0xFF ) / 255f * MAX_SPEED_CM_PER_SECOND;
+                    mHeadingDegrees = getUnsignedShort( packet, offset + 1 ) % 360;
+                    if( packet[offset + 3] == 0 )
+                        mSpeed = 0;
+                }
+                return null;
+            case CID_SET_DATA_STREAMING:
+                if( length >= 9 ) {
+                    long mask = getInt( packet, offset + 4 ) & 0xFFFFFFFFL;
+                    if( length >= 13 )
+                        mask |= ( getInt( packet, offset + 9 ) & 0xFFFFFFFFL ) << 32;
+                    configureStreaming( getUnsignedShort( packet, offset ), getUnsignedShort( packet, offset + 2 ), mask,
+                                        packet[offset + 8] & 0xFF );
+                }
+                return null;
+            case CID_CONFIGURE_COLLISIONS:
+                mCollisionsEnabled = length >= 1 && packet[offset] != 0;
+                return null;
+            case CID_CONFIGURE_LOCATOR:
+                if( length >= 5 ) {
+                    mX = (short) getUnsignedShort( packet, offset + 1 );
+                    mY = (short) getUnsignedShort( packet, offset + 3 );
+                }
+                return null;
+            case CID_GET_ODOMETER:
+                byte[] odometer = new byte[4];
+                putInt( odometer, 0, Math.round( mDistance ) );
+                return odometer;
+            default:
+                return null;
+        }
+    }
+
+    // The methods below must be called while holding the lock
+
+    private void configureStreaming( int divisor, int framesPerPacket, long mask, int packetCount ) {
+        stopStreaming();
+        if( divisor <= 0 || framesPerPacket <= 0 || mask == 0 )
+            return;
+        mDivisor = divisor;
+        mFramesPerPacket = framesPerPacket;
+        mLayout = new SensorFrameLayout( mask );
+        mPacketsRemaining = packetCount == 0 ? -1 : packetCount;
+        scheduleStreaming();
+    }
+
+    private void scheduleStreaming() {
+        if( mStreamTask != null ) {
+            mStreamTask.cancel( false );
+            mStreamTask = null;
+        }
+        if( !mAutoStreaming || mLayout == null || !mConnected )
+            return;
+        long periodMicros = 1000000L * mDivisor * mFramesPerPacket / SENSOR_SAMPLE_HZ;
+        try {
+            mStreamTask = mExecutor.scheduleAtFixedRate( new Runnable() {
+                @Override
+                public void run() {
+                    emitSensorPacket();
+                }
+            }, periodMicros, periodMicros, TimeUnit.MICROSECONDS );
+        } catch( RejectedExecutionException e ) {
+            // Disconnected
+        }
+    }
+
+    private void stopStreaming() {
+        mLayout = null;
+        if( mStreamTask != null ) {
+            mStreamTask.cancel( false );
+            mStreamTask = null;
+        }
+    }
+
+    private byte[] buildSensorPacket() {
+        int fields = mLayout.getFieldCount();
+        byte[] data = new byte[mFramesPerPacket * fields * 2];
+        float stepSeconds = (float) mDivisor / SENSOR_SAMPLE_HZ;
+        int position = 0;
+        for( int frame = 0; frame < mFramesPerPacket; frame++ ) {
+            advance( stepSeconds );
+            for( int slot = 0; slot < fields; slot++ ) {
+                putShort( data, position, sensorValue( mLayout.bitAt( slot ) ) );
+                position += 2;
+            }
+        }
+        return asyncPacket( ASYNC_SENSOR_DATA, data );
+    }
+
+    private void advance( float seconds ) {
+        double radians = Math.toRadians( mHeadingDegrees );
+        // Heading 0 drives along +y, 90 along +x
+        mX += (float) ( Math.sin( radians ) * mSpeed * seconds );
+        mY += (float) ( Math.cos( radians ) * mSpeed * seconds );
+        mDistance += mSpeed * seconds;
+        mSimulatedMillis += Math.round( seconds * 1000 );
+    }
+
+    /**
+     * @return The raw value streamed for a mask bit. Unmodelled sensors read 0.
+     */
+    private short sensorValue( int bit ) {
+        double radians = Math.toRadians( mHeadingDegrees );
+        switch( bit ) {
+            case BIT_ACCEL_RAW_Z:
+            case BIT_ACCEL_Z:
+            case BIT_ACCEL_ONE:
+                return ONE_G;
+            case BIT_IMU_YAW:
+                return (short) ( mHeadingDegrees > 180 ? mHeadingDegrees - 360 : mHeadingDegrees );
+            case BIT_EMF_RIGHT:
+            case BIT_EMF_LEFT:
+                return (short) ( mSpeed / MAX_SPEED_CM_PER_SECOND * 255 );
+            case BIT_QUATERNION_Q0:
+                return (short) Math.round( Math.cos( radians / 2 ) * 10000 );
+            case BIT_QUATERNION_Q3:
+                return (short) Math.round( -Math.sin( radians / 2 ) * 10000 );
+            case BIT_LOCATOR_X:
+                return (short) Math.round( mX );
+            case BIT_LOCATOR_Y:
+                return (short) Math.round( mY );
+            case BIT_VELOCITY_X:
+                return (short) Math.round( Math.sin( radians ) * mSpeed * 10 );
+            case BIT_VELOCITY_Y:
+                return (short) Math.round( Math.cos( radians ) * mSpeed * 10 );
+            default:
+                return 0;
+        }
+    }
+
+    private byte[] bluetoothInfo() {
+        byte[] data = new byte[32];
+        byte[] name = mName.getBytes();
+        System.arraycopy( name, 0, data, 0, Math.min( 16, name.length ) );
+        byte[] address = mAddress.replace( ":", "" ).getBytes();
+        System.arraycopy( address, 0, data, 16, Math.min( 12, address.length ) );
+        data[29] = 'R';
+        data[30] = 'G';
+        data[31] = 'B';
+        return data;
+    }
+
+    /**
+     * Hands a packet to the session on the simulator's thread, after the given delay.
+     */
+    private void deliver( final byte[] packet, long delayMillis ) {
+        final ScheduledExecutorService executor = mExecutor;
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                // A packet from before a reconnect belongs to the old connection
+                if( executor == mExecutor )
+                    feed( packet );
+            }
+        };
+        try {
+            executor.schedule( delivery, delayMillis, TimeUnit.MILLISECONDS );
+        } catch( RejectedExecutionException e ) {
+            // Disconnected
+        }
+    }
+
+    /**
+     * Passes bytes to the session or the sink one packet at a time, whichever thread produced them.
+     */
+    private void feed( byte[] packet ) {
+        synchronized( mSessionLock ) {
+            if( mSink != null ) {
+                mSink.handlePacket( packet );
+            } else {
+                mSession.processRawData( packet );
+            }
+        }
+    }
+
+    private ScheduledExecutorService newExecutor() {
+        return Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "SimulatedRobot-" + mName );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    private static byte[] responsePacket( byte sequence, byte[] data ) {
+        int dataLength = data == null ? 0 : data.length;
+        byte[] packet = new byte[6 + dataLength];
+        packet[0] = (byte) PacketFramer.SOP1;
+        packet[1] = (byte) PacketFramer.SOP2_RESPONSE;
+        packet[2] = 0; // MRSP: ORBOTIX_RSP_CODE_OK
+        packet[3] = sequence;
+        packet[4] = (byte) ( dataLength + 1 );
+        if( dataLength > 0 )
+            System.arraycopy( data, 0, packet, 5, dataLength );
+        packet[packet.length - 1] = checksum( packet, 2, packet.length - 3 );
+        return packet;
+    }
+
+    private static byte[] asyncPacket( int id, byte[] data ) {
+        int length = data.length + 1;
+        byte[] packet = new byte[5 + length];
+        packet[0] = (byte) PacketFramer.SOP1;
+        packet[1] = (byte) PacketFramer.SOP2_ASYNC;
+        packet[2] = (byte) id;
+        packet[3] = (byte) ( length >> 8 );
+        packet[4] = (byte) length;
+        System.arraycopy( data, 0, packet, 5, data.length );
+        packet[packet.length - 1] = checksum( packet, 2, packet.length - 3 );
+        return packet;
+    }
+
+    private static byte checksum( byte[] packet, int offset, int length ) {
+        int sum = 0;
+        for( int i = offset; i < offset + length; i++ ) {
+            sum += packet[i] & 0xFF;
+        }
+        return (byte) ~sum;
+    }
+
+    private static int getUnsignedShort( byte[] data, int offset ) {
+        return ( ( data[offset] & 0xFF ) << 8 ) | ( data[offset + 1] & 0xFF );
+    }
+
+    private static int getInt( byte[] data, int offset ) {
+        return ( ( data[offset] & 0xFF ) << 24 ) | ( ( data[offset + 1] & 0xFF ) << 16 )
+               | ( ( data[offset + 2] & 0xFF ) << 8 ) | ( data[offset + 3] & 0xFF );
+    }
+
+    private static void putShort( byte[] data, int offset, short value ) {
+        data[offset] = (byte) ( value >> 8 );
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void putInt( byte[] data, int offset, int value ) {
+        data[offset] = (byte) ( value >> 24 );
+        data[offset + 1] = (byte) ( value >> 16 );
+        data[offset + 2] = (byte) ( value >> 8 );
+        data[offset + 3] = (byte) value;
+    }
+}